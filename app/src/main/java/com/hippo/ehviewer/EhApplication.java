@@ -35,6 +35,7 @@ import com.hippo.ehviewer.client.EhDns;
 import com.hippo.ehviewer.client.EhEngine;
 import com.hippo.ehviewer.client.data.GalleryDetail;
 import com.hippo.ehviewer.download.DownloadManager;
+import com.hippo.ehviewer.gallery.SharedImageCache;
 import com.hippo.ehviewer.spider.SpiderDen;
 import com.hippo.ehviewer.ui.CommonOperations;
 import com.hippo.image.Image;
@@ -171,6 +172,13 @@ public class EhApplication extends RecordingApplication implements Thread.Uncaug
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
 
+        SharedImageCache.getInstance().trimMemory(level);
+
+        // The process might be killed in background
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && null != mDownloadManager) {
+            mDownloadManager.flush(false);
+        }
+
         if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
             clearMemoryCache();
         }
@@ -186,6 +194,7 @@ public class EhApplication extends RecordingApplication implements Thread.Uncaug
                 }
                 if (DEBUG_PRINT_IMAGE_COUNT) {
                     Log.i(TAG, "Image count: " + Image.getImageCount());
+                    Log.i(TAG, "Image cache: " + SharedImageCache.getInstance());
                 }
                 SimpleHandler.getInstance().postDelayed(this, DEBUG_PRINT_INTERVAL);
             }
@@ -330,6 +339,15 @@ public class EhApplication extends RecordingApplication implements Thread.Uncaug
 
     @Override
     public void uncaughtException(Thread thread, Throwable ex) {
+        // Save download state before the process is gone
+        if (null != mDownloadManager) {
+            try {
+                mDownloadManager.flush(true);
+            } catch (Throwable e) {
+                // Ignore
+            }
+        }
+
         if (!handleException(ex) && mDefaultHandler != null) {
             mDefaultHandler.uncaughtException(thread, ex);
         }
@@ -42,6 +42,7 @@ import com.hippo.ehviewer.dao.LocalFavoriteInfo;
 import com.hippo.ehviewer.dao.LocalFavoritesDao;
 import com.hippo.ehviewer.dao.QuickSearch;
 import com.hippo.ehviewer.dao.QuickSearchDao;
+import com.hippo.ehviewer.download.DownloadInfoList;
 import com.hippo.ehviewer.download.DownloadManager;
 import com.hippo.util.SqlUtils;
 import com.hippo.yorozuya.FileUtils;
@@ -93,7 +94,7 @@ public class EhDB {
         switch (oldVersion) {
             case 1: // 1 to 2
                 FilterDao.createTable(db, true);
-                break;
+                // Fall through
             case 2: // add ENABLE column to table FILTER
                 db.execSQL("CREATE TABLE " + "\"FILTER2\" (" +
                     "\"_id\" INTEGER PRIMARY KEY ," +
@@ -105,6 +106,9 @@ public class EhDB {
                         "SELECT _id, MODE, TEXT, 1 FROM FILTER;");
                 db.execSQL("DROP TABLE FILTER");
                 db.execSQL("ALTER TABLE FILTER2 RENAME TO  FILTER");
+                // Fall through
+            case 3: // add VERIFIED column to table DOWNLOADS
+                db.execSQL("ALTER TABLE DOWNLOADS ADD COLUMN \"VERIFIED\" INTEGER NOT NULL DEFAULT 0;");
                 break;
         }
     }
@@ -336,18 +340,59 @@ public class EhDB {
         }
     }
 
-    public static synchronized List<DownloadInfo> getAllDownloadInfo() {
-        DownloadsDao dao = sDaoSession.getDownloadsDao();
-        List<DownloadInfo> list = dao.queryBuilder().orderDesc(DownloadsDao.Properties.Time).list();
+    /**
+     * Return the index of all downloads, newest first.
+     * Download info is loaded by {@link #getDownloadInfo(long)}
+     * and {@link #getDownloadInfoList(long[])} when it is needed.
+     */
+    public static synchronized List<DownloadInfoList.Entry> getAllDownloadEntries() {
+        SQLiteDatabase db = sDaoSession.getDatabase();
+        String state = DownloadsDao.Properties.State.columnName;
+        String time = DownloadsDao.Properties.Time.columnName;
+        String gid = DownloadsDao.Properties.Gid.columnName;
+
         // Fix state
-        for (DownloadInfo info: list) {
-            if (info.state == DownloadInfo.STATE_WAIT || info.state == DownloadInfo.STATE_DOWNLOAD) {
-                info.state = DownloadInfo.STATE_NONE;
+        db.execSQL("UPDATE " + DownloadsDao.TABLENAME + " SET " + state + " = " + DownloadInfo.STATE_NONE +
+                " WHERE " + state + " IN (" + DownloadInfo.STATE_WAIT + ", " + DownloadInfo.STATE_DOWNLOAD + ");");
+
+        List<DownloadInfoList.Entry> list = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT " + gid + ", " + time + ", " +
+                DownloadsDao.Properties.Label.columnName + ", " + state + " FROM " + DownloadsDao.TABLENAME +
+                " ORDER BY " + time + " DESC, " + gid + " DESC;", null);
+        try {
+            while (cursor.moveToNext()) {
+                list.add(new DownloadInfoList.Entry(cursor.getLong(0), cursor.getLong(1),
+                        cursor.isNull(2) ? null : cursor.getString(2), cursor.getInt(3)));
             }
+        } finally {
+            cursor.close();
         }
         return list;
     }
 
+    @Nullable
+    public static synchronized DownloadInfo getDownloadInfo(long gid) {
+        return sDaoSession.getDownloadsDao().load(gid);
+    }
+
+    public static synchronized List<DownloadInfo> getDownloadInfoList(long[] gids) {
+        Object[] values = new Object[gids.length];
+        for (int i = 0; i < gids.length; i++) {
+            values[i] = gids[i];
+        }
+        return sDaoSession.getDownloadsDao().queryBuilder()
+                .where(DownloadsDao.Properties.Gid.in(values)).list();
+    }
+
+    /**
+     * Move all download info with the label to another label.
+     */
+    public static synchronized void updateDownloadInfoLabel(@NonNull String from, @Nullable String to) {
+        sDaoSession.getDatabase().execSQL("UPDATE " + DownloadsDao.TABLENAME + " SET " +
+                DownloadsDao.Properties.Label.columnName + " = ? WHERE " +
+                DownloadsDao.Properties.Label.columnName + " = ?;", new Object[] {to, from});
+    }
+
     // Insert or update
     public static synchronized void putDownloadInfo(DownloadInfo downloadInfo) {
         DownloadsDao dao = sDaoSession.getDownloadsDao();
@@ -364,6 +409,26 @@ public class EhDB {
         sDaoSession.getDownloadsDao().deleteByKey(gid);
     }
 
+    /**
+     * Insert or update some download info and remove some in one transaction.
+     */
+    public static synchronized void putDownloadInfo(List<DownloadInfo> putList, List<Long> removeList) {
+        DownloadsDao dao = sDaoSession.getDownloadsDao();
+        SQLiteDatabase db = sDaoSession.getDatabase();
+        db.beginTransaction();
+        try {
+            if (!removeList.isEmpty()) {
+                dao.deleteByKeyInTx(removeList);
+            }
+            if (!putList.isEmpty()) {
+                dao.insertOrReplaceInTx(putList);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Nullable
     public static synchronized String getDownloadDirname(long gid) {
         DownloadDirnameDao dao = sDaoSession.getDownloadDirnameDao();
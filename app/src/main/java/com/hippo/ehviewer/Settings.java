@@ -680,6 +680,17 @@ public class Settings {
         putIntToStr(KEY_MULTI_THREAD_DOWNLOAD, value);
     }
 
+    private static final String KEY_CONCURRENT_DOWNLOAD = "concurrent_download";
+    private static final int DEFAULT_CONCURRENT_DOWNLOAD = 1;
+
+    public static int getConcurrentDownload() {
+        return getIntFromStr(KEY_CONCURRENT_DOWNLOAD, DEFAULT_CONCURRENT_DOWNLOAD);
+    }
+
+    public static void putConcurrentDownload(int value) {
+        putIntToStr(KEY_CONCURRENT_DOWNLOAD, value);
+    }
+
     private static final String KEY_PRELOAD_IMAGE = "preload_image";
     private static final int DEFAULT_PRELOAD_IMAGE = 5;
 
@@ -691,6 +702,62 @@ public class Settings {
         putIntToStr(KEY_PRELOAD_IMAGE, value);
     }
 
+    private static final String KEY_DECODE_THREAD = "decode_thread";
+    private static final int DEFAULT_DECODE_THREAD = 0;
+
+    /**
+     * @return 0 for auto, it depends on the number of processors
+     */
+    public static int getDecodeThread() {
+        return getIntFromStr(KEY_DECODE_THREAD, DEFAULT_DECODE_THREAD);
+    }
+
+    public static void putDecodeThread(int value) {
+        putIntToStr(KEY_DECODE_THREAD, value);
+    }
+
+    public static final String KEY_SPEED_LIMIT = "speed_limit";
+    private static final int DEFAULT_SPEED_LIMIT = 0;
+
+    /**
+     * @return KB per second, 0 for no limit
+     */
+    public static int getSpeedLimit() {
+        return getIntFromStr(KEY_SPEED_LIMIT, DEFAULT_SPEED_LIMIT);
+    }
+
+    public static void putSpeedLimit(int value) {
+        putIntToStr(KEY_SPEED_LIMIT, value);
+    }
+
+    public static final String KEY_SPEED_LIMIT_FROM = "speed_limit_from";
+    private static final int DEFAULT_SPEED_LIMIT_FROM = 0;
+
+    /**
+     * @return the hour of day the speed limit starts
+     */
+    public static int getSpeedLimitFrom() {
+        return getIntFromStr(KEY_SPEED_LIMIT_FROM, DEFAULT_SPEED_LIMIT_FROM);
+    }
+
+    public static void putSpeedLimitFrom(int value) {
+        putIntToStr(KEY_SPEED_LIMIT_FROM, value);
+    }
+
+    public static final String KEY_SPEED_LIMIT_TO = "speed_limit_to";
+    private static final int DEFAULT_SPEED_LIMIT_TO = 0;
+
+    /**
+     * @return the hour of day the speed limit ends, the same as from for all day
+     */
+    public static int getSpeedLimitTo() {
+        return getIntFromStr(KEY_SPEED_LIMIT_TO, DEFAULT_SPEED_LIMIT_TO);
+    }
+
+    public static void putSpeedLimitTo(int value) {
+        putIntToStr(KEY_SPEED_LIMIT_TO, value);
+    }
+
     public static final String KEY_IMAGE_RESOLUTION = "image_size";
     public static final String DEFAULT_IMAGE_RESOLUTION = EhConfig.IMAGE_SIZE_AUTO;
 
@@ -715,6 +782,28 @@ public class Settings {
         putBoolean(KEY_DOWNLOAD_ORIGIN_IMAGE, value);
     }
 
+    private static final String KEY_VERIFY_DOWNLOAD = "verify_download";
+    private static final boolean DEFAULT_VERIFY_DOWNLOAD = false;
+
+    public static boolean getVerifyDownload() {
+        return getBoolean(KEY_VERIFY_DOWNLOAD, DEFAULT_VERIFY_DOWNLOAD);
+    }
+
+    public static void putVerifyDownload(boolean value) {
+        putBoolean(KEY_VERIFY_DOWNLOAD, value);
+    }
+
+    private static final String KEY_DOWNLOAD_PACK = "download_pack";
+    private static final boolean DEFAULT_DOWNLOAD_PACK = false;
+
+    public static boolean getDownloadPack() {
+        return getBoolean(KEY_DOWNLOAD_PACK, DEFAULT_DOWNLOAD_PACK);
+    }
+
+    public static void putDownloadPack(boolean value) {
+        putBoolean(KEY_DOWNLOAD_PACK, value);
+    }
+
     /********************
      ****** Favorites
      ********************/
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.download;
+
+import com.hippo.ehviewer.Settings;
+
+import java.util.ArrayList;
+
+/**
+ * Download rates in windows of a day, no limit out of all windows.
+ * A window can go over midnight. If windows overlap, the first one wins.
+ */
+final class BandwidthSchedule {
+
+    static final int MINUTES_OF_DAY = 24 * 60;
+
+    private static final class Window {
+
+        // Minute of day, inclusive
+        final int from;
+        // Minute of day, exclusive
+        final int to;
+        final long rate;
+
+        Window(int from, int to, long rate) {
+            this.from = from;
+            this.to = to;
+            this.rate = rate;
+        }
+
+        boolean contains(int minute) {
+            if (from < to) {
+                return minute >= from && minute < to;
+            } else {
+                // Over midnight, or all day
+                return minute >= from || minute < to;
+            }
+        }
+    }
+
+    private final ArrayList<Window> mWindows = new ArrayList<>();
+
+    /**
+     * Read the schedule in settings.
+     */
+    static BandwidthSchedule fromSettings() {
+        BandwidthSchedule schedule = new BandwidthSchedule();
+        int limit = Settings.getSpeedLimit();
+        if (limit > 0) {
+            schedule.add(Settings.getSpeedLimitFrom() * 60, Settings.getSpeedLimitTo() * 60, limit * 1024L);
+        }
+        return schedule;
+    }
+
+    /**
+     * @param from minute of day, inclusive
+     * @param to minute of day, exclusive, the same as from for all day
+     * @param rate bytes per second, 0 for no limit
+     */
+    void add(int from, int to, long rate) {
+        from = toMinuteOfDay(from);
+        to = toMinuteOfDay(to);
+        mWindows.add(new Window(from, to, rate));
+    }
+
+    /**
+     * Return bytes per second at the minute of day, 0 for no limit.
+     */
+    long getRate(int minute) {
+        for (Window window : mWindows) {
+            if (window.contains(minute)) {
+                return window.rate;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return minutes from the minute of day to the next time the rate
+     * might change, -1 if it never changes.
+     */
+    int getNextChange(int minute) {
+        int next = -1;
+        for (Window window : mWindows) {
+            if (window.from == window.to) {
+                continue;
+            }
+            next = nearest(next, minute, window.from);
+            next = nearest(next, minute, window.to);
+        }
+        return next;
+    }
+
+    private static int toMinuteOfDay(int minute) {
+        minute %= MINUTES_OF_DAY;
+        return minute < 0 ? minute + MINUTES_OF_DAY : minute;
+    }
+
+    private static int nearest(int next, int minute, int boundary) {
+        int distance = toMinuteOfDay(boundary - minute);
+        if (distance == 0) {
+            distance = MINUTES_OF_DAY;
+        }
+        return next < 0 ? distance : Math.min(next, distance);
+    }
+}
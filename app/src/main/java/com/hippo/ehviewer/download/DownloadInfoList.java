@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.download;
+
+import android.support.annotation.Nullable;
+
+import com.hippo.ehviewer.dao.DownloadInfo;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+
+/**
+ * A read-only download info list of one label, newest first.
+ * <p>
+ * Only the index of the downloads is in memory. The download info
+ * is loaded from DB by {@link Loader} when it is got, so the list
+ * is cheap even if there are tens of thousands of downloads.
+ * {@link #indexOf(Object)} is a binary search.
+ */
+public final class DownloadInfoList extends AbstractList<DownloadInfo> {
+
+    /**
+     * The index of a download.
+     */
+    public static final class Entry {
+
+        public final long gid;
+        public final long time;
+        @Nullable
+        String label;
+        int state;
+        // Held while the download is waiting or running
+        @Nullable
+        DownloadInfo info;
+
+        public Entry(long gid, long time, @Nullable String label, int state) {
+            this.gid = gid;
+            this.time = time;
+            this.label = label;
+            this.state = state;
+        }
+    }
+
+    interface Loader {
+
+        /**
+         * Return the download info of the entry in the position.
+         */
+        DownloadInfo load(DownloadInfoList list, int position);
+
+        /**
+         * Return the download info of the entry in the position if it is loaded,
+         * otherwise null and load it in background.
+         */
+        @Nullable
+        DownloadInfo peek(DownloadInfoList list, int position);
+    }
+
+    private final Loader mLoader;
+    private ArrayList<Entry> mEntries = new ArrayList<>();
+
+    DownloadInfoList(Loader loader) {
+        mLoader = loader;
+    }
+
+    // Newest first, gid breaks the tie
+    private static int compare(long time1, long gid1, long time2, long gid2) {
+        if (time1 != time2) {
+            return time1 > time2 ? -1 : 1;
+        } else if (gid1 != gid2) {
+            return gid1 > gid2 ? -1 : 1;
+        } else {
+            return 0;
+        }
+    }
+
+    private int search(long time, long gid) {
+        int low = 0;
+        int high = mEntries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Entry entry = mEntries.get(mid);
+            int result = compare(entry.time, entry.gid, time, gid);
+            if (result < 0) {
+                low = mid + 1;
+            } else if (result > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    Entry getEntry(int position) {
+        return mEntries.get(position);
+    }
+
+    public long getGid(int position) {
+        return mEntries.get(position).gid;
+    }
+
+    int indexOfEntry(Entry entry) {
+        int position = search(entry.time, entry.gid);
+        return position >= 0 ? position : -1;
+    }
+
+    /**
+     * @return the position of the entry
+     */
+    int addEntry(Entry entry) {
+        int size = mEntries.size();
+        int position;
+        // Entries from DB are in order
+        if (size == 0 || compare(mEntries.get(size - 1).time, mEntries.get(size - 1).gid, entry.time, entry.gid) < 0) {
+            position = size;
+        } else {
+            position = search(entry.time, entry.gid);
+            if (position >= 0) {
+                return position;
+            }
+            position = -(position + 1);
+        }
+        mEntries.add(position, entry);
+        modCount++;
+        return position;
+    }
+
+    /**
+     * Merge all entries of the other list.
+     */
+    void merge(DownloadInfoList list) {
+        ArrayList<Entry> a = mEntries;
+        ArrayList<Entry> b = list.mEntries;
+        ArrayList<Entry> merged = new ArrayList<>(a.size() + b.size());
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            Entry x = a.get(i);
+            Entry y = b.get(j);
+            int result = compare(x.time, x.gid, y.time, y.gid);
+            if (result <= 0) {
+                merged.add(x);
+                i++;
+                if (result == 0) {
+                    j++;
+                }
+            } else {
+                merged.add(y);
+                j++;
+            }
+        }
+        merged.addAll(a.subList(i, a.size()));
+        merged.addAll(b.subList(j, b.size()));
+        mEntries = merged;
+        modCount++;
+    }
+
+    /**
+     * @return the old position of the entry, -1 if it is not in the list
+     */
+    int removeEntry(Entry entry) {
+        int position = indexOfEntry(entry);
+        if (position >= 0) {
+            mEntries.remove(position);
+            modCount++;
+        }
+        return position;
+    }
+
+    @Override
+    public DownloadInfo get(int position) {
+        if (position < 0 || position >= mEntries.size()) {
+            throw new IndexOutOfBoundsException("Invalid position " + position + ", size is " + mEntries.size());
+        }
+        return mLoader.load(this, position);
+    }
+
+    /**
+     * Return the download info in the position without touching DB on this thread.
+     *
+     * @return null if it is not loaded yet, it is loaded in background
+     */
+    @Nullable
+    public DownloadInfo peek(int position) {
+        if (position < 0 || position >= mEntries.size()) {
+            throw new IndexOutOfBoundsException("Invalid position " + position + ", size is " + mEntries.size());
+        }
+        return mLoader.peek(this, position);
+    }
+
+    @Override
+    public int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof DownloadInfo)) {
+            return -1;
+        }
+        DownloadInfo info = (DownloadInfo) o;
+        int position = search(info.time, info.gid);
+        return position >= 0 ? position : -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.download;
+
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.hippo.ehviewer.EhDB;
+import com.hippo.ehviewer.dao.DownloadInfo;
+import com.hippo.yorozuya.SimpleHandler;
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write download info to DB behind the download manager.
+ * <p>
+ * Changes are kept per gid, only the last one is written. They are written
+ * in one transaction on a background thread a moment later, so a burst of
+ * changes like starting all downloads costs one transaction. Batches are
+ * written in order, a change is never overwritten by an older one. A failed
+ * batch is written again later with backoff, and dropped after {@link #MAX_RETRY}.
+ */
+final class DownloadJournal {
+
+    private static final String TAG = DownloadJournal.class.getSimpleName();
+    private static final boolean DEBUG_LOG = false;
+
+    private static final long FLUSH_DELAY = 1000;
+    // A failed batch is written again after FLUSH_DELAY, doubled each time
+    private static final int MAX_RETRY = 5;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final Object mLock = new Object();
+    // Snapshot to put, or null to remove, guarded by mLock
+    private LinkedHashMap<Long, DownloadInfo> mPending = new LinkedHashMap<>();
+    // The batch in writing, visible until it is in DB, guarded by mLock
+    @Nullable
+    private LinkedHashMap<Long, DownloadInfo> mWriting;
+    private boolean mScheduled;
+    // Failed writes of the batch at the head, guarded by mWriteLock
+    private int mRetries;
+
+    // Guard writing, batches must be written one by one
+    private final Object mWriteLock = new Object();
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    DownloadJournal() {
+        mExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new PriorityThreadFactory(TAG, Process.THREAD_PRIORITY_BACKGROUND));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static DownloadInfo copy(DownloadInfo info) {
+        DownloadInfo copy = new DownloadInfo(info);
+        copy.state = info.state;
+        copy.legacy = info.legacy;
+        copy.time = info.time;
+        copy.label = info.label;
+        copy.verified = info.verified;
+        return copy;
+    }
+
+    private static List<Long> getGids(List<DownloadInfo> infos) {
+        List<Long> gids = new ArrayList<>(infos.size());
+        for (DownloadInfo info : infos) {
+            gids.add(info.gid);
+        }
+        return gids;
+    }
+
+    private void add(long gid, @Nullable DownloadInfo info) {
+        synchronized (mLock) {
+            // Move it to the end
+            mPending.remove(gid);
+            mPending.put(gid, info);
+            if (!scheduleLocked()) {
+                return;
+            }
+        }
+        SimpleHandler.getInstance().postDelayed(mFlushTask, FLUSH_DELAY);
+    }
+
+    /**
+     * @return true if the caller should post the flush task
+     */
+    private boolean scheduleLocked() {
+        if (mScheduled) {
+            return false;
+        }
+        mScheduled = true;
+        return true;
+    }
+
+    /**
+     * Insert or update the info. It is copied, so it can be changed later.
+     */
+    void put(DownloadInfo info) {
+        add(info.gid, copy(info));
+    }
+
+    void remove(long gid) {
+        add(gid, null);
+    }
+
+    /**
+     * Return a copy of the info which is not written yet, null if there is no one.
+     */
+    @Nullable
+    DownloadInfo get(long gid) {
+        DownloadInfo info;
+        synchronized (mLock) {
+            if (mPending.containsKey(gid)) {
+                info = mPending.get(gid);
+            } else if (mWriting != null) {
+                info = mWriting.get(gid);
+            } else {
+                info = null;
+            }
+        }
+        return info != null ? copy(info) : null;
+    }
+
+    /**
+     * Write pending changes on the background thread now.
+     */
+    void flush() {
+        SimpleHandler.getInstance().removeCallbacks(mFlushTask);
+        mExecutor.execute(mWriteTask);
+    }
+
+    /**
+     * Run the task on the background thread after pending changes are written.
+     */
+    void execute(final Runnable task) {
+        SimpleHandler.getInstance().removeCallbacks(mFlushTask);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write();
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Write pending changes on this thread, return after they are in DB.
+     */
+    void write() {
+        synchronized (mWriteLock) {
+            LinkedHashMap<Long, DownloadInfo> pending;
+            synchronized (mLock) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                pending = mPending;
+                mPending = new LinkedHashMap<>();
+                mWriting = pending;
+                mScheduled = false;
+            }
+
+            List<DownloadInfo> putList = new ArrayList<>(pending.size());
+            List<Long> removeList = new ArrayList<>();
+            for (Map.Entry<Long, DownloadInfo> entry : pending.entrySet()) {
+                if (entry.getValue() != null) {
+                    putList.add(entry.getValue());
+                } else {
+                    removeList.add(entry.getKey());
+                }
+            }
+
+            boolean schedule = false;
+            try {
+                EhDB.putDownloadInfo(putList, removeList);
+                mRetries = 0;
+            } catch (Throwable e) {
+                Log.e(TAG, "Can't write download info", e);
+                if (++mRetries > MAX_RETRY) {
+                    // Give up, newer changes are still written
+                    Log.e(TAG, "Drop download info after " + MAX_RETRY + " retries, put "
+                            + getGids(putList) + ", remove " + removeList);
+                    mRetries = 0;
+                } else {
+                    synchronized (mLock) {
+                        // Put it back before newer changes, try again later
+                        for (Map.Entry<Long, DownloadInfo> entry : mPending.entrySet()) {
+                            pending.remove(entry.getKey());
+                            pending.put(entry.getKey(), entry.getValue());
+                        }
+                        mPending = pending;
+                        // Replace the flush posted by changes in writing
+                        mScheduled = true;
+                        schedule = true;
+                    }
+                }
+            } finally {
+                synchronized (mLock) {
+                    mWriting = null;
+                }
+            }
+            if (schedule) {
+                SimpleHandler.getInstance().removeCallbacks(mFlushTask);
+                SimpleHandler.getInstance().postDelayed(mFlushTask, FLUSH_DELAY << mRetries);
+            }
+
+            if (DEBUG_LOG) {
+                Log.d(TAG, "Put " + putList.size() + ", remove " + removeList.size());
+            }
+        }
+    }
+}
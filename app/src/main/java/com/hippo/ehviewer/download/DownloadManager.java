@@ -19,63 +19,82 @@ package com.hippo.ehviewer.download;
 import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import com.hippo.ehviewer.EhDB;
+import com.hippo.ehviewer.Settings;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.dao.DownloadInfo;
 import com.hippo.ehviewer.dao.DownloadLabel;
+import com.hippo.ehviewer.spider.BandwidthLimiter;
+import com.hippo.ehviewer.spider.SpiderMeter;
 import com.hippo.ehviewer.spider.SpiderQueen;
-import com.hippo.image.Image;
+import com.hippo.glview.image.ImageWrapper;
 import com.hippo.yorozuya.ConcurrentPool;
 import com.hippo.yorozuya.MathUtils;
 import com.hippo.yorozuya.ObjectUtils;
 import com.hippo.yorozuya.SimpleHandler;
 import com.hippo.yorozuya.collect.LongList;
-import com.hippo.yorozuya.collect.SparseIJArray;
-import com.hippo.yorozuya.collect.SparseJLArray;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-public class DownloadManager implements SpiderQueen.OnSpiderListener {
+public class DownloadManager implements DownloadInfoList.Loader {
 
     private static final String TAG = DownloadManager.class.getSimpleName();
 
+    private static final int MAX_CONCURRENT_DOWNLOAD = 4;
+
+    // Download info loaded from DB at a time
+    private static final int PAGE_SIZE = 50;
+    // Download info kept in memory
+    private static final int CACHE_SIZE = 4 * PAGE_SIZE;
+
     private final Context mContext;
 
-    // All download info list
-    private final LinkedList<DownloadInfo> mAllInfoList;
-    // All download info map
-    private final SparseJLArray<DownloadInfo> mAllInfoMap;
+    // All download entry list
+    private final DownloadInfoList mAllInfoList;
+    // All download entry map
+    private final HashMap<Long, DownloadInfoList.Entry> mAllInfoMap;
     // label and info list map, without default label info list
-    private final Map<String, LinkedList<DownloadInfo>> mMap;
+    private final Map<String, DownloadInfoList> mMap;
     // All labels without default label
     private final List<DownloadLabel> mLabelList;
     // Store download info with default label
-    private final LinkedList<DownloadInfo> mDefaultInfoList;
+    private final DownloadInfoList mDefaultInfoList;
     // Store download info wait to start
     private final LinkedList<DownloadInfo> mWaitList;
-
-    private final SpeedReminder mSpeedReminder;
+    // Loaded download info
+    private final LruCache<Long, DownloadInfo> mInfoCache;
+    // Download info to write
+    private final DownloadJournal mJournal = new DownloadJournal();
+    // Gids of download info loading in background
+    private final HashSet<Long> mLoadingGids = new HashSet<>();
 
     @Nullable
     private DownloadListener mDownloadListener;
     private final List<DownloadInfoListener> mDownloadInfoListeners;
 
-    @Nullable
-    private DownloadInfo mCurrentTask;
-    @Nullable
-    private SpiderQueen mCurrentSpider;
+    // Running downloads
+    private final List<DownloadTask> mTasks = new ArrayList<>();
 
     private final ConcurrentPool<NotifyTask> mNotifyTaskPool = new ConcurrentPool<>(5);
 
+    private final Runnable mBandwidthTask = new Runnable() {
+        @Override
+        public void run() {
+            updateBandwidthLimit();
+        }
+    };
+
     public DownloadManager(Context context) {
         mContext = context;
 
@@ -84,50 +103,50 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         mLabelList = labels;
 
         // Create list for each label
-        HashMap<String, LinkedList<DownloadInfo>> map = new HashMap<>();
+        HashMap<String, DownloadInfoList> map = new HashMap<>();
         mMap = map;
         for (DownloadLabel label : labels) {
-            map.put(label.getLabel(), new LinkedList<DownloadInfo>());
+            map.put(label.getLabel(), new DownloadInfoList(this));
         }
 
         // Create default for non tag
-        mDefaultInfoList = new LinkedList<>();
+        mDefaultInfoList = new DownloadInfoList(this);
 
-        // Get all info
-        List<DownloadInfo> allInfoList = EhDB.getAllDownloadInfo();
-        mAllInfoList = new LinkedList<>(allInfoList);
+        // Get all entries, download info is loaded later
+        List<DownloadInfoList.Entry> allEntryList = EhDB.getAllDownloadEntries();
+        mAllInfoList = new DownloadInfoList(this);
 
         // Create all info map
-        SparseJLArray<DownloadInfo> allInfoMap = new SparseJLArray<>(allInfoList.size() + 10);
+        HashMap<Long, DownloadInfoList.Entry> allInfoMap = new HashMap<>(allEntryList.size() * 4 / 3 + 16);
         mAllInfoMap = allInfoMap;
 
-        for (int i = 0, n = allInfoList.size(); i < n; i++) {
-            DownloadInfo info = allInfoList.get(i);
+        for (int i = 0, n = allEntryList.size(); i < n; i++) {
+            DownloadInfoList.Entry entry = allEntryList.get(i);
 
-            // Add to all info map
-            allInfoMap.put(info.gid, info);
+            // Add to all info list and map
+            mAllInfoList.addEntry(entry);
+            allInfoMap.put(entry.gid, entry);
 
             // Add to each label list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            DownloadInfoList list = getInfoListForLabel(entry.label);
             if (list == null) {
                 // Can't find the label in label list
-                list = new LinkedList<>();
-                map.put(info.label, list);
-                if (!containLabel(info.label)) {
-                    // Add label to DB and list
-                    labels.add(EhDB.addDownloadLabel(info.label));
-                }
+                list = new DownloadInfoList(this);
+                map.put(entry.label, list);
+                labels.add(EhDB.addDownloadLabel(entry.label));
             }
-            list.add(info);
+            list.addEntry(entry);
         }
 
+        mInfoCache = new LruCache<>(CACHE_SIZE);
         mWaitList = new LinkedList<>();
-        mSpeedReminder = new SpeedReminder();
         mDownloadInfoListeners = new ArrayList<>();
+
+        updateBandwidthLimit();
     }
 
     @Nullable
-    private LinkedList<DownloadInfo> getInfoListForLabel(String label) {
+    private DownloadInfoList getInfoListForLabel(String label) {
         if (label == null) {
             return mDefaultInfoList;
         } else {
@@ -136,21 +155,11 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     public boolean containLabel(String label) {
-        if (label == null) {
-            return false;
-        }
-
-        for (DownloadLabel raw: mLabelList) {
-            if (label.equals(raw.getLabel())) {
-                return true;
-            }
-        }
-
-        return false;
+        return label != null && mMap.containsKey(label);
     }
 
     public boolean containDownloadInfo(long gid) {
-        return mAllInfoMap.indexOfKey(gid) >= 0;
+        return mAllInfoMap.containsKey(gid);
     }
 
     @NonNull
@@ -159,29 +168,318 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     @NonNull
-    public List<DownloadInfo> getDefaultDownloadInfoList() {
+    public DownloadInfoList getDefaultDownloadInfoList() {
         return mDefaultInfoList;
     }
 
     @Nullable
-    public List<DownloadInfo> getLabelDownloadInfoList(String label) {
+    public DownloadInfoList getLabelDownloadInfoList(String label) {
         return mMap.get(label);
     }
 
+    @Nullable
+    private DownloadInfo getLoadedDownloadInfo(DownloadInfoList.Entry entry) {
+        if (entry.info != null) {
+            return entry.info;
+        }
+        DownloadInfo info = mInfoCache.get(entry.gid);
+        if (info == null) {
+            // DB might be behind the journal
+            info = mJournal.get(entry.gid);
+            if (info != null) {
+                cacheLoadedDownloadInfo(entry, info);
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Cache the info loaded from the journal or DB. The label follows the index,
+     * the label update in DB might not be done yet.
+     */
+    private void cacheLoadedDownloadInfo(DownloadInfoList.Entry entry, DownloadInfo info) {
+        info.label = entry.label;
+        mInfoCache.put(entry.gid, info);
+    }
+
     @Nullable
     public DownloadInfo getDownloadInfo(long gid) {
-        return mAllInfoMap.get(gid);
+        DownloadInfoList.Entry entry = mAllInfoMap.get(gid);
+        if (entry == null) {
+            return null;
+        }
+        DownloadInfo info = getLoadedDownloadInfo(entry);
+        if (info == null) {
+            info = EhDB.getDownloadInfo(gid);
+            if (info != null) {
+                cacheLoadedDownloadInfo(entry, info);
+            } else {
+                Log.e(TAG, "Can't load download info with gid: " + gid);
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Return gids of the page around the position which are not loaded or loading.
+     */
+    private long[] getUnloadedGids(DownloadInfoList list, int position) {
+        int start = Math.max(0, position - PAGE_SIZE / 2);
+        int end = Math.min(list.size(), start + PAGE_SIZE);
+        long[] gids = new long[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            DownloadInfoList.Entry e = list.getEntry(i);
+            if (!mLoadingGids.contains(e.gid) && getLoadedDownloadInfo(e) == null) {
+                gids[count++] = e.gid;
+            }
+        }
+        return Arrays.copyOf(gids, count);
+    }
+
+    /**
+     * Cache infos loaded from DB, the ones loaded or changed in the meantime are kept.
+     * An info not in DB is replaced by what the index knows.
+     */
+    private void cacheLoadedDownloadInfos(long[] gids, List<DownloadInfo> infos) {
+        for (DownloadInfo i : infos) {
+            DownloadInfoList.Entry e = mAllInfoMap.get(i.gid);
+            if (e != null && getLoadedDownloadInfo(e) == null) {
+                cacheLoadedDownloadInfo(e, i);
+            }
+        }
+        for (long gid : gids) {
+            DownloadInfoList.Entry e = mAllInfoMap.get(gid);
+            if (e != null && getLoadedDownloadInfo(e) == null) {
+                // The row is gone, show what the index knows
+                Log.e(TAG, "Can't load download info with gid: " + gid);
+                DownloadInfo info = new DownloadInfo();
+                info.gid = e.gid;
+                info.time = e.time;
+                info.label = e.label;
+                info.state = e.state;
+                mInfoCache.put(e.gid, info);
+            }
+        }
+    }
+
+    /**
+     * Load the page of download info around the position.
+     */
+    @Override
+    public DownloadInfo load(DownloadInfoList list, int position) {
+        DownloadInfoList.Entry entry = list.getEntry(position);
+        DownloadInfo info = getLoadedDownloadInfo(entry);
+        if (info != null) {
+            return info;
+        }
+
+        // Just get this one if the page is loading in background
+        long[] gids = mLoadingGids.contains(entry.gid) ?
+                new long[] {entry.gid} : getUnloadedGids(list, position);
+        cacheLoadedDownloadInfos(gids, EhDB.getDownloadInfoList(gids));
+        return getLoadedDownloadInfo(entry);
+    }
+
+    /**
+     * Return the info of the position if it is loaded. Otherwise load the page
+     * around it in background and return null, listeners get {@link DownloadInfoListener#onUpdate}
+     * when it's loaded. The next page is loaded in advance.
+     */
+    @Nullable
+    @Override
+    public DownloadInfo peek(DownloadInfoList list, int position) {
+        DownloadInfo info = getLoadedDownloadInfo(list.getEntry(position));
+        if (info == null) {
+            loadAsync(list, position);
+        } else {
+            int next = position + PAGE_SIZE / 2;
+            if (next < list.size() && getLoadedDownloadInfo(list.getEntry(next)) == null) {
+                loadAsync(list, next);
+            }
+        }
+        return info;
+    }
+
+    private void loadAsync(final DownloadInfoList list, int position) {
+        final long[] gids = getUnloadedGids(list, position);
+        if (gids.length == 0) {
+            return;
+        }
+        for (long gid : gids) {
+            mLoadingGids.add(gid);
+        }
+
+        // After pending changes are written
+        mJournal.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<DownloadInfo> result;
+                try {
+                    result = EhDB.getDownloadInfoList(gids);
+                } catch (Throwable e) {
+                    Log.e(TAG, "Can't load download info", e);
+                    result = null;
+                }
+                final List<DownloadInfo> infos = result;
+                SimpleHandler.getInstance().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLoadAsync(list, gids, infos);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onLoadAsync(DownloadInfoList list, long[] gids, @Nullable List<DownloadInfo> infos) {
+        for (long gid : gids) {
+            mLoadingGids.remove(gid);
+        }
+        if (infos == null) {
+            // Try again on next peek
+            return;
+        }
+        cacheLoadedDownloadInfos(gids, infos);
+
+        for (long gid : gids) {
+            DownloadInfoList.Entry entry = mAllInfoMap.get(gid);
+            DownloadInfo info = entry != null ? getLoadedDownloadInfo(entry) : null;
+            if (info == null) {
+                continue;
+            }
+            for (DownloadInfoListener l : mDownloadInfoListeners) {
+                l.onUpdate(info, list);
+            }
+        }
+    }
+
+    /**
+     * Update the index of the info, and save it to DB later.
+     */
+    private void putDownloadInfo(DownloadInfo info) {
+        DownloadInfoList.Entry entry = mAllInfoMap.get(info.gid);
+        if (entry != null) {
+            entry.state = info.state;
+            // Keep it while it is waiting or running
+            entry.info = info.state == DownloadInfo.STATE_WAIT ||
+                    info.state == DownloadInfo.STATE_DOWNLOAD ? info : null;
+        }
+        mInfoCache.put(info.gid, info);
+        mJournal.put(info);
+    }
+
+    /**
+     * Add the new info to the index.
+     *
+     * @return the position in the label list
+     */
+    private int addToIndex(DownloadInfo info, DownloadInfoList list) {
+        DownloadInfoList.Entry entry = new DownloadInfoList.Entry(info.gid, info.time, info.label, info.state);
+        mAllInfoList.addEntry(entry);
+        mAllInfoMap.put(info.gid, entry);
+        return list.addEntry(entry);
+    }
+
+    /**
+     * Remove the info from the index.
+     *
+     * @return the old position in the label list, -1 if it is not in the list
+     */
+    private int removeFromIndex(DownloadInfoList.Entry entry) {
+        mAllInfoList.removeEntry(entry);
+        mAllInfoMap.remove(entry.gid);
+        mInfoCache.remove(entry.gid);
+        DownloadInfoList list = getInfoListForLabel(entry.label);
+        return list != null ? list.removeEntry(entry) : -1;
     }
 
     public int getDownloadState(long gid) {
-        DownloadInfo info = mAllInfoMap.get(gid);
-        if (null != info) {
-            return info.state;
+        DownloadInfoList.Entry entry = mAllInfoMap.get(gid);
+        if (null != entry) {
+            return entry.state;
         } else {
             return DownloadInfo.STATE_INVALID;
         }
     }
 
+    /**
+     * Return the sum of worker limits of running downloads, -1 if no download.
+     */
+    public int getWorkerLimit() {
+        if (mTasks.isEmpty()) {
+            return -1;
+        }
+        int limit = 0;
+        for (DownloadTask task : mTasks) {
+            limit += task.mSpider.getWorkerLimit();
+        }
+        return limit;
+    }
+
+    /**
+     * Return the current speed of the download in bytes per second, -1 if it is unknown.
+     */
+    public long getSpeed(long gid) {
+        DownloadTask task = getTask(gid);
+        if (task == null) {
+            return -1;
+        }
+        return task.mSpider.getMeter().getSpeed(SpiderMeter.HORIZON_SHORT);
+    }
+
+    /**
+     * Return the remaining time of the download in milliseconds, -1 if it is unknown.
+     */
+    public long getRemainingTime(long gid) {
+        DownloadTask task = getTask(gid);
+        if (task == null) {
+            return -1;
+        }
+        DownloadInfo info = task.mInfo;
+        if (info.total <= 0) {
+            return -1;
+        }
+        return task.mSpider.getMeter().getRemainingTime(info.total - info.finished);
+    }
+
+    int getRunningDownloadCount() {
+        return mTasks.size();
+    }
+
+    /**
+     * Return the sum of speeds of running downloads in bytes per second.
+     */
+    long getTotalSpeed() {
+        long speed = 0;
+        for (int i = 0, n = mTasks.size(); i < n; i++) {
+            speed += Math.max(0, mTasks.get(i).mSpider.getMeter().getSpeed(SpiderMeter.HORIZON_SHORT));
+        }
+        return speed;
+    }
+
+    /**
+     * Return the infos of running downloads.
+     */
+    List<DownloadInfo> getRunningDownloadList() {
+        List<DownloadInfo> list = new ArrayList<>(mTasks.size());
+        for (int i = 0, n = mTasks.size(); i < n; i++) {
+            list.add(mTasks.get(i).mInfo);
+        }
+        return list;
+    }
+
+    @Nullable
+    private DownloadTask getTask(long gid) {
+        for (int i = 0, n = mTasks.size(); i < n; i++) {
+            DownloadTask task = mTasks.get(i);
+            if (task.mInfo.gid == gid) {
+                return task;
+            }
+        }
+        return null;
+    }
+
     public void addDownloadInfoListener(@Nullable DownloadInfoListener downloadInfoListener) {
         mDownloadInfoListeners.add(downloadInfoListener);
     }
@@ -195,29 +493,29 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     private void ensureDownload() {
-        if (mCurrentTask != null) {
-            // Only one download
-            return;
+        int maxCount = MathUtils.clamp(Settings.getConcurrentDownload(), 1, MAX_CONCURRENT_DOWNLOAD);
+
+        if (mTasks.size() < maxCount && !mWaitList.isEmpty()) {
+            // The delayed task is late if the device slept
+            updateBandwidthLimit();
         }
 
         // Get download from wait list
-        if (!mWaitList.isEmpty()) {
+        while (mTasks.size() < maxCount && !mWaitList.isEmpty()) {
             DownloadInfo info = mWaitList.removeFirst();
             SpiderQueen spider = SpiderQueen.obtainSpiderQueen(mContext, info, SpiderQueen.MODE_DOWNLOAD);
-            mCurrentTask = info;
-            mCurrentSpider = spider;
-            spider.addOnSpiderListener(this);
+            DownloadTask task = new DownloadTask(info, spider);
+            mTasks.add(task);
+            spider.addOnSpiderListener(task);
             info.state = DownloadInfo.STATE_DOWNLOAD;
-            info.speed = -1;
-            info.remaining = -1;
             info.total = -1;
             info.finished = 0;
             info.downloaded = 0;
             info.legacy = -1;
             // Update in DB
-            EhDB.putDownloadInfo(info);
+            putDownloadInfo(info);
             // Start speed count
-            mSpeedReminder.start();
+            task.mSpeedReminder.start();
             // Notify start downloading
             if (mDownloadListener != null) {
                 mDownloadListener.onStart(info);
@@ -233,13 +531,13 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     void startDownload(GalleryInfo galleryInfo, @Nullable String label) {
-        if (mCurrentTask != null && mCurrentTask.gid == galleryInfo.gid) {
-            // It is current task
+        if (getTask(galleryInfo.gid) != null) {
+            // It is running
             return;
         }
 
         // Check in download list
-        DownloadInfo info = mAllInfoMap.get(galleryInfo.gid);
+        DownloadInfo info = getDownloadInfo(galleryInfo.gid);
         if (info != null) { // Get it in download list
             if (info.state != DownloadInfo.STATE_WAIT) {
                 // Set state DownloadInfo.STATE_WAIT
@@ -247,7 +545,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 // Add to wait list
                 mWaitList.add(info);
                 // Update in DB
-                EhDB.putDownloadInfo(info);
+                putDownloadInfo(info);
                 // Notify state update
                 List<DownloadInfo> list = getInfoListForLabel(info.label);
                 if (list != null) {
@@ -265,27 +563,23 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             info.state = DownloadInfo.STATE_WAIT;
             info.time = System.currentTimeMillis();
 
-            // Add to label download list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            // Add to label download list, all download list and map
+            DownloadInfoList list = getInfoListForLabel(info.label);
             if (list == null) {
                 Log.e(TAG, "Can't find download info list with label: " + label);
                 return;
             }
-            list.addFirst(info);
-
-            // Add to all download list and map
-            mAllInfoList.addFirst(info);
-            mAllInfoMap.put(galleryInfo.gid, info);
+            int position = addToIndex(info, list);
 
             // Add to wait list
             mWaitList.add(info);
 
             // Save to
-            EhDB.putDownloadInfo(info);
+            putDownloadInfo(info);
 
             // Notify
             for (DownloadInfoListener l: mDownloadInfoListeners) {
-                l.onAdd(info, list, list.size() - 1);
+                l.onAdd(info, list, position);
             }
             // Make sure download is running
             ensureDownload();
@@ -297,7 +591,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
         for (int i = 0, n = gidList.size(); i < n; i++) {
             long gid = gidList.get(i);
-            DownloadInfo info = mAllInfoMap.get(gid);
+            DownloadInfo info = getDownloadInfo(gid);
             if (null == info) {
                 Log.d(TAG, "Can't get download info with gid: " + gid);
                 continue;
@@ -312,7 +606,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 // Add to wait list
                 mWaitList.add(info);
                 // Update in DB
-                EhDB.putDownloadInfo(info);
+                putDownloadInfo(info);
             }
         }
 
@@ -329,17 +623,20 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     void startAllDownload() {
         boolean update = false;
         // Start all STATE_NONE and STATE_FAILED item
-        LinkedList<DownloadInfo> allInfoList = mAllInfoList;
+        DownloadInfoList allInfoList = mAllInfoList;
         LinkedList<DownloadInfo> waitList = mWaitList;
-        for (DownloadInfo info: allInfoList) {
-            if (info.state == DownloadInfo.STATE_NONE || info.state == DownloadInfo.STATE_FAILED) {
+        for (int i = 0, n = allInfoList.size(); i < n; i++) {
+            int state = allInfoList.getEntry(i).state;
+            if (state == DownloadInfo.STATE_NONE || state == DownloadInfo.STATE_FAILED) {
                 update = true;
+                // Only load the info to start
+                DownloadInfo info = allInfoList.get(i);
                 // Set state DownloadInfo.STATE_WAIT
                 info.state = DownloadInfo.STATE_WAIT;
                 // Add to wait list
                 waitList.add(info);
                 // Update in DB
-                EhDB.putDownloadInfo(info);
+                putDownloadInfo(info);
             }
         }
 
@@ -367,31 +664,22 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             }
 
             // Add to label download list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            DownloadInfoList list = getInfoListForLabel(info.label);
             if (null == list) {
                 // Can't find the label in label list
-                list = new LinkedList<>();
+                list = new DownloadInfoList(this);
                 mMap.put(info.label, list);
-                if (!containLabel(info.label)) {
-                    // Add label to DB and list
-                    mLabelList.add(EhDB.addDownloadLabel(info.label));
-                }
+                // Add label to DB and list
+                mLabelList.add(EhDB.addDownloadLabel(info.label));
             }
-            list.add(info);
-            // Sort
-            Collections.sort(list, DATE_DESC_COMPARATOR);
 
-            // Add to all download list and map
-            mAllInfoList.add(info);
-            mAllInfoMap.put(info.gid, info);
+            // Add to label download list, all download list and map
+            addToIndex(info, list);
 
             // Save to
-            EhDB.putDownloadInfo(info);
+            putDownloadInfo(info);
         }
 
-        // Sort all download list
-        Collections.sort(mAllInfoList, DATE_DESC_COMPARATOR);
-
         // Notify
         for (DownloadInfoListener l: mDownloadInfoListeners) {
             l.onReload();
@@ -402,7 +690,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         for (DownloadLabel label: downloadLabelList) {
             String labelString = label.getLabel();
             if (!containLabel(labelString)) {
-                mMap.put(labelString, new LinkedList<DownloadInfo>());
+                mMap.put(labelString, new DownloadInfoList(this));
                 mLabelList.add(EhDB.addDownloadLabel(label));
             }
         }
@@ -420,24 +708,20 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         info.state = DownloadInfo.STATE_NONE;
         info.time = System.currentTimeMillis();
 
-        // Add to label download list
-        LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+        // Add to label download list, all download list and map
+        DownloadInfoList list = getInfoListForLabel(info.label);
         if (list == null) {
             Log.e(TAG, "Can't find download info list with label: " + label);
             return;
         }
-        list.addFirst(info);
-
-        // Add to all download list and map
-        mAllInfoList.addFirst(info);
-        mAllInfoMap.put(galleryInfo.gid, info);
+        int position = addToIndex(info, list);
 
         // Save to
-        EhDB.putDownloadInfo(info);
+        putDownloadInfo(info);
 
         // Notify
         for (DownloadInfoListener l: mDownloadInfoListeners) {
-            l.onAdd(info, list, list.size() - 1);
+            l.onAdd(info, list, position);
         }
     }
 
@@ -457,14 +741,19 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         }
     }
 
+    /**
+     * Stop all running downloads, start next ones in wait list.
+     */
     void stopCurrentDownload() {
-        DownloadInfo info = stopCurrentDownloadInternal();
-        if (info != null) {
+        List<DownloadInfo> infoList = stopRunningDownloadInternal();
+        if (!infoList.isEmpty()) {
             // Update listener
-            List<DownloadInfo> list = getInfoListForLabel(info.label);
-            if (list != null) {
-                for (DownloadInfoListener l: mDownloadInfoListeners) {
-                    l.onUpdate(info, list);
+            for (DownloadInfo info : infoList) {
+                List<DownloadInfo> list = getInfoListForLabel(info.label);
+                if (list != null) {
+                    for (DownloadInfoListener l: mDownloadInfoListeners) {
+                        l.onUpdate(info, list);
+                    }
                 }
             }
             // Ensure download
@@ -489,12 +778,12 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         for (DownloadInfo info : mWaitList) {
             info.state = DownloadInfo.STATE_NONE;
             // Update in DB
-            EhDB.putDownloadInfo(info);
+            putDownloadInfo(info);
         }
         mWaitList.clear();
 
-        // Stop current
-        stopCurrentDownloadInternal();
+        // Stop running
+        stopRunningDownloadInternal();
 
         // Notify mDownloadInfoListener
         for (DownloadInfoListener l: mDownloadInfoListeners) {
@@ -504,25 +793,19 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
     public void deleteDownload(long gid) {
         stopDownloadInternal(gid);
-        DownloadInfo info = mAllInfoMap.get(gid);
-        if (info != null) {
+        DownloadInfoList.Entry entry = mAllInfoMap.get(gid);
+        DownloadInfo info = getDownloadInfo(gid);
+        if (entry != null && info != null) {
             // Remove from DB
-            EhDB.removeDownloadInfo(info.gid);
+            mJournal.remove(info.gid);
 
-            // Remove all list and map
-            mAllInfoList.remove(info);
-            mAllInfoMap.remove(info.gid);
-
-            // Remove label list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
-            if (list != null) {
-                int index = list.indexOf(info);
-                if (index >= 0) {
-                    list.remove(info);
-                    // Update listener
-                    for (DownloadInfoListener l: mDownloadInfoListeners) {
-                        l.onRemove(info, list, index);
-                    }
+            // Remove from all list, map and label list
+            DownloadInfoList list = getInfoListForLabel(entry.label);
+            int index = removeFromIndex(entry);
+            if (list != null && index >= 0) {
+                // Update listener
+                for (DownloadInfoListener l: mDownloadInfoListeners) {
+                    l.onRemove(info, list, index);
                 }
             }
 
@@ -536,24 +819,17 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
         for (int i = 0, n = gidList.size(); i < n; i++) {
             long gid = gidList.get(i);
-            DownloadInfo info = mAllInfoMap.get(gid);
-            if (null == info) {
+            DownloadInfoList.Entry entry = mAllInfoMap.get(gid);
+            if (null == entry) {
                 Log.d(TAG, "Can't get download info with gid: " + gid);
                 continue;
             }
 
             // Remove from DB
-            EhDB.removeDownloadInfo(info.gid);
+            mJournal.remove(gid);
 
-            // Remove from all info map
-            mAllInfoList.remove(info);
-            mAllInfoMap.remove(info.gid);
-
-            // Remove from label list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
-            if (list != null) {
-                list.remove(info);
-            }
+            // Remove from all list, map and label list
+            removeFromIndex(entry);
         }
 
         // Update listener
@@ -566,10 +842,10 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     // Update listener
     // No ensureDownload
     private DownloadInfo stopDownloadInternal(long gid) {
-        // Check current task
-        if (mCurrentTask != null && mCurrentTask.gid == gid) {
-            // Stop current
-            return stopCurrentDownloadInternal();
+        // Check running task
+        DownloadTask task = getTask(gid);
+        if (task != null) {
+            return stopTaskInternal(task);
         }
 
         for (Iterator<DownloadInfo> iterator = mWaitList.iterator(); iterator.hasNext();) {
@@ -580,7 +856,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 // Update state
                 info.state = DownloadInfo.STATE_NONE;
                 // Update in DB
-                EhDB.putDownloadInfo(info);
+                putDownloadInfo(info);
                 return info;
             }
         }
@@ -589,26 +865,26 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
     // Update in DB
     // Update mDownloadListener
-    private DownloadInfo stopCurrentDownloadInternal() {
-        DownloadInfo info = mCurrentTask;
-        SpiderQueen spider = mCurrentSpider;
-        // Release spider
-        if (spider != null) {
-            spider.removeOnSpiderListener(DownloadManager.this);
-            SpiderQueen.releaseSpiderQueen(spider, SpiderQueen.MODE_DOWNLOAD);
-        }
-        mCurrentTask = null;
-        mCurrentSpider = null;
-        // Stop speed reminder
-        mSpeedReminder.stop();
-        if (info == null) {
-            return null;
+    private List<DownloadInfo> stopRunningDownloadInternal() {
+        List<DownloadInfo> list = new ArrayList<>(mTasks.size());
+        while (!mTasks.isEmpty()) {
+            list.add(stopTaskInternal(mTasks.get(mTasks.size() - 1)));
         }
+        return list;
+    }
+
+    // Update in DB
+    // Update mDownloadListener
+    private DownloadInfo stopTaskInternal(DownloadTask task) {
+        DownloadInfo info = task.mInfo;
+        mTasks.remove(task);
+        // Release spider
+        task.release();
 
         // Update state
         info.state = DownloadInfo.STATE_NONE;
         // Update in DB
-        EhDB.putDownloadInfo(info);
+        putDownloadInfo(info);
         // Listener
         if (mDownloadListener != null) {
             mDownloadListener.onCancel(info);
@@ -625,10 +901,12 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 stopDownloadInternal(gidList.get(i));
             }
         } else {
-            // Check current task
-            if (mCurrentTask != null && gidList.contains(mCurrentTask.gid)) {
-                // Stop current
-                stopCurrentDownloadInternal();
+            // Check running tasks
+            for (int i = mTasks.size() - 1; i >= 0; i--) {
+                DownloadTask task = mTasks.get(i);
+                if (gidList.contains(task.mInfo.gid)) {
+                    stopTaskInternal(task);
+                }
             }
 
             // Check all in wait list
@@ -640,7 +918,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                     // Update state
                     info.state = DownloadInfo.STATE_NONE;
                     // Update in DB
-                    EhDB.putDownloadInfo(info);
+                    putDownloadInfo(info);
                 }
             }
         }
@@ -655,30 +933,31 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return;
         }
 
-        List<DownloadInfo> dstList = getInfoListForLabel(label);
+        DownloadInfoList dstList = getInfoListForLabel(label);
         if (dstList == null) {
             Log.e(TAG, "Can't find label with label: " + label);
             return;
         }
 
         for (DownloadInfo info: list) {
-            if (ObjectUtils.equal(info.label, label)) {
+            DownloadInfoList.Entry entry = mAllInfoMap.get(info.gid);
+            if (entry == null || ObjectUtils.equal(entry.label, label)) {
                 continue;
             }
 
-            List<DownloadInfo> srcList = getInfoListForLabel(info.label);
+            DownloadInfoList srcList = getInfoListForLabel(entry.label);
             if (srcList == null) {
-                Log.e(TAG, "Can't find label with label: " + info.label);
+                Log.e(TAG, "Can't find label with label: " + entry.label);
                 continue;
             }
 
-            srcList.remove(info);
-            dstList.add(info);
+            srcList.removeEntry(entry);
+            entry.label = label;
+            dstList.addEntry(entry);
             info.label = label;
-            Collections.sort(dstList, DATE_DESC_COMPARATOR);
 
             // Save to DB
-            EhDB.putDownloadInfo(info);
+            putDownloadInfo(info);
         }
 
         for (DownloadInfoListener l: mDownloadInfoListeners) {
@@ -692,7 +971,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         }
 
         mLabelList.add(EhDB.addDownloadLabel(label));
-        mMap.put(label, new LinkedList<DownloadInfo>());
+        mMap.put(label, new DownloadInfoList(this));
 
         for (DownloadInfoListener l: mDownloadInfoListeners) {
             l.onUpdateLabels();
@@ -725,17 +1004,13 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return;
         }
 
-        LinkedList<DownloadInfo> list = mMap.remove(from);
+        DownloadInfoList list = mMap.remove(from);
         if (list == null) {
             return;
         }
 
         // Update info label
-        for (DownloadInfo info: list) {
-            info.label = to;
-            // Update in DB
-            EhDB.putDownloadInfo(info);
-        }
+        updateLabel(list, from, to);
         // Put list back with new label
         mMap.put(to, list);
 
@@ -761,21 +1036,14 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return;
         }
 
-        LinkedList<DownloadInfo> list = mMap.remove(label);
+        DownloadInfoList list = mMap.remove(label);
         if (list == null) {
             return;
         }
 
         // Update info label
-        for (DownloadInfo info: list) {
-            info.label = null;
-            // Update in DB
-            EhDB.putDownloadInfo(info);
-            mDefaultInfoList.add(info);
-        }
-
-        // Sort
-        Collections.sort(mDefaultInfoList, DATE_DESC_COMPARATOR);
+        updateLabel(list, label, null);
+        mDefaultInfoList.merge(list);
 
         // Notify listener
         for (DownloadInfoListener l: mDownloadInfoListeners) {
@@ -783,120 +1051,182 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         }
     }
 
-    boolean isIdle() {
-        return mCurrentTask == null && mWaitList.isEmpty();
+    /**
+     * Update the label of all entries in the list and loaded info,
+     * the download info in DB is updated on the journal thread.
+     */
+    private void updateLabel(DownloadInfoList list, @NonNull final String from, @Nullable final String to) {
+        for (int i = 0, n = list.size(); i < n; i++) {
+            DownloadInfoList.Entry entry = list.getEntry(i);
+            entry.label = to;
+            if (entry.info != null) {
+                entry.info.label = to;
+            }
+        }
+        for (DownloadInfo info : mInfoCache.snapshot().values()) {
+            if (from.equals(info.label)) {
+                info.label = to;
+            }
+        }
+        // Update in DB, after the pending info with the old label
+        mJournal.execute(new Runnable() {
+            @Override
+            public void run() {
+                EhDB.updateDownloadInfoLabel(from, to);
+            }
+        });
     }
 
-    @Override
-    public void onGetPages(int pages) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+    /**
+     * Write changed download info to DB now.
+     *
+     * @param block true to return after it is written
+     */
+    public void flush(boolean block) {
+        if (block) {
+            mJournal.write();
+        } else {
+            mJournal.flush();
         }
-        task.setOnGetPagesData(pages);
-        SimpleHandler.getInstance().post(task);
     }
 
-    @Override
-    public void onGet509(int index) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+    /**
+     * Apply the speed limit of this time in settings, and apply it again
+     * when the time window changes. Call it after the settings changed.
+     */
+    public void updateBandwidthLimit() {
+        SimpleHandler.getInstance().removeCallbacks(mBandwidthTask);
+
+        BandwidthSchedule schedule = BandwidthSchedule.fromSettings();
+        Calendar calendar = Calendar.getInstance();
+        int minute = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+        BandwidthLimiter.getInstance().setRate(schedule.getRate(minute));
+
+        int next = schedule.getNextChange(minute);
+        if (next > 0) {
+            long delay = next * 60 * 1000L - calendar.get(Calendar.SECOND) * 1000L - calendar.get(Calendar.MILLISECOND);
+            SimpleHandler.getInstance().postDelayed(mBandwidthTask, delay);
         }
-        task.setOnGet509Data(index);
-        SimpleHandler.getInstance().post(task);
     }
 
-    @Override
-    public void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
-        }
-        task.setOnPageDownloadData(index, contentLength, receivedSize, bytesRead);
-        SimpleHandler.getInstance().post(task);
+    boolean isIdle() {
+        return mTasks.isEmpty() && mWaitList.isEmpty();
     }
 
-    @Override
-    public void onPageSuccess(int index, int finished, int downloaded, int total) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+    /**
+     * A running download, it listens to its own spider.
+     */
+    private class DownloadTask implements SpiderQueen.OnSpiderListener {
+
+        private final DownloadInfo mInfo;
+        private final SpiderQueen mSpider;
+        private final SpeedReminder mSpeedReminder;
+
+        public DownloadTask(DownloadInfo info, SpiderQueen spider) {
+            mInfo = info;
+            mSpider = spider;
+            mSpeedReminder = new SpeedReminder(this);
         }
-        task.setOnPageSuccessData(index, finished, downloaded, total);
-        SimpleHandler.getInstance().post(task);
-    }
 
-    @Override
-    public void onPageFailure(int index, String error, int finished, int downloaded, int total) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+        public void release() {
+            mSpider.removeOnSpiderListener(this);
+            SpiderQueen.releaseSpiderQueen(mSpider, SpiderQueen.MODE_DOWNLOAD);
+            mSpeedReminder.stop();
         }
-        task.setOnPageFailureDate(index, error, finished, downloaded, total);
-        SimpleHandler.getInstance().post(task);
-    }
 
-    @Override
-    public void onFinish(int finished, int downloaded, int total) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+        @Override
+        public void onGetPages(int pages) {
+            NotifyTask task = mNotifyTaskPool.pop();
+            if (task == null) {
+                task = new NotifyTask();
+            }
+            task.setOnGetPagesData(this, pages);
+            SimpleHandler.getInstance().post(task);
         }
-        task.setOnFinishDate(finished, downloaded, total);
-        SimpleHandler.getInstance().post(task);
-    }
 
-    @Override
-    public void onGetImageSuccess(int index, Image image) {
-        // Ignore
-    }
+        @Override
+        public void onGet509(int index) {
+            NotifyTask task = mNotifyTaskPool.pop();
+            if (task == null) {
+                task = new NotifyTask();
+            }
+            task.setOnGet509Data(this, index);
+            SimpleHandler.getInstance().post(task);
+        }
 
-    @Override
-    public void onGetImageFailure(int index, String error) {
-        // Ignore
+        @Override
+        public void onPageSuccess(int index, int finished, int downloaded, int total) {
+            NotifyTask task = mNotifyTaskPool.pop();
+            if (task == null) {
+                task = new NotifyTask();
+            }
+            task.setOnPageSuccessData(this, index, finished, downloaded, total);
+            SimpleHandler.getInstance().post(task);
+        }
+
+        @Override
+        public void onPageFailure(int index, String error, int finished, int downloaded, int total) {
+            NotifyTask task = mNotifyTaskPool.pop();
+            if (task == null) {
+                task = new NotifyTask();
+            }
+            task.setOnPageFailureDate(this, index, error, finished, downloaded, total);
+            SimpleHandler.getInstance().post(task);
+        }
+
+        @Override
+        public void onFinish(int finished, int downloaded, int total) {
+            NotifyTask task = mNotifyTaskPool.pop();
+            if (task == null) {
+                task = new NotifyTask();
+            }
+            task.setOnFinishDate(this, finished, downloaded, total);
+            SimpleHandler.getInstance().post(task);
+        }
+
+        @Override
+        public void onGetImageSuccess(int index, ImageWrapper image) {
+            // Ignore
+        }
+
+        @Override
+        public void onGetImageFailure(int index, String error) {
+            // Ignore
+        }
     }
 
     private class NotifyTask implements Runnable {
 
         public static final int TYPE_ON_GET_PAGES = 0;
         public static final int TYPE_ON_GET_509 = 1;
-        public static final int TYPE_ON_PAGE_DOWNLOAD = 2;
         public static final int TYPE_ON_PAGE_SUCCESS = 3;
         public static final int TYPE_ON_PAGE_FAILURE = 4;
         public static final int TYPE_ON_FINISH = 5;
 
         private int mType;
+        private DownloadTask mTask;
         private int mPages;
         private int mIndex;
-        private long mContentLength;
-        private long mReceivedSize;
-        private int mBytesRead;
         @SuppressWarnings("unused")
         private String mError;
         private int mFinished;
         private int mDownloaded;
         private int mTotal;
 
-        public void setOnGetPagesData(int pages) {
+        public void setOnGetPagesData(DownloadTask task, int pages) {
+            mTask = task;
             mType = TYPE_ON_GET_PAGES;
             mPages = pages;
         }
 
-        public void setOnGet509Data(int index) {
+        public void setOnGet509Data(DownloadTask task, int index) {
+            mTask = task;
             mType = TYPE_ON_GET_509;
             mIndex = index;
         }
 
-        public void setOnPageDownloadData(int index, long contentLength, long receivedSize, int bytesRead) {
-            mType = TYPE_ON_PAGE_DOWNLOAD;
-            mIndex = index;
-            mContentLength = contentLength;
-            mReceivedSize = receivedSize;
-            mBytesRead = bytesRead;
-        }
-
-        public void setOnPageSuccessData(int index, int finished, int downloaded, int total) {
+        public void setOnPageSuccessData(DownloadTask task, int index, int finished, int downloaded, int total) {
+            mTask = task;
             mType = TYPE_ON_PAGE_SUCCESS;
             mIndex = index;
             mFinished = finished;
@@ -904,7 +1234,8 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             mTotal = total;
         }
 
-        public void setOnPageFailureDate(int index, String error, int finished, int downloaded, int total) {
+        public void setOnPageFailureDate(DownloadTask task, int index, String error, int finished, int downloaded, int total) {
+            mTask = task;
             mType = TYPE_ON_PAGE_FAILURE;
             mIndex = index;
             mError = error;
@@ -913,7 +1244,8 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             mTotal = total;
         }
 
-        public void setOnFinishDate(int finished, int downloaded, int total) {
+        public void setOnFinishDate(DownloadTask task, int finished, int downloaded, int total) {
+            mTask = task;
             mType = TYPE_ON_FINISH;
             mFinished = finished;
             mDownloaded = downloaded;
@@ -922,12 +1254,13 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
         @Override
         public void run() {
+            DownloadTask task = mTask;
+            // The task might be stopped
+            boolean running = mTasks.contains(task);
             switch (mType) {
                 case TYPE_ON_GET_PAGES: {
-                    DownloadInfo info = mCurrentTask;
-                    if (info == null) {
-                        Log.e(TAG, "Current task is null, but it should not be");
-                    } else {
+                    if (running) {
+                        DownloadInfo info = task.mInfo;
                         info.total = mPages;
                         List<DownloadInfo> list = getInfoListForLabel(info.label);
                         if (list != null) {
@@ -944,16 +1277,9 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                     }
                     break;
                 }
-                case TYPE_ON_PAGE_DOWNLOAD: {
-                    mSpeedReminder.onDownload(mIndex, mContentLength, mReceivedSize, mBytesRead);
-                    break;
-                }
                 case TYPE_ON_PAGE_SUCCESS: {
-                    mSpeedReminder.onDone(mIndex);
-                    DownloadInfo info = mCurrentTask;
-                    if (info == null) {
-                        Log.e(TAG, "Current task is null, but it should not be");
-                    } else {
+                    if (running) {
+                        DownloadInfo info = task.mInfo;
                         info.finished = mFinished;
                         info.downloaded = mDownloaded;
                         info.total = mTotal;
@@ -970,11 +1296,8 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                     break;
                 }
                 case TYPE_ON_PAGE_FAILURE: {
-                    mSpeedReminder.onDone(mIndex);
-                    DownloadInfo info = mCurrentTask;
-                    if (info == null) {
-                        Log.e(TAG, "Current task is null, but it should not be");
-                    } else {
+                    if (running) {
+                        DownloadInfo info = task.mInfo;
                         info.finished = mFinished;
                         info.downloaded = mDownloaded;
                         info.total = mTotal;
@@ -988,24 +1311,15 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                     break;
                 }
                 case TYPE_ON_FINISH: {
-                    mSpeedReminder.onFinish();
-                    // Download done
-                    DownloadInfo info = mCurrentTask;
-                    mCurrentTask = null;
-                    SpiderQueen spider = mCurrentSpider;
-                    mCurrentSpider = null;
-                    // Release spider
-                    if (spider != null) {
-                        spider.removeOnSpiderListener(DownloadManager.this);
-                        SpiderQueen.releaseSpiderQueen(spider, SpiderQueen.MODE_DOWNLOAD);
-                    }
-                    // Check null
-                    if (info == null || spider == null) {
-                        Log.e(TAG, "Current stuff is null, but it should not be");
+                    if (!running) {
                         break;
                     }
-                    // Stop speed count
-                    mSpeedReminder.stop();
+                    // Download done
+                    DownloadInfo info = task.mInfo;
+                    boolean verified = task.mSpider.isVerified();
+                    mTasks.remove(task);
+                    // Release spider, stop speed count
+                    task.release();
                     // Update state
                     info.finished = mFinished;
                     info.downloaded = mDownloaded;
@@ -1016,8 +1330,9 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                     } else {
                         info.state = DownloadInfo.STATE_FAILED;
                     }
+                    info.verified = info.legacy == 0 && verified;
                     // Update in DB
-                    EhDB.putDownloadInfo(info);
+                    putDownloadInfo(info);
                     // Notify
                     if (mDownloadListener != null) {
                         mDownloadListener.onFinish(info);
@@ -1034,20 +1349,25 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 }
             }
 
+            mTask = null;
             mNotifyTaskPool.push(this);
         }
     }
 
 
+    /**
+     * Notify the speed of a running download now and then.
+     * The speed is measured by {@link SpiderMeter} of the spider.
+     */
     class SpeedReminder implements Runnable {
 
-        private boolean mStop = true;
+        private final DownloadInfo mInfo;
 
-        private long mBytesRead;
-        private long oldSpeed = -1;
+        private boolean mStop = true;
 
-        private final SparseIJArray mContentLengthMap = new SparseIJArray();
-        private final SparseIJArray mReceivedSizeMap = new SparseIJArray();
+        public SpeedReminder(DownloadTask task) {
+            mInfo = task.mInfo;
+        }
 
         public void start() {
             if (mStop) {
@@ -1059,87 +1379,30 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         public void stop() {
             if (!mStop) {
                 mStop = true;
-                mBytesRead = 0;
-                oldSpeed = -1;
-                mContentLengthMap.clear();
-                mReceivedSizeMap.clear();
                 SimpleHandler.getInstance().removeCallbacks(this);
             }
         }
 
-        public void onDownload(int index, long contentLength, long receivedSize, int bytesRead) {
-            mContentLengthMap.put(index, contentLength);
-            mReceivedSizeMap.put(index, receivedSize);
-            mBytesRead += bytesRead;
-        }
-
-        public void onDone(int index) {
-            mContentLengthMap.delete(index);
-            mReceivedSizeMap.delete(index);
-        }
-
-        public void onFinish() {
-            mContentLengthMap.clear();
-            mReceivedSizeMap.clear();
-        }
-
         @Override
         public void run() {
-            DownloadInfo info = mCurrentTask;
-            if (info != null) {
-                long newSpeed = mBytesRead / 2;
-                if (oldSpeed != -1) {
-                    newSpeed = (long) MathUtils.lerp(oldSpeed, newSpeed, 0.75f);
-                }
-                oldSpeed = newSpeed;
-                info.speed = newSpeed;
-
-                // Calculate remaining
-                if (info.total <= 0) {
-                    info.remaining = -1;
-                } else if (newSpeed == 0) {
-                    info.remaining = 300L * 24L * 60L * 60L * 1000L; // 300 days
-                } else {
-                    int downloadingCount = 0;
-                    long downloadingContentLengthSum = 0;
-                    long totalSize = 0;
-                    for (int i = 0, n = Math.max(mContentLengthMap.size(), mReceivedSizeMap.size()); i < n; i++) {
-                        long contentLength = mContentLengthMap.valueAt(i);
-                        long receivedSize = mReceivedSizeMap.valueAt(i);
-                        downloadingCount++;
-                        downloadingContentLengthSum += contentLength;
-                        totalSize += contentLength - receivedSize;
-                    }
-                    if (downloadingCount != 0) {
-                        totalSize += downloadingContentLengthSum * (info.total - info.downloaded - downloadingCount) / downloadingCount;
-                        info.remaining = totalSize / newSpeed * 1000;
-                    }
-                }
-                if (mDownloadListener != null) {
-                    mDownloadListener.onDownload(info);
-                }
-                List<DownloadInfo> list = getInfoListForLabel(info.label);
-                if (list != null) {
-                    for (DownloadInfoListener l: mDownloadInfoListeners) {
-                        l.onUpdate(info, list);
-                    }
-                }
+            if (mStop) {
+                return;
             }
 
-            mBytesRead = 0;
-
-            if (!mStop) {
-                SimpleHandler.getInstance().postDelayed(this, 2000);
+            DownloadInfo info = mInfo;
+            if (mDownloadListener != null) {
+                mDownloadListener.onDownload(info);
+            }
+            List<DownloadInfo> list = getInfoListForLabel(info.label);
+            if (list != null) {
+                for (DownloadInfoListener l: mDownloadInfoListeners) {
+                    l.onUpdate(info, list);
+                }
             }
-        }
-    }
 
-    private static final Comparator<DownloadInfo> DATE_DESC_COMPARATOR = new Comparator<DownloadInfo>() {
-        @Override
-        public int compare(DownloadInfo lhs, DownloadInfo rhs) {
-            return lhs.time - rhs.time > 0 ? -1 : 1;
+            SimpleHandler.getInstance().postDelayed(this, 2000);
         }
-    };
+    }
 
     public interface DownloadInfoListener {
 
@@ -49,6 +49,7 @@ import com.hippo.yorozuya.collect.SparseJLArray;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.List;
 
 public class DownloadService extends Service implements DownloadManager.DownloadListener {
 
@@ -83,6 +84,8 @@ public class DownloadService extends Service implements DownloadManager.Download
     private NotificationDelay mDownloadingDelay;
     private NotificationDelay mDownloadedDelay;
     private NotificationDelay m509Delay;
+    // The gid the downloading notification opens, -1 for the download list
+    private long mDownloadingGid = Long.MIN_VALUE;
 
 
     private final static SparseJBArray sItemStateArray = new SparseJBArray();
@@ -123,6 +126,7 @@ public class DownloadService extends Service implements DownloadManager.Download
         mNotifyManager = null;
         if (mDownloadManager != null) {
             mDownloadManager.setDownloadListener(null);
+            mDownloadManager.flush(false);
             mDownloadManager = null;
         }
         mDownloadingBuilder = null;
@@ -298,45 +302,123 @@ public class DownloadService extends Service implements DownloadManager.Download
 
         ensureDownloadingBuilder();
 
-        Bundle bundle = new Bundle();
-        bundle.putLong(DownloadsScene.KEY_GID, info.gid);
-        Intent activityIntent = new Intent(this, MainActivity.class);
-        activityIntent.setAction(StageActivity.ACTION_START_SCENE);
-        activityIntent.putExtra(StageActivity.KEY_SCENE_NAME, DownloadsScene.class.getName());
-        activityIntent.putExtra(StageActivity.KEY_SCENE_ARGS, bundle);
-        PendingIntent piActivity = PendingIntent.getActivity(DownloadService.this, 0,
-                activityIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        if (mDownloadManager != null && mDownloadManager.getRunningDownloadCount() > 1) {
+            updateAllDownloading();
+            return;
+        }
 
+        setDownloadingIntent(info.gid);
         mDownloadingBuilder.setContentTitle(EhUtils.getSuitableTitle(info))
                 .setContentText(null)
                 .setContentInfo(null)
                 .setProgress(0, 0, true)
-                .setContentIntent(piActivity);
+                .setSubText(null)
+                .setStyle(null);
 
         mDownloadingDelay.startForeground();
     }
 
+    /**
+     * Open the download of the gid, or the download list for -1.
+     */
+    private void setDownloadingIntent(long gid) {
+        if (mDownloadingGid == gid) {
+            return;
+        }
+        mDownloadingGid = gid;
+
+        Bundle bundle = new Bundle();
+        bundle.putLong(DownloadsScene.KEY_GID, gid);
+        Intent activityIntent = new Intent(this, MainActivity.class);
+        activityIntent.setAction(StageActivity.ACTION_START_SCENE);
+        activityIntent.putExtra(StageActivity.KEY_SCENE_NAME, DownloadsScene.class.getName());
+        activityIntent.putExtra(StageActivity.KEY_SCENE_ARGS, bundle);
+        PendingIntent piActivity = PendingIntent.getActivity(DownloadService.this, 0,
+                activityIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        mDownloadingBuilder.setContentIntent(piActivity);
+    }
+
     private void onUpdate(DownloadInfo info) {
         if (mNotifyManager == null) {
             return;
         }
         ensureDownloadingBuilder();
 
-        long speed = info.speed;
+        if (mDownloadManager != null && mDownloadManager.getRunningDownloadCount() > 1) {
+            updateAllDownloading();
+            return;
+        }
+
+        long speed = -1;
+        long remaining = -1;
+        if (mDownloadManager != null) {
+            speed = mDownloadManager.getSpeed(info.gid);
+            remaining = mDownloadManager.getRemainingTime(info.gid);
+        }
         if (speed < 0) {
             speed = 0;
         }
         String text = FileUtils.humanReadableByteCount(speed, false) + "/S";
-        long remaining = info.remaining;
         if (remaining >= 0) {
             text = getString(R.string.download_speed_text_2, text, ReadableTime.getShortTimeInterval(remaining));
         } else {
             text = getString(R.string.download_speed_text, text);
         }
+        setDownloadingIntent(info.gid);
         mDownloadingBuilder.setContentTitle(EhUtils.getSuitableTitle(info))
                 .setContentText(text)
                 .setContentInfo(info.total == -1 || info.finished == -1 ? null : info.finished + "/" + info.total)
-                .setProgress(info.total, info.finished, false);
+                .setProgress(info.total, info.finished, false)
+                .setSubText(getWorkerText())
+                .setStyle(null);
+
+        mDownloadingDelay.startForeground();
+    }
+
+    /**
+     * The count of download workers the running downloads are allowed now.
+     */
+    @Nullable
+    private String getWorkerText() {
+        int limit = mDownloadManager != null ? mDownloadManager.getWorkerLimit() : -1;
+        return limit > 0 ? getString(R.string.stat_download_workers, limit) : null;
+    }
+
+    /**
+     * Show all running downloads in one notification,
+     * the count, the total speed and the pages of them.
+     */
+    private void updateAllDownloading() {
+        if (mDownloadManager == null) {
+            return;
+        }
+
+        List<DownloadInfo> list = mDownloadManager.getRunningDownloadList();
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        String title = getString(R.string.stat_download_running_title, list.size());
+        style.setBigContentTitle(title);
+        int finished = 0;
+        int total = 0;
+        for (DownloadInfo info : list) {
+            if (info.total > 0 && info.finished >= 0) {
+                finished += info.finished;
+                total += info.total;
+                style.addLine(getString(R.string.stat_download_running_line,
+                        EhUtils.getSuitableTitle(info), info.finished + "/" + info.total));
+            } else {
+                style.addLine(EhUtils.getSuitableTitle(info));
+            }
+        }
+
+        String text = getString(R.string.download_speed_text,
+                FileUtils.humanReadableByteCount(mDownloadManager.getTotalSpeed(), false) + "/S");
+        setDownloadingIntent(-1L);
+        mDownloadingBuilder.setContentTitle(title)
+                .setContentText(text)
+                .setContentInfo(total == 0 ? null : finished + "/" + total)
+                .setProgress(total, finished, total == 0)
+                .setSubText(getWorkerText())
+                .setStyle(style);
 
         mDownloadingDelay.startForeground();
     }
@@ -357,8 +439,13 @@ public class DownloadService extends Service implements DownloadManager.Download
             return;
         }
 
+        // Keep it for other running downloads
         if (null != mDownloadingDelay) {
-            mDownloadingDelay.cancel();
+            if (mDownloadManager == null || mDownloadManager.getRunningDownloadCount() == 0) {
+                mDownloadingDelay.cancel();
+            } else if (mDownloadManager.getRunningDownloadCount() > 1) {
+                updateAllDownloading();
+            }
         }
 
         ensureDownloadedBuilder();
@@ -457,8 +544,13 @@ public class DownloadService extends Service implements DownloadManager.Download
             return;
         }
 
+        // Keep it for other running downloads
         if (null != mDownloadingDelay) {
-            mDownloadingDelay.cancel();
+            if (mDownloadManager == null || mDownloadManager.getRunningDownloadCount() == 0) {
+                mDownloadingDelay.cancel();
+            } else if (mDownloadManager.getRunningDownloadCount() > 1) {
+                updateAllDownloading();
+            }
         }
 
         checkStopSelf();
@@ -19,37 +19,50 @@ package com.hippo.ehviewer.gallery;
 import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import com.hippo.ehviewer.GetText;
 import com.hippo.ehviewer.R;
 import com.hippo.glgallery.GalleryPageView;
-import com.hippo.image.Image;
+import com.hippo.glview.image.ImageWrapper;
+import com.hippo.unifile.FilenameFilter;
 import com.hippo.unifile.UniFile;
+import com.hippo.util.NaturalComparator;
 import com.hippo.yorozuya.FileUtils;
 import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.StringUtils;
 import com.hippo.yorozuya.thread.PriorityThread;
 
-import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Stack;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Read images in a directory, sorted in natural order.
+ * <p>
+ * Only names are listed, it's one query for document files. The last
+ * listing of a directory is cached, so pages can be shown before
+ * the directory is listed again.
+ */
 public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
 
     private static final String TAG = DirGalleryProvider.class.getSimpleName();
     private static final AtomicInteger sIdGenerator = new AtomicInteger();
 
+    private static final LruCache<String, String[]> sListCache = new LruCache<>(8);
+
     private final UniFile mDir;
     private final Stack<Integer> mRequests = new Stack<>();
     private final AtomicInteger mDecodingIndex = new AtomicInteger(GalleryPageView.INVALID_INDEX);
-    private final AtomicReference<UniFile[]> mFileList = new AtomicReference<>();
+    private final AtomicReference<String[]> mFileList = new AtomicReference<>();
     @Nullable
     private Thread mBgThread;
     private volatile int mSize = STATE_WAIT;
@@ -85,6 +98,10 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
 
     @Override
     protected void onRequest(int index) {
+        if (requestFromCache(index)) {
+            return;
+        }
+
         synchronized (mRequests) {
             if (!mRequests.contains(index) && index != mDecodingIndex.get()) {
                 mRequests.add(index);
@@ -106,6 +123,12 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
         }
     }
 
+    @NonNull
+    @Override
+    protected String getCacheKey() {
+        return mDir.getUri().toString();
+    }
+
     @Override
     public String getError() {
         return mError;
@@ -118,17 +141,26 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
         return Integer.toString(index);
     }
 
+    @Nullable
+    private UniFile getFile(int index) {
+        String[] fileList = mFileList.get();
+        if (null == fileList || index < 0 || index >= fileList.length) {
+            return null;
+        }
+        return mDir.subFile(fileList[index]);
+    }
+
     @Override
     public boolean save(int index, @NonNull UniFile file) {
-        UniFile[] fileList = mFileList.get();
-        if (null == fileList || index < 0 || index >= fileList.length) {
+        UniFile src = getFile(index);
+        if (null == src) {
             return false;
         }
 
         InputStream is = null;
         OutputStream os = null;
         try {
-            is = fileList[index].openInputStream();
+            is = src.openInputStream();
             os = file.openOutputStream();
             IOUtils.copy(is, os);
             return true;
@@ -143,12 +175,11 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
     @Nullable
     @Override
     public UniFile save(int index, @NonNull UniFile dir, @NonNull String filename) {
-        UniFile[] fileList = mFileList.get();
-        if (null == fileList || index < 0 || index >= fileList.length) {
+        UniFile src = getFile(index);
+        if (null == src) {
             return null;
         }
 
-        UniFile src = fileList[index];
         String extension = FileUtils.getExtensionFromFilename(src.getName());
         UniFile dst = dir.subFile(null != extension ? filename + "." + extension : filename);
         if (null == dst) {
@@ -170,12 +201,54 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
         }
     }
 
+    /**
+     * List image names in natural order, null if it's not a directory.
+     */
+    @Nullable
+    private static String[] listImages(UniFile dir) {
+        final List<String> names = new ArrayList<>();
+        // Only names are needed, collect them in filter
+        UniFile[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(UniFile dir, String filename) {
+                if (StringUtils.endsWith(filename.toLowerCase(Locale.US), SUPPORT_IMAGE_EXTENSIONS)) {
+                    names.add(filename);
+                }
+                return false;
+            }
+        });
+        if (files == null) {
+            return null;
+        }
+
+        String[] result = names.toArray(new String[names.size()]);
+        NaturalComparator.sort(result);
+        return result;
+    }
+
+    private void setFileList(String[] fileList) {
+        mFileList.lazySet(fileList);
+
+        // Set state normal and notify
+        mSize = fileList.length;
+        notifyDataChanged();
+    }
+
     @Override
     public void run() {
+        // Show the last listing first
+        String key = mDir.getUri().toString();
+        String[] cached = sListCache.get(key);
+        if (cached != null) {
+            setFileList(cached);
+        }
+
         // It may take a long time, so run it in new thread
-        UniFile[] files = mDir.listFiles();
+        String[] files = listImages(mDir);
 
         if (files == null) {
+            sListCache.remove(key);
+            mFileList.lazySet(null);
             mSize = STATE_ERROR;
             mError = GetText.getString(R.string.error_not_folder_path);
 
@@ -186,15 +259,10 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
             return;
         }
 
-        // Sort it
-        Arrays.sort(files);
-
-        // Put file list
-        mFileList.lazySet(files);
-
-        // Set state normal and notify
-        mSize = files.length;
-        notifyDataChanged();
+        sListCache.put(key, files);
+        if (!Arrays.equals(files, cached)) {
+            setFileList(files);
+        }
 
         while (!Thread.currentThread().isInterrupted()) {
             int index;
@@ -213,7 +281,8 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
             }
 
             // Check index valid
-            if (index < 0 || index >= files.length) {
+            UniFile file = getFile(index);
+            if (file == null) {
                 mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
                 notifyPageFailed(index, GetText.getString(R.string.error_out_of_range));
                 continue;
@@ -221,8 +290,9 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
 
             InputStream is = null;
             try {
-                is = files[index].openInputStream();
-                Image image = Image.decode(is, true);
+                int sampleSize = PageDecoder.getSampleSize(file.openInputStream());
+                is = file.openInputStream();
+                ImageWrapper image = decode(index, is, sampleSize);
                 mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
                 if (image != null) {
                     notifyPageSucceed(index, image);
@@ -243,12 +313,4 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
 
         Log.i(TAG, "ImageDecoder end");
     }
-
-    private static class ImageFilter implements FilenameFilter {
-
-        @Override
-        public boolean accept(File dir, String filename) {
-            return StringUtils.endsWith(filename.toLowerCase(), SUPPORT_IMAGE_EXTENSIONS);
-        }
-    }
 }
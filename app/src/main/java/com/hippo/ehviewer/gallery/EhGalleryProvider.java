@@ -21,15 +21,16 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.hippo.ehviewer.client.data.GalleryInfo;
+import com.hippo.ehviewer.spider.SpiderProgress;
 import com.hippo.ehviewer.spider.SpiderQueen;
 import com.hippo.glgallery.GalleryProvider;
-import com.hippo.image.Image;
+import com.hippo.glview.image.ImageWrapper;
 import com.hippo.unifile.UniFile;
 import com.hippo.yorozuya.SimpleHandler;
 
 import java.util.Locale;
 
-public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.OnSpiderListener {
+public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.OnPageDownloadListener {
 
     private final Context mContext;
     private final GalleryInfo mGalleryInfo;
@@ -102,6 +103,13 @@ public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.O
         }
     }
 
+    @Override
+    public void setCurrentIndex(int index) {
+        if (mSpiderQueen != null) {
+            mSpiderQueen.setCurrentIndex(index);
+        }
+    }
+
     @Override
     public int size() {
         if (mSpiderQueen != null) {
@@ -113,6 +121,10 @@ public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.O
 
     @Override
     protected void onRequest(int index) {
+        if (requestFromCache(index)) {
+            return;
+        }
+
         if (mSpiderQueen != null) {
             Object object = mSpiderQueen.request(index);
             if (object instanceof Float) {
@@ -127,6 +139,9 @@ public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.O
 
     @Override
     protected void onForceRequest(int index) {
+        // It's going to be downloaded again
+        removeFromCache(index);
+
         if (mSpiderQueen != null) {
             Object object = mSpiderQueen.forceRequest(index);
             if (object instanceof Float) {
@@ -146,6 +161,12 @@ public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.O
         }
     }
 
+    @NonNull
+    @Override
+    protected String getCacheKey() {
+        return SharedImageCache.getGalleryKey(mGalleryInfo.gid);
+    }
+
     @Override
     public String getError() {
         if (mSpiderQueen != null) {
@@ -166,9 +187,12 @@ public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.O
     }
 
     @Override
-    public void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead) {
-        if (contentLength > 0) {
-            notifyPagePercent(index, (float) receivedSize / contentLength);
+    public void onPageDownload(SpiderProgress progress) {
+        for (int i = 0, n = progress.size(); i < n; i++) {
+            long contentLength = progress.getContentLength(i);
+            if (contentLength > 0) {
+                notifyPagePercent(progress.getIndex(i), (float) progress.getReceivedSize(i) / contentLength);
+            }
         }
     }
 
@@ -187,7 +211,7 @@ public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.O
     }
 
     @Override
-    public void onGetImageSuccess(int index, Image image) {
+    public void onGetImageSuccess(int index, ImageWrapper image) {
         notifyPageSucceed(index, image);
     }
 
@@ -20,8 +20,11 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.hippo.glgallery.GalleryProvider;
+import com.hippo.glview.image.ImageWrapper;
 import com.hippo.unifile.UniFile;
 
+import java.io.InputStream;
+
 public abstract class GalleryProvider2 extends GalleryProvider {
 
     // With dot
@@ -32,12 +35,60 @@ public abstract class GalleryProvider2 extends GalleryProvider {
             ".gif", // Graphics Interchange Format
     };
 
+    /**
+     * The key of the gallery in {@link SharedImageCache}.
+     */
+    @NonNull
+    protected abstract String getCacheKey();
+
+    /**
+     * Show the page if it's in {@link SharedImageCache}.
+     *
+     * @return false if it's not in the cache
+     */
+    protected boolean requestFromCache(int index) {
+        ImageWrapper image = SharedImageCache.getInstance().get(getCacheKey(), index);
+        // Keep it while glgallery takes it
+        if (image == null || !image.obtain()) {
+            return false;
+        }
+        notifyPageSucceed(index, image);
+        image.release();
+        return true;
+    }
+
+    /**
+     * Decode the page, a still one is put to {@link SharedImageCache} too.
+     *
+     * @see PageDecoder#decode(InputStream, int, String, int)
+     */
+    @Nullable
+    protected ImageWrapper decode(int index, @NonNull InputStream is, int sampleSize) {
+        return PageDecoder.decode(is, sampleSize, getCacheKey(), index);
+    }
+
+    protected boolean isInCache(int index) {
+        return SharedImageCache.getInstance().contain(getCacheKey(), index);
+    }
+
+    /**
+     * The page is going to be loaded again.
+     */
+    protected void removeFromCache(int index) {
+        SharedImageCache.getInstance().remove(getCacheKey(), index);
+    }
+
     public int getStartPage() {
         return 0;
     }
 
     public void putStartPage(int page) {}
 
+    /**
+     * Called when the page the reader is looking at changed.
+     */
+    public void setCurrentIndex(int index) {}
+
     /**
      * @return without extension
      */
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.gallery;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.hippo.ehviewer.GetText;
+import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.spider.SpiderPack;
+import com.hippo.glgallery.GalleryPageView;
+import com.hippo.glview.image.ImageWrapper;
+import com.hippo.unifile.UniFile;
+import com.hippo.yorozuya.IOUtils;
+import com.hippo.yorozuya.thread.PriorityThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Stack;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read pages from a pack file written by {@link com.hippo.ehviewer.spider.SpiderDen}.
+ */
+public class PackGalleryProvider extends GalleryProvider2 implements Runnable {
+
+    private static final String TAG = PackGalleryProvider.class.getSimpleName();
+    private static final AtomicInteger sIdGenerator = new AtomicInteger();
+
+    private final UniFile mFile;
+    private final Stack<Integer> mRequests = new Stack<>();
+    private final AtomicInteger mDecodingIndex = new AtomicInteger(GalleryPageView.INVALID_INDEX);
+    @Nullable
+    private Thread mBgThread;
+    private volatile SpiderPack mPack;
+    // Page indexes in the pack, sorted
+    private volatile int[] mIndexes;
+    private volatile int mSize = STATE_WAIT;
+    private String mError;
+
+    public PackGalleryProvider(@NonNull UniFile file) {
+        mFile = file;
+    }
+
+    @Override
+    public void start() {
+        super.start();
+
+        mBgThread = new PriorityThread(this, TAG + '-' + sIdGenerator.incrementAndGet(),
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mBgThread.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+
+        if (mBgThread != null) {
+            mBgThread.interrupt();
+            mBgThread = null;
+        }
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    protected void onRequest(int index) {
+        if (requestFromCache(index)) {
+            return;
+        }
+
+        synchronized (mRequests) {
+            if (!mRequests.contains(index) && index != mDecodingIndex.get()) {
+                mRequests.add(index);
+                mRequests.notify();
+            }
+        }
+        notifyPageWait(index);
+    }
+
+    @Override
+    protected void onForceRequest(int index) {
+        onRequest(index);
+    }
+
+    @Override
+    public void onCancelRequest(int index) {
+        synchronized (mRequests) {
+            mRequests.remove(Integer.valueOf(index));
+        }
+    }
+
+    @NonNull
+    @Override
+    protected String getCacheKey() {
+        return mFile.getUri().toString();
+    }
+
+    @Override
+    public String getError() {
+        return mError;
+    }
+
+    @NonNull
+    @Override
+    public String getImageFilename(int index) {
+        int[] indexes = mIndexes;
+        if (indexes != null && index >= 0 && index < indexes.length) {
+            index = indexes[index];
+        }
+        return String.format(Locale.US, "%08d", index + 1);
+    }
+
+    private boolean copy(int index, UniFile file) {
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = mPack.openInputStream(index);
+            os = file.openOutputStream();
+            IOUtils.copy(is, os);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(is);
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    @Override
+    public boolean save(int index, @NonNull UniFile file) {
+        int[] indexes = mIndexes;
+        if (null == indexes || index < 0 || index >= indexes.length) {
+            return false;
+        }
+        return copy(indexes[index], file);
+    }
+
+    @Nullable
+    @Override
+    public UniFile save(int index, @NonNull UniFile dir, @NonNull String filename) {
+        int[] indexes = mIndexes;
+        if (null == indexes || index < 0 || index >= indexes.length) {
+            return null;
+        }
+
+        String extension = mPack.getExtension(indexes[index]);
+        UniFile dst = dir.subFile(null != extension ? filename + extension : filename);
+        if (null == dst) {
+            return null;
+        }
+        return copy(indexes[index], dst) ? dst : null;
+    }
+
+    @Override
+    public void run() {
+        // It may take a long time if there is no index block
+        SpiderPack pack = mFile.exists() ? SpiderPack.obtain(mFile) : null;
+
+        if (pack == null) {
+            mSize = STATE_ERROR;
+            mError = GetText.getString(mFile.exists() ? R.string.error_reading_failed : R.string.error_not_found);
+
+            // Notify to to show error
+            notifyDataChanged();
+
+            Log.i(TAG, "ImageDecoder end with error");
+            return;
+        }
+
+        int[] indexes = pack.getIndexes();
+        mPack = pack;
+        mIndexes = indexes;
+
+        // Set state normal and notify
+        mSize = indexes.length;
+        notifyDataChanged();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            int index;
+            synchronized (mRequests) {
+                if (mRequests.isEmpty()) {
+                    try {
+                        mRequests.wait();
+                    } catch (InterruptedException e) {
+                        // Interrupted
+                        break;
+                    }
+                    continue;
+                }
+                index = mRequests.pop();
+                mDecodingIndex.lazySet(index);
+            }
+
+            // Check index valid
+            if (index < 0 || index >= indexes.length) {
+                mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
+                notifyPageFailed(index, GetText.getString(R.string.error_out_of_range));
+                continue;
+            }
+
+            InputStream is = null;
+            try {
+                int sampleSize = PageDecoder.getSampleSize(pack.openInputStream(indexes[index]));
+                is = pack.openInputStream(indexes[index]);
+                ImageWrapper image = decode(index, is, sampleSize);
+                mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
+                if (image != null) {
+                    notifyPageSucceed(index, image);
+                } else {
+                    notifyPageFailed(index, GetText.getString(R.string.error_decoding_failed));
+                }
+            } catch (IOException e) {
+                mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
+                notifyPageFailed(index, GetText.getString(R.string.error_reading_failed));
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
+        }
+
+        // It can still be read to save pages
+        pack.release();
+
+        Log.i(TAG, "ImageDecoder end");
+    }
+}
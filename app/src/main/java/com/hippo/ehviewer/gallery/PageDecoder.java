@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.gallery;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import com.hippo.glview.image.ImageWrapper;
+import com.hippo.image.Image;
+
+import java.io.InputStream;
+
+/**
+ * Decode pages no larger than the screen needs. The bounds are read first,
+ * a page is subsampled if both sides are twice the long side of the screen,
+ * or it has more pixels than the budget, like long strips.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * int sampleSize = PageDecoder.getSampleSize(openStream());
+ * ImageWrapper image = PageDecoder.decode(openStream(), sampleSize, gallery, index);
+ * }</pre>
+ */
+public final class PageDecoder {
+    private PageDecoder() {}
+
+    private static final String TAG = PageDecoder.class.getSimpleName();
+    private static final boolean DEBUG_LOG = false;
+
+    // Screen pixels times this
+    private static final int PIXEL_BUDGET_SCALE = 2;
+    private static final int MIN_PIXEL_BUDGET = 4 * 1024 * 1024;
+
+    private static int getScreenLongSide() {
+        DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+        return Math.max(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /**
+     * Return the sample size for the image size, power of 2.
+     */
+    static int getSampleSize(int width, int height, int screenLongSide) {
+        long budget = Math.max((long) screenLongSide * screenLongSide * PIXEL_BUDGET_SCALE, MIN_PIXEL_BUDGET);
+        int sampleSize = 1;
+        while ((width / (sampleSize * 2) >= screenLongSide && height / (sampleSize * 2) >= screenLongSide) ||
+                (long) (width / sampleSize) * (height / sampleSize) > budget) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Read the bounds of the image and return the sample size to decode it,
+     * 1 to decode it in full size, 0 for animated or unknown images.
+     * The stream is closed.
+     */
+    public static int getSampleSize(@NonNull InputStream is) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try {
+            BitmapFactory.decodeStream(is, null, options);
+        } finally {
+            try {
+                is.close();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+
+        // Let Image handle animation and unknown format
+        if (options.outWidth <= 0 || options.outHeight <= 0 || "image/gif".equals(options.outMimeType)) {
+            return 0;
+        }
+
+        int sampleSize = getSampleSize(options.outWidth, options.outHeight, getScreenLongSide());
+        if (DEBUG_LOG && sampleSize > 1) {
+            Log.d(TAG, "Subsample " + options.outWidth + "x" + options.outHeight + " by " + sampleSize);
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decode the page. A still one is put to {@link SharedImageCache},
+     * an animated one isn't cached. A page in full size is decoded by
+     * {@link Image#decode(InputStream, boolean)} partially, the rest is
+     * decoded when it's shown. The stream is closed.
+     *
+     * @param sampleSize from {@link #getSampleSize(InputStream)}
+     * @return the image to show, null if failed
+     */
+    @Nullable
+    public static ImageWrapper decode(@NonNull InputStream is, int sampleSize,
+            @NonNull String gallery, int index) {
+        Image image;
+        if (sampleSize <= 1) {
+            image = Image.decode(is, true);
+        } else {
+            image = decodeSampled(is, sampleSize);
+        }
+        if (image == null) {
+            return null;
+        }
+
+        ImageWrapper wrapper = new ImageWrapper(image);
+        if (sampleSize > 0) {
+            SharedImageCache.getInstance().put(gallery, index, wrapper, SharedImageCache.sizeOf(image));
+        }
+        return wrapper;
+    }
+
+    @Nullable
+    private static Image decodeSampled(@NonNull InputStream is, int sampleSize) {
+        Bitmap bitmap;
+        try {
+            bitmap = decodeBitmap(is, sampleSize);
+        } finally {
+            try {
+                is.close();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        // Image copies the pixels
+        Image image = Image.create(bitmap);
+        bitmap.recycle();
+        return image;
+    }
+
+    @Nullable
+    private static Bitmap decodeBitmap(@NonNull InputStream is, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        try {
+            return BitmapFactory.decodeStream(is, null, options);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Out of memory in sample size " + sampleSize);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.gallery;
+
+import android.content.ComponentCallbacks2;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.hippo.glview.image.ImageWrapper;
+import com.hippo.image.Image;
+import com.hippo.yorozuya.FileUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoded still pages of all galleries, keyed by gallery and page,
+ * bounded in bytes, the least recently used one is evicted first.
+ * <p>
+ * A page is decoded once to an {@link ImageWrapper}, the reference counted
+ * holder glgallery takes. The cache holds one reference of each page, glgallery
+ * holds one while it shows the page, the image is recycled when all are released.
+ */
+public final class SharedImageCache {
+
+    private static final String TAG = SharedImageCache.class.getSimpleName();
+    private static final boolean DEBUG_LOG = false;
+
+    // Images are in native heap
+    private static final long MIN_SIZE = 32 * 1024 * 1024;
+    private static final long MAX_SIZE = 128 * 1024 * 1024;
+
+    private static volatile SharedImageCache sInstance;
+
+    public static SharedImageCache getInstance() {
+        if (sInstance == null) {
+            synchronized (SharedImageCache.class) {
+                if (sInstance == null) {
+                    sInstance = new SharedImageCache();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * The key of an online gallery, the same for reading and downloaded.
+     */
+    public static String getGalleryKey(long gid) {
+        return Long.toString(gid);
+    }
+
+    private static String key(String gallery, int index) {
+        return gallery + '/' + index;
+    }
+
+    /**
+     * The bytes of the image, 4 bytes per pixel.
+     */
+    static long sizeOf(@NonNull Image image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    private static class Entry {
+
+        final ImageWrapper image;
+        final long size;
+
+        Entry(ImageWrapper image, long size) {
+            this.image = image;
+            this.size = size;
+        }
+    }
+
+    private final long mMaxSize;
+
+    // Guarded by this, access order
+    private final LinkedHashMap<String, Entry> mMap = new LinkedHashMap<>(32, 0.75f, true);
+    private long mSize;
+    private int mHitCount;
+    private int mMissCount;
+
+    private SharedImageCache() {
+        mMaxSize = Math.min(Math.max(Runtime.getRuntime().maxMemory() / 2, MIN_SIZE), MAX_SIZE);
+    }
+
+    private static void release(@Nullable List<Entry> entries) {
+        if (entries != null) {
+            for (Entry entry : entries) {
+                entry.image.release();
+            }
+        }
+    }
+
+    @Nullable
+    private List<Entry> trimLocked(long maxSize) {
+        List<Entry> entries = null;
+        Iterator<Map.Entry<String, Entry>> iterator = mMap.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            mSize -= entry.size;
+            if (entries == null) {
+                entries = new ArrayList<>();
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Return true if the page is in the cache.
+     */
+    public synchronized boolean contain(@NonNull String gallery, int index) {
+        return mMap.containsKey(key(gallery, index));
+    }
+
+    /**
+     * Return the image of the page. It's held by the cache, glgallery
+     * obtains its own reference, obtain one to keep it for other use.
+     *
+     * @return null if missed
+     */
+    @Nullable
+    public synchronized ImageWrapper get(@NonNull String gallery, int index) {
+        Entry entry = mMap.get(key(gallery, index));
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry.image;
+    }
+
+    /**
+     * Put the page to the cache, the old one is replaced.
+     * The cache obtains a reference of the image.
+     *
+     * @param size from {@link #sizeOf(Image)}
+     * @return false if the image is recycled
+     */
+    public boolean put(@NonNull String gallery, int index, @NonNull ImageWrapper image, long size) {
+        if (!image.obtain()) {
+            return false;
+        }
+
+        List<Entry> entries;
+        Entry old;
+        synchronized (this) {
+            old = mMap.remove(key(gallery, index));
+            if (old != null) {
+                mSize -= old.size;
+            }
+            // Make room first, the new page is always kept
+            entries = trimLocked(mMaxSize - size);
+            mMap.put(key(gallery, index), new Entry(image, size));
+            mSize += size;
+        }
+        if (old != null) {
+            old.image.release();
+        }
+        release(entries);
+        return true;
+    }
+
+    /**
+     * Remove the page from the cache.
+     */
+    public void remove(@NonNull String gallery, int index) {
+        Entry entry;
+        synchronized (this) {
+            entry = mMap.remove(key(gallery, index));
+            if (entry != null) {
+                mSize -= entry.size;
+            }
+        }
+        if (entry != null) {
+            entry.image.release();
+        }
+    }
+
+    public void trimMemory(int level) {
+        List<Entry> entries;
+        synchronized (this) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                entries = trimLocked(0);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                entries = trimLocked(mMaxSize / 2);
+            } else {
+                entries = null;
+            }
+        }
+        // Pages shown by glgallery are still held by it
+        release(entries);
+
+        if (DEBUG_LOG) {
+            Log.d(TAG, "Trim memory " + level + ", " + this);
+        }
+    }
+
+    /**
+     * The bytes of images in the cache.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Hits of all gets, 0 if no get.
+     */
+    public synchronized float getHitRate() {
+        int count = mHitCount + mMissCount;
+        return count != 0 ? (float) mHitCount / count : 0.0f;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SharedImageCache[size=" + FileUtils.humanReadableByteCount(mSize, false) +
+                ", max=" + FileUtils.humanReadableByteCount(mMaxSize, false) +
+                ", images=" + mMap.size() + ", hitRate=" + getHitRate() + "]";
+    }
+}
@@ -19,13 +19,18 @@ package com.hippo.ehviewer.gallery;
 import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.hippo.ehviewer.GetText;
 import com.hippo.ehviewer.R;
-import com.hippo.glgallery.GalleryPageView;
-import com.hippo.image.Image;
+import com.hippo.ehviewer.spider.SpiderQueen;
+import com.hippo.glview.image.ImageWrapper;
 import com.hippo.unifile.UniFile;
+import com.hippo.util.NaturalComparator;
+import com.hippo.yorozuya.FileUtils;
+import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.StringUtils;
 import com.hippo.yorozuya.thread.PriorityThread;
 
@@ -33,29 +38,73 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
+/**
+ * Decode pages of a zip file on several threads. Requested pages are
+ * decoded first, the newest first, then the neighbours of the current page
+ * are decoded ahead to {@link SharedImageCache}.
+ * <p>
+ * The sorted image entries are cached for each file, keyed by path,
+ * length and modified time, so reopening a large zip file skips the scan.
+ */
 public class ZipGalleryProvider extends GalleryProvider2 implements Runnable {
 
     private static final String TAG = ZipGalleryProvider.class.getSimpleName();
     private static final AtomicInteger sIdGenerator = new AtomicInteger();
 
+    private static final int PREFETCH_FORWARD = 2;
+    private static final int PREFETCH_BACKWARD = 1;
+
+    private static final LruCache<String, String[]> sEntryCache = new LruCache<>(8);
+
+    private static final Comparator<DecodeTask> TASK_COMPARATOR = new Comparator<DecodeTask>() {
+        @Override
+        public int compare(DecodeTask lhs, DecodeTask rhs) {
+            return lhs.order < rhs.order ? -1 : (lhs.order == rhs.order ? 0 : 1);
+        }
+    };
+
     private final File mFile;
-    private final Stack<Integer> mRequests = new Stack<>();
-    private final AtomicInteger mDecodingIndex = new AtomicInteger(GalleryPageView.INVALID_INDEX);
-    @Nullable
-    private Thread mBgThread;
+    private final int mId = sIdGenerator.incrementAndGet();
+    private final PriorityBlockingQueue<DecodeTask> mQueue =
+            new PriorityBlockingQueue<>(11, TASK_COMPARATOR);
+
+    // Guarded by mLock
+    private final Object mLock = new Object();
+    // Queued or decoding tasks
+    private final SparseArray<DecodeTask> mTasks = new SparseArray<>();
+    private final List<Thread> mThreads = new ArrayList<>();
+    private long mRequestCount;
+    private int mCurrentIndex;
+    private boolean mStopped;
+
+    private volatile ZipFile mZipFile;
+    private volatile String[] mNames;
     private volatile int mSize = STATE_WAIT;
     private String mError;
 
+    private static final class DecodeTask {
+
+        private final int index;
+        // Smaller first
+        private long order;
+        private boolean prefetch;
+
+        private DecodeTask(int index) {
+            this.index = index;
+        }
+    }
+
     public ZipGalleryProvider(File file) {
         mFile = file;
     }
@@ -64,18 +113,23 @@ public class ZipGalleryProvider extends GalleryProvider2 implements Runnable {
     public void start() {
         super.start();
 
-        mBgThread = new PriorityThread(this, TAG + '-' + sIdGenerator.incrementAndGet(),
+        Thread thread = new PriorityThread(this, TAG + '-' + mId + "-0",
                 Process.THREAD_PRIORITY_BACKGROUND);
-        mBgThread.start();
+        synchronized (mLock) {
+            mThreads.add(thread);
+        }
+        thread.start();
     }
 
     @Override
     public void stop() {
         super.stop();
 
-        if (mBgThread != null) {
-            mBgThread.interrupt();
-            mBgThread = null;
+        synchronized (mLock) {
+            mStopped = true;
+            for (Thread thread : mThreads) {
+                thread.interrupt();
+            }
         }
     }
 
@@ -86,10 +140,26 @@ public class ZipGalleryProvider extends GalleryProvider2 implements Runnable {
 
     @Override
     protected void onRequest(int index) {
-        synchronized (mRequests) {
-            if (!mRequests.contains(index) && index != mDecodingIndex.get()) {
-                mRequests.add(index);
-                mRequests.notify();
+        synchronized (mLock) {
+            // Check cache in lock, a decoded page might be put to cache
+            if (requestFromCache(index)) {
+                return;
+            }
+
+            DecodeTask task = mTasks.get(index);
+            if (task == null) {
+                task = new DecodeTask(index);
+                mTasks.put(index, task);
+            } else if (!mQueue.remove(task)) {
+                // Decoding, the result goes to glgallery
+                task.prefetch = false;
+                task = null;
+            }
+            if (task != null) {
+                // The newest request first
+                task.prefetch = false;
+                task.order = -(++mRequestCount);
+                mQueue.add(task);
             }
         }
         notifyPageWait(index);
@@ -102,11 +172,76 @@ public class ZipGalleryProvider extends GalleryProvider2 implements Runnable {
 
     @Override
     protected void onCancelRequest(int index) {
-        synchronized (mRequests) {
-            mRequests.remove(Integer.valueOf(index));
+        synchronized (mLock) {
+            DecodeTask task = mTasks.get(index);
+            if (task != null && !task.prefetch && mQueue.remove(task)) {
+                mTasks.remove(index);
+            }
+        }
+    }
+
+    @Override
+    public void setCurrentIndex(int index) {
+        synchronized (mLock) {
+            mCurrentIndex = index;
+
+            // Drop queued pages which are far away
+            for (int i = mTasks.size() - 1; i >= 0; i--) {
+                DecodeTask task = mTasks.valueAt(i);
+                if (task.prefetch && !isInWindowLocked(task.index) && mQueue.remove(task)) {
+                    mTasks.removeAt(i);
+                }
+            }
+
+            prefetchLocked();
+        }
+    }
+
+    /**
+     * Return true and drop the task if it's still a prefetch.
+     */
+    private boolean isPrefetch(DecodeTask task) {
+        synchronized (mLock) {
+            if (task.prefetch) {
+                mTasks.remove(task.index);
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    private boolean isInWindowLocked(int index) {
+        return index >= mCurrentIndex - PREFETCH_BACKWARD && index <= mCurrentIndex + PREFETCH_FORWARD;
+    }
+
+    private void prefetchLocked() {
+        String[] names = mNames;
+        if (names == null || mStopped) {
+            return;
+        }
+
+        for (int i = -PREFETCH_BACKWARD; i <= PREFETCH_FORWARD; i++) {
+            int index = mCurrentIndex + i;
+            if (i == 0 || index < 0 || index >= names.length ||
+                    mTasks.get(index) != null || isInCache(index)) {
+                continue;
+            }
+            DecodeTask task = new DecodeTask(index);
+            task.prefetch = true;
+            // Nearer first, forward first
+            task.order = Math.abs(i) * 2 + (i < 0 ? 1 : 0);
+            mTasks.put(index, task);
+            mQueue.add(task);
         }
     }
 
+    @NonNull
+    @Override
+    protected String getCacheKey() {
+        return mFile.getPath();
+    }
+
     @Override
     public String getError() {
         return mError;
@@ -115,21 +250,92 @@ public class ZipGalleryProvider extends GalleryProvider2 implements Runnable {
     @NonNull
     @Override
     public String getImageFilename(int index) {
-        // TODO
-        return Integer.toString(index);
+        String[] names = mNames;
+        String name = FileUtils.getNameFromFilename(mFile.getName());
+        if (names != null && index >= 0 && index < names.length) {
+            String entryName = names[index];
+            entryName = entryName.substring(entryName.lastIndexOf('/') + 1);
+            return name + '-' + FileUtils.getNameFromFilename(entryName);
+        } else {
+            return name + '-' + index;
+        }
+    }
+
+    @Nullable
+    private ZipEntry getEntry(int index) {
+        ZipFile zipFile = mZipFile;
+        String[] names = mNames;
+        if (zipFile == null || names == null || index < 0 || index >= names.length) {
+            return null;
+        }
+        return zipFile.getEntry(names[index]);
+    }
+
+    /**
+     * Copy the stored image data, it is not decoded.
+     */
+    private boolean copy(ZipEntry entry, UniFile file) {
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = mZipFile.getInputStream(entry);
+            os = file.openOutputStream();
+            IOUtils.copy(is, os);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(is);
+            IOUtils.closeQuietly(os);
+        }
     }
 
     @Override
     public boolean save(int index, @NonNull UniFile file) {
-        // TODO
-        return false;
+        ZipEntry entry = getEntry(index);
+        return entry != null && copy(entry, file);
     }
 
     @Nullable
     @Override
     public UniFile save(int index, @NonNull UniFile dir, @NonNull String filename) {
-        // TODO
-        return null;
+        ZipEntry entry = getEntry(index);
+        if (entry == null) {
+            return null;
+        }
+
+        String extension = FileUtils.getExtensionFromFilename(entry.getName());
+        UniFile dst = dir.subFile(null != extension ? filename + "." + extension : filename);
+        if (null == dst) {
+            return null;
+        }
+        return copy(entry, dst) ? dst : null;
+    }
+
+    /**
+     * Return sorted image entry names, from cache if the file isn't changed.
+     */
+    private static String[] getImageNames(File file, ZipFile zipFile) {
+        String key = file.getPath() + ':' + file.length() + ':' + file.lastModified();
+        String[] names = sEntryCache.get(key);
+        if (names != null) {
+            return names;
+        }
+
+        List<String> filenames = new ArrayList<>(zipFile.size());
+        Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+        while (enumeration.hasMoreElements()) {
+            ZipEntry zipEntry = enumeration.nextElement();
+            String filename = zipEntry.getName();
+            if (!zipEntry.isDirectory() && StringUtils.endsWith(filename, SUPPORT_IMAGE_EXTENSIONS)) {
+                filenames.add(filename);
+            }
+        }
+        names = filenames.toArray(new String[filenames.size()]);
+        NaturalComparator.sort(names);
+
+        sEntryCache.put(key, names);
+        return names;
     }
 
     @Override
@@ -156,71 +362,109 @@ public class ZipGalleryProvider extends GalleryProvider2 implements Runnable {
             return;
         }
 
-        // Get all image name
-        List<String> filenames = new ArrayList<>(zipFile.size());
-        Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
-        while (enumeration.hasMoreElements()) {
-            ZipEntry zipEntry = enumeration.nextElement();
-            String filename = zipEntry.getName();
-            if (!zipEntry.isDirectory() && StringUtils.endsWith(filename, SUPPORT_IMAGE_EXTENSIONS)) {
-                filenames.add(filename);
-            }
-        }
-        Collections.sort(filenames);
+        String[] names = getImageNames(mFile, zipFile);
+        mZipFile = zipFile;
+        mNames = names;
 
         // Update size and notify changed
-        mSize = filenames.size();
+        mSize = names.length;
         notifyDataChanged();
 
-        while (!Thread.currentThread().isInterrupted()) {
-            int index;
-            synchronized (mRequests) {
-                if (mRequests.isEmpty()) {
-                    try {
-                        mRequests.wait();
-                    } catch (InterruptedException e) {
-                        // Interrupted
-                        break;
-                    }
-                    continue;
+        // Start other decoders
+        synchronized (mLock) {
+            if (!mStopped) {
+                for (int i = 1, n = SpiderQueen.getDecodeThreadNum(); i < n; i++) {
+                    Thread thread = new PriorityThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            decode();
+                        }
+                    }, TAG + '-' + mId + '-' + i, Process.THREAD_PRIORITY_BACKGROUND);
+                    mThreads.add(thread);
+                    thread.start();
                 }
-                index = mRequests.pop();
-                mDecodingIndex.lazySet(index);
+                prefetchLocked();
             }
+        }
 
-            // Check index valid
-            if (index < 0 || index >= filenames.size()) {
-                mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
-                notifyPageFailed(index, GetText.getString(R.string.error_out_of_range));
-                continue;
-            }
+        decode();
+    }
+
+    private void decode() {
+        ZipFile zipFile = mZipFile;
+        String[] names = mNames;
 
+        while (!Thread.currentThread().isInterrupted()) {
+            DecodeTask task;
             try {
-                ZipEntry zipEntry = zipFile.getEntry(filenames.get(index));
-                if (zipEntry != null) {
-                    InputStream is = zipFile.getInputStream(zipEntry);
-                    Image image = Image.decode(is, true);
-                    mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
-                    if (image != null) {
-                        notifyPageSucceed(index, image);
+                task = mQueue.take();
+            } catch (InterruptedException e) {
+                // Interrupted
+                break;
+            }
+
+            int index = task.index;
+            ImageWrapper image = null;
+            String error = null;
+            if (index < 0 || index >= names.length) {
+                error = GetText.getString(R.string.error_out_of_range);
+            } else {
+                InputStream is = null;
+                try {
+                    ZipEntry zipEntry = zipFile.getEntry(names[index]);
+                    if (zipEntry != null) {
+                        int sampleSize = PageDecoder.getSampleSize(zipFile.getInputStream(zipEntry));
+                        if (sampleSize <= 0 && isPrefetch(task)) {
+                            // Animated pages aren't cached, decode it when it's requested
+                            continue;
+                        }
+                        is = zipFile.getInputStream(zipEntry);
+                        image = decode(index, is, sampleSize);
+                        if (image == null) {
+                            error = GetText.getString(R.string.error_decoding_failed);
+                        }
                     } else {
-                        notifyPageFailed(index, GetText.getString(R.string.error_decoding_failed));
+                        error = GetText.getString(R.string.error_reading_failed);
                     }
+                } catch (IOException e) {
+                    error = GetText.getString(R.string.error_reading_failed);
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+            }
+
+            boolean prefetch;
+            synchronized (mLock) {
+                mTasks.remove(index);
+                prefetch = task.prefetch;
+            }
+            // A prefetched page is held by the cache now
+
+            if (!prefetch) {
+                if (image != null) {
+                    notifyPageSucceed(index, image);
                 } else {
-                    mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
-                    notifyPageFailed(index, GetText.getString(R.string.error_reading_failed));
+                    notifyPageFailed(index, error);
                 }
-            } catch (IOException e) {
-                mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
-                notifyPageFailed(index, GetText.getString(R.string.error_reading_failed));
             }
         }
 
-        // Clear
-        try {
-            zipFile.close();
-        } catch (IOException e) {
-            // Ignore
+        // The last decoder cleans up
+        boolean last;
+        synchronized (mLock) {
+            mThreads.remove(Thread.currentThread());
+            last = mThreads.isEmpty();
+        }
+        if (last) {
+            synchronized (mLock) {
+                mTasks.clear();
+            }
+            mQueue.clear();
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                // Ignore
+            }
         }
 
         Log.i(TAG, "ImageDecoder end");
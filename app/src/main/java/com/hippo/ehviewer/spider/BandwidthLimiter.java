@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A token bucket shared by all queens to cap the image traffic.
+ * <p>
+ * Workers take tokens after reading, the bucket can go into debt,
+ * then the next reader waits until it is paid back. While a priority
+ * worker is waiting, other workers don't take tokens.
+ */
+public final class BandwidthLimiter {
+
+    private static final String TAG = BandwidthLimiter.class.getSimpleName();
+    private static final boolean DEBUG_LOG = false;
+
+    // Tokens saved for a burst at most
+    private static final long BURST_TIME = 1000;
+    private static final long MIN_BURST = 64 * 1024;
+    private static final long MIN_WAIT = 10;
+
+    private static final BandwidthLimiter sInstance = new BandwidthLimiter();
+
+    public static BandwidthLimiter getInstance() {
+        return sInstance;
+    }
+
+    // Bytes per second, 0 for no limit
+    private volatile long mRate;
+
+    // Guarded by this
+    private double mTokens;
+    private long mLastTime;
+    private int mPriorityWaiting;
+
+    BandwidthLimiter() {}
+
+    /**
+     * @param rate bytes per second, 0 for no limit
+     */
+    public synchronized void setRate(long rate) {
+        rate = Math.max(0, rate);
+        if (rate == mRate) {
+            return;
+        }
+
+        if (DEBUG_LOG) {
+            Log.d(TAG, "Rate " + rate);
+        }
+
+        mRate = rate;
+        mTokens = Math.min(mTokens, getBurst(rate));
+        mLastTime = SystemClock.uptimeMillis();
+        notifyAll();
+    }
+
+    public long getRate() {
+        return mRate;
+    }
+
+    private static long getBurst(long rate) {
+        return Math.max(MIN_BURST, rate * BURST_TIME / 1000);
+    }
+
+    private void refill(long now) {
+        long rate = mRate;
+        long interval = now - mLastTime;
+        if (interval > 0) {
+            mTokens = Math.min(getBurst(rate), mTokens + (double) rate * interval / 1000);
+            mLastTime = now;
+        }
+    }
+
+    /**
+     * Take tokens for the bytes just read, wait if there is no token.
+     * The interrupted status is kept if it is interrupted.
+     *
+     * @param priority true for pages the user is reading
+     */
+    void consume(long bytes, boolean priority) {
+        if (mRate <= 0) {
+            return;
+        }
+
+        synchronized (this) {
+            if (priority) {
+                mPriorityWaiting++;
+            }
+            try {
+                while (mRate > 0) {
+                    refill(SystemClock.uptimeMillis());
+                    if (mTokens > 0 && (priority || mPriorityWaiting == 0)) {
+                        mTokens -= bytes;
+                        return;
+                    }
+                    long wait = mTokens > 0 ? MIN_WAIT :
+                            Math.max(MIN_WAIT, (long) (-mTokens * 1000 / mRate) + 1);
+                    wait(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (priority && --mPriorityWaiting == 0) {
+                    // Let others go
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
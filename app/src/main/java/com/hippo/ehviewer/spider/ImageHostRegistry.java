@@ -0,0 +1,211 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Latency, throughput, error rate and in-flight count of image hosts (H@H nodes).
+ * It lives as long as the process, so all queens share what they learnt.
+ */
+final class ImageHostRegistry {
+
+    private static final String TAG = ImageHostRegistry.class.getSimpleName();
+    private static final boolean DEBUG_LOG = false;
+
+    // Max connections to one host
+    private static final int MAX_IN_FLIGHT = 4;
+    // Weight of new sample
+    private static final float ALPHA = 0.3f;
+    // Samples needed before judging a host
+    private static final int MIN_SAMPLES = 2;
+    private static final long SLOW_LATENCY = 5000;
+    // Bytes per second
+    private static final long SLOW_THROUGHPUT = 30 * 1024;
+    private static final float BAD_ERROR_RATE = 0.5f;
+    // Body smaller than it can't tell throughput
+    private static final long MIN_THROUGHPUT_BYTES = 32 * 1024;
+    // Forget a host after it, so it gets a new chance
+    private static final long EXPIRED_TIME = 10 * 60 * 1000;
+    private static final int MAX_HOST_COUNT = 256;
+
+    private static final ImageHostRegistry sInstance = new ImageHostRegistry();
+
+    private final Map<String, Host> mHostMap = new HashMap<>();
+
+    private static class Host {
+        int samples;
+        float latency;
+        float throughput = -1;
+        float errorRate;
+        int inFlight;
+        long lastUpdate;
+    }
+
+    static ImageHostRegistry getInstance() {
+        return sInstance;
+    }
+
+    private ImageHostRegistry() {}
+
+    private Host getHostLocked(String host) {
+        long now = SystemClock.uptimeMillis();
+        Host h = mHostMap.get(host);
+        if (h == null) {
+            if (mHostMap.size() >= MAX_HOST_COUNT) {
+                trimLocked(now);
+            }
+            h = new Host();
+            h.lastUpdate = now;
+            mHostMap.put(host, h);
+        } else if (h.inFlight == 0 && now - h.lastUpdate > EXPIRED_TIME) {
+            h.samples = 0;
+            h.latency = 0;
+            h.throughput = -1;
+            h.errorRate = 0;
+        }
+        return h;
+    }
+
+    private void trimLocked(long now) {
+        for (Iterator<Host> iterator = mHostMap.values().iterator(); iterator.hasNext();) {
+            Host h = iterator.next();
+            if (h.inFlight == 0 && now - h.lastUpdate > EXPIRED_TIME) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static float ewma(float old, float sample, boolean first) {
+        return first ? sample : old + ALPHA * (sample - old);
+    }
+
+    private static boolean isSlowLocked(Host h) {
+        return h.samples >= MIN_SAMPLES && (h.errorRate >= BAD_ERROR_RATE ||
+                h.latency >= SLOW_LATENCY ||
+                (h.throughput >= 0 && h.throughput < SLOW_THROUGHPUT));
+    }
+
+    /**
+     * Return true if another host should be requested instead of it,
+     * because it is known to be slow or it is full.
+     */
+    boolean shouldAvoid(@Nullable String host) {
+        if (host == null) {
+            return false;
+        }
+        synchronized (mHostMap) {
+            Host h = getHostLocked(host);
+            boolean avoid = h.inFlight >= MAX_IN_FLIGHT || isSlowLocked(h);
+            if (DEBUG_LOG && avoid) {
+                Log.d(TAG, "Avoid " + host + ", latency " + h.latency + ", throughput " +
+                        h.throughput + ", error rate " + h.errorRate + ", in-flight " + h.inFlight);
+            }
+            return avoid;
+        }
+    }
+
+    /**
+     * Take a connection slot of the host, wait at most the timeout if it is full.
+     *
+     * @return false if timed out
+     */
+    boolean tryAcquire(@Nullable String host, long timeout) throws InterruptedException {
+        if (host == null) {
+            return true;
+        }
+        long deadline = SystemClock.uptimeMillis() + timeout;
+        synchronized (mHostMap) {
+            Host h = getHostLocked(host);
+            while (h.inFlight >= MAX_IN_FLIGHT) {
+                long wait = deadline - SystemClock.uptimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                mHostMap.wait(wait);
+                // It might be trimmed meanwhile
+                h = getHostLocked(host);
+            }
+            h.inFlight++;
+            return true;
+        }
+    }
+
+    void release(@Nullable String host) {
+        if (host == null) {
+            return;
+        }
+        synchronized (mHostMap) {
+            Host h = mHostMap.get(host);
+            if (h != null && h.inFlight > 0) {
+                h.inFlight--;
+                mHostMap.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Got response header.
+     */
+    void onResponse(@Nullable String host, long latency) {
+        if (host == null) {
+            return;
+        }
+        synchronized (mHostMap) {
+            Host h = getHostLocked(host);
+            h.latency = ewma(h.latency, latency, h.samples == 0);
+            h.lastUpdate = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Got whole body.
+     */
+    void onSuccess(@Nullable String host, long bytes, long time) {
+        if (host == null) {
+            return;
+        }
+        synchronized (mHostMap) {
+            Host h = getHostLocked(host);
+            if (bytes >= MIN_THROUGHPUT_BYTES && time > 0) {
+                float throughput = bytes * 1000.0f / time;
+                h.throughput = ewma(h.throughput, throughput, h.throughput < 0);
+            }
+            h.errorRate = ewma(h.errorRate, 0.0f, h.samples == 0);
+            h.samples++;
+            h.lastUpdate = SystemClock.uptimeMillis();
+        }
+    }
+
+    void onError(@Nullable String host) {
+        if (host == null) {
+            return;
+        }
+        synchronized (mHostMap) {
+            Host h = getHostLocked(host);
+            h.errorRate = ewma(h.errorRate, 1.0f, h.samples == 0);
+            h.samples++;
+            h.lastUpdate = SystemClock.uptimeMillis();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+/**
+ * Plan pages to load ahead of the reader. The reading direction and
+ * the pace are learned from page changes, so pages are loaded in the
+ * direction the reader goes, and the window covers the pages the reader
+ * reaches while a page is fetched.
+ */
+final class ReadAheadScheduler {
+
+    // Weight of the newest sample
+    private static final float ALPHA = 0.3f;
+    // A page change after this long starts a new reading, pace isn't updated
+    private static final long MAX_TURN_INTERVAL = 60 * 1000;
+    // Two pages for spreads
+    private static final int MAX_STEP = 2;
+    private static final long DEFAULT_FETCH_TIME = 3 * 1000;
+    // Pages ready before the reader gets there
+    private static final float SAFETY_FACTOR = 2.0f;
+    private static final int MAX_WINDOW_SCALE = 3;
+
+    private final int mMinWindow;
+    private final int mMaxWindow;
+
+    // Guarded by this
+    private int mLastIndex = -1;
+    private long mLastTime;
+    // 1 for forward, -1 for backward
+    private float mDirection = 1.0f;
+    // Pages per second
+    private float mPace;
+    // Millis to fetch a page
+    private float mFetchTime = DEFAULT_FETCH_TIME;
+
+    /**
+     * @param minWindow the number of pages to load ahead at least,
+     *                  0 to load nothing ahead
+     */
+    ReadAheadScheduler(int minWindow) {
+        mMinWindow = Math.max(minWindow, 0);
+        mMaxWindow = mMinWindow * MAX_WINDOW_SCALE;
+    }
+
+    /**
+     * The reader turned to the page.
+     *
+     * @param time uptime millis
+     */
+    synchronized void onPageChanged(int index, long time) {
+        int step = index - mLastIndex;
+        long interval = time - mLastTime;
+        // A jump isn't reading
+        if (mLastIndex >= 0 && step != 0 && Math.abs(step) <= MAX_STEP) {
+            mDirection += ALPHA * ((step > 0 ? 1.0f : -1.0f) - mDirection);
+            if (interval > 0 && interval < MAX_TURN_INTERVAL) {
+                float pace = Math.abs(step) * 1000.0f / interval;
+                mPace = mPace == 0.0f ? pace : mPace + ALPHA * (pace - mPace);
+            }
+        }
+        mLastIndex = index;
+        mLastTime = time;
+    }
+
+    /**
+     * A page is fetched from network.
+     */
+    synchronized void onPageFetched(long millis) {
+        mFetchTime += ALPHA * (millis - mFetchTime);
+    }
+
+    synchronized boolean isForward() {
+        return mDirection >= 0.0f;
+    }
+
+    /**
+     * The number of pages to load in the reading direction.
+     */
+    synchronized int getWindow() {
+        int window = (int) Math.ceil(mPace * mFetchTime / 1000.0f * SAFETY_FACTOR);
+        return Math.max(mMinWindow, Math.min(window, mMaxWindow));
+    }
+
+    /**
+     * Pages to load around the current page, the first one first.
+     * Pages in the reading direction go first, one page in the
+     * other direction goes after the next page.
+     *
+     * @param size the number of pages, or {@code Integer.MAX_VALUE} if unknown
+     */
+    int[] plan(int current, int size) {
+        int window = getWindow();
+        if (window == 0 || current < 0) {
+            return new int[0];
+        }
+        int step = isForward() ? 1 : -1;
+
+        int[] result = new int[window + 1];
+        int count = 0;
+        for (int i = 1; i <= window; i++) {
+            int index = current + i * step;
+            if (index >= 0 && index < size) {
+                result[count++] = index;
+            }
+            if (i == 1) {
+                index = current - step;
+                if (index >= 0 && index < size) {
+                    result[count++] = index;
+                }
+            }
+        }
+
+        if (count < result.length) {
+            int[] array = new int[count];
+            System.arraycopy(result, 0, array, 0, count);
+            result = array;
+        }
+        return result;
+    }
+}
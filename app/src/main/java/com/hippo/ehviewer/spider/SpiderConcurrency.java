@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Additive increase, multiplicative decrease of worker count.
+ * <p>
+ * Throughput is sampled in windows. The limit grows by one while
+ * throughput rises, and it is halved on 509, timeout or a burst of errors.
+ * When throughput is flat, one more worker is tried now and then,
+ * and it is taken back if it doesn't help.
+ */
+final class SpiderConcurrency {
+
+    private static final String TAG = SpiderConcurrency.class.getSimpleName();
+    private static final boolean DEBUG_LOG = false;
+
+    interface Callback {
+        void onLimitIncreased(int limit);
+    }
+
+    private static final long WINDOW = 3000;
+    // Throughput must be better than it to count as rising
+    private static final float GAIN = 1.1f;
+    // Errors in a window to be a burst
+    private static final int ERROR_BURST = 3;
+    // Try one more worker after so many flat windows
+    private static final int PROBE_WINDOWS = 5;
+
+    private final int mCeiling;
+    private final Callback mCallback;
+
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private volatile long mWindowStart = SystemClock.uptimeMillis();
+
+    // Guarded by this
+    private volatile int mLimit;
+    private long mLastThroughput = -1;
+    private int mErrors;
+    private int mFlatWindows;
+    private boolean mProbing;
+    // No increase in the window after decrease
+    private boolean mCoolDown;
+
+    SpiderConcurrency(int ceiling, Callback callback) {
+        mCeiling = Math.max(1, ceiling);
+        mCallback = callback;
+        mLimit = Math.max(1, (mCeiling + 1) / 2);
+    }
+
+    int getLimit() {
+        return mLimit;
+    }
+
+    void onBytesRead(long bytes) {
+        mBytesRead.addAndGet(bytes);
+        if (SystemClock.uptimeMillis() - mWindowStart >= WINDOW) {
+            endWindow();
+        }
+    }
+
+    void on509() {
+        decrease("509");
+    }
+
+    void onError(boolean timeout) {
+        if (timeout) {
+            decrease("timeout");
+            return;
+        }
+        boolean burst;
+        synchronized (this) {
+            burst = ++mErrors >= ERROR_BURST;
+        }
+        if (burst) {
+            decrease("error burst");
+        }
+    }
+
+    private synchronized void decrease(String reason) {
+        int limit = Math.max(1, mLimit / 2);
+        if (DEBUG_LOG) {
+            Log.d(TAG, "Decrease limit to " + limit + " for " + reason);
+        }
+        mLimit = limit;
+        mErrors = 0;
+        mFlatWindows = 0;
+        mProbing = false;
+        mCoolDown = true;
+        // Throughput of more workers can't be compared
+        mLastThroughput = -1;
+    }
+
+    private void endWindow() {
+        int increasedLimit = -1;
+        synchronized (this) {
+            long now = SystemClock.uptimeMillis();
+            long elapsed = now - mWindowStart;
+            if (elapsed < WINDOW) {
+                // Other thread has done it
+                return;
+            }
+            mWindowStart = now;
+            long throughput = mBytesRead.getAndSet(0) * 1000 / elapsed;
+            mErrors = 0;
+
+            if (mCoolDown) {
+                mCoolDown = false;
+            } else if (mLastThroughput >= 0) {
+                if (throughput > mLastThroughput * GAIN) {
+                    mFlatWindows = 0;
+                    mProbing = false;
+                    if (mLimit < mCeiling) {
+                        increasedLimit = ++mLimit;
+                    }
+                } else if (mProbing) {
+                    // One more worker doesn't help
+                    mProbing = false;
+                    mLimit = Math.max(1, mLimit - 1);
+                } else if (++mFlatWindows >= PROBE_WINDOWS && mLimit < mCeiling) {
+                    mFlatWindows = 0;
+                    mProbing = true;
+                    increasedLimit = ++mLimit;
+                }
+            }
+            mLastThroughput = throughput;
+
+            if (DEBUG_LOG) {
+                Log.d(TAG, "Throughput " + throughput + " B/s, limit " + mLimit);
+            }
+        }
+
+        if (increasedLimit > 0) {
+            mCallback.onLimitIncreased(increasedLimit);
+        }
+    }
+}
@@ -16,9 +16,13 @@
 
 package com.hippo.ehviewer.spider;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.BitmapFactory;
+import android.net.Uri;
 import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.SparseArray;
 import android.webkit.MimeTypeMap;
 
 import com.hippo.beerbelly.SimpleDiskCache;
@@ -29,7 +33,6 @@ import com.hippo.ehviewer.client.EhUtils;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.gallery.GalleryProvider2;
 import com.hippo.io.UniFileInputStreamPipe;
-import com.hippo.io.UniFileOutputStreamPipe;
 import com.hippo.streampipe.InputStreamPipe;
 import com.hippo.streampipe.OutputStreamPipe;
 import com.hippo.unifile.FilenameFilter;
@@ -40,23 +43,63 @@ import com.hippo.yorozuya.MathUtils;
 import com.hippo.yorozuya.Utilities;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
 
 public final class SpiderDen {
 
+    private static final String TAG = SpiderDen.class.getSimpleName();
+
+    // Images are written to temp files, then renamed, so an image file is always complete
+    private static final String TEMP_SUFFIX = ".tmp";
+    // The old file is moved to it while a document file is replaced
+    private static final String BACKUP_SUFFIX = ".old" + TEMP_SUFFIX;
+    // Temp files older than it are left by a killed process
+    private static final long TEMP_EXPIRED_TIME = 60 * 60 * 1000;
+
     @Nullable
     private final UniFile mDownloadDir;
     private volatile int mMode = SpiderQueen.MODE_READ;
     private final long mGid;
+    // Pages of new gallery go to a pack, old one is converted
+    private final boolean mPackWanted;
+
+    // Index -> image filename in download dir, built from one listing,
+    // null if it is not built. Guarded by mIndexLock
+    @Nullable
+    private SparseArray<String> mDownloadIndex;
+    // Pages are in the pack instead of image files, null if not.
+    // Guarded by mIndexLock
+    @Nullable
+    private SpiderPack mPack;
+    private final Object mIndexLock = new Object();
+    // Held while converting between image files and the pack,
+    // writing to download dir waits for it
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+    // Nothing is written after closed, guarded by mWriteLock
+    private boolean mClosed;
 
     @Nullable
     private static SimpleDiskCache sCache;
+    @Nullable
+    private static File sPartialDir;
 
     public static void initialize(Context context) {
         sCache = new SimpleDiskCache(new File(context.getCacheDir(), "image"),
                 MathUtils.clamp(Settings.getReadCacheSize(), 40, 640) * 1024 * 1024);
+
+        File partialDir = new File(context.getCacheDir(), "spider_partial");
+        if (FileUtils.ensureDirectory(partialDir)) {
+            SpiderPartial.trim(partialDir);
+            sPartialDir = partialDir;
+        }
     }
 
     private static class StartWithFilenameFilter implements FilenameFilter {
@@ -119,8 +162,13 @@ public final class SpiderDen {
     }
 
     public SpiderDen(GalleryInfo galleryInfo) {
-        mGid = galleryInfo.gid;
-        mDownloadDir = getGalleryDownloadDir(galleryInfo);
+        this(galleryInfo.gid, getGalleryDownloadDir(galleryInfo), Settings.getDownloadPack());
+    }
+
+    SpiderDen(long gid, @Nullable UniFile downloadDir, boolean packWanted) {
+        mGid = gid;
+        mDownloadDir = downloadDir;
+        mPackWanted = packWanted;
     }
 
     public void setMode(@SpiderQueen.Mode int mode) {
@@ -167,26 +215,336 @@ public final class SpiderDen {
         return String.format(Locale.US, "%08d%s", index + 1, extension);
     }
 
+    /**
+     * @return the index of the image filename, -1 if it is not an image filename
+     */
+    private static int parseImageFilename(String filename) {
+        int dot = filename.lastIndexOf('.');
+        if (dot != 8 || !Utilities.contain(GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS, filename.substring(dot))) {
+            return -1;
+        }
+        int number = 0;
+        for (int i = 0; i < dot; i++) {
+            char ch = filename.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            number = number * 10 + (ch - '0');
+        }
+        return number - 1;
+    }
+
+    /**
+     * List download dir once to know which pages are there.
+     * Must be called in mIndexLock.
+     *
+     * @return null if there is no download dir
+     */
     @Nullable
-    private static UniFile findImageFile(UniFile dir, int index) {
-        for (String extension : GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS) {
-            String filename = generateImageFilename(index, extension);
-            UniFile file = dir.findFile(filename);
+    private SparseArray<String> getDownloadIndexLocked() {
+        if (mDownloadIndex != null) {
+            return mDownloadIndex;
+        }
+
+        UniFile dir = getDownloadDir();
+        if (dir == null) {
+            return null;
+        }
+
+        final SparseArray<String> index = new SparseArray<>();
+        final List<String> temps = new ArrayList<>();
+        final boolean[] hasPack = new boolean[1];
+        // Only names are needed, collect them in filter
+        dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(UniFile dir, String filename) {
+                int i = parseImageFilename(filename);
+                if (i >= 0) {
+                    index.put(i, filename);
+                } else if (filename.endsWith(TEMP_SUFFIX)) {
+                    temps.add(filename);
+                } else if (SpiderPack.FILENAME.equals(filename)) {
+                    hasPack[0] = true;
+                }
+                return false;
+            }
+        });
+        mDownloadIndex = index;
+
+        // Temp files left by a killed process. Another den of the gallery
+        // might be writing new ones, so only old ones are removed
+        long now = System.currentTimeMillis();
+        for (String filename : temps) {
+            UniFile file = dir.subFile(filename);
+            if (file != null && now - file.lastModified() > TEMP_EXPIRED_TIME) {
+                file.delete();
+            }
+        }
+
+        // New pack is created in getPack(), old gallery is converted in convert()
+        if (hasPack[0]) {
+            UniFile packFile = dir.subFile(SpiderPack.FILENAME);
+            mPack = packFile != null ? SpiderPack.obtain(packFile) : null;
+        }
+
+        return index;
+    }
+
+    /**
+     * Move pages between image files and the pack as the settings want,
+     * only in download mode, it's going to be written anyway.
+     * It might take long, call it in the queen thread. Pages are read in the
+     * old way while converting, writing to download dir waits for it.
+     */
+    void convert() {
+        if (mMode != SpiderQueen.MODE_DOWNLOAD) {
+            return;
+        }
+        UniFile dir = getDownloadDir();
+        if (dir == null) {
+            return;
+        }
+
+        boolean packWanted = mPackWanted;
+        mWriteLock.lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            SparseArray<String> files = null;
+            SpiderPack pack = null;
+            synchronized (mIndexLock) {
+                SparseArray<String> downloadIndex = getDownloadIndexLocked();
+                if (downloadIndex == null) {
+                    return;
+                }
+                if (packWanted && mPack == null && downloadIndex.size() > 0) {
+                    files = new SparseArray<>(downloadIndex.size());
+                    for (int i = 0, n = downloadIndex.size(); i < n; i++) {
+                        files.put(downloadIndex.keyAt(i), downloadIndex.valueAt(i));
+                    }
+                } else if (!packWanted && mPack != null) {
+                    pack = mPack;
+                }
+            }
+
+            if (files != null) {
+                packFiles(dir, files);
+            } else if (pack != null) {
+                unpackFiles(pack);
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Move image files to a new pack. Image files are kept if it failed.
+     * The pack is written with a temp name, so it's swept if the process is killed.
+     */
+    private void packFiles(UniFile dir, SparseArray<String> files) {
+        UniFile temp = dir.subFile(SpiderPack.FILENAME + TEMP_SUFFIX);
+        if (temp != null && temp.exists()) {
+            temp.delete();
+        }
+        // No one else knows the temp file
+        SpiderPack pack = temp != null ? SpiderPack.open(temp) : null;
+        if (pack == null) {
+            return;
+        }
+
+        for (int i = 0, n = files.size(); i < n; i++) {
+            String filename = files.valueAt(i);
+            UniFile file = dir.subFile(filename);
+            boolean result = false;
+            InputStream is = null;
+            try {
+                if (file != null) {
+                    is = file.openInputStream();
+                    result = pack.append(files.keyAt(i), filename.substring(filename.lastIndexOf('.')),
+                            is, file.length());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Can't pack " + filename, e);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            if (!result) {
+                pack.delete();
+                return;
+            }
+        }
+        pack.flush();
+
+        // Swap it in
+        synchronized (mIndexLock) {
+            UniFile packFile = null;
+            if (replaceFile(dir, pack.getFile(), SpiderPack.FILENAME)) {
+                packFile = dir.subFile(SpiderPack.FILENAME);
+            }
+            SpiderPack sharedPack = packFile != null ? SpiderPack.obtain(packFile) : null;
+            if (sharedPack == null) {
+                pack.delete();
+                if (packFile != null) {
+                    packFile.delete();
+                }
+                return;
+            }
+            mPack = sharedPack;
+            if (mDownloadIndex != null) {
+                mDownloadIndex.clear();
+            }
+        }
+
+        for (int i = 0, n = files.size(); i < n; i++) {
+            UniFile file = dir.subFile(files.valueAt(i));
             if (file != null) {
-                return file;
+                file.delete();
             }
         }
-        return null;
     }
 
-    private boolean containInDownloadDir(int index) {
+    /**
+     * Move pages of the pack to image files. The pack is kept if it failed,
+     * image files unpacked are removed.
+     */
+    private void unpackFiles(SpiderPack pack) {
+        List<Integer> unpacked = new ArrayList<>();
+        for (int index : pack.getIndexes()) {
+            String filename = generateImageFilename(index, fixExtension(pack.getExtension(index)));
+            UniFile temp = createTempFile(filename);
+            boolean result = false;
+            InputStream is = null;
+            OutputStream os = null;
+            try {
+                if (temp != null) {
+                    is = pack.openInputStream(index);
+                    os = temp.openOutputStream();
+                    IOUtils.copy(is, os);
+                    os.close();
+                    os = null;
+                    result = commitTempFile(index, temp, filename);
+                    temp = null;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Can't unpack page " + index, e);
+            } finally {
+                IOUtils.closeQuietly(is);
+                IOUtils.closeQuietly(os);
+                if (temp != null) {
+                    temp.delete();
+                }
+            }
+            if (!result) {
+                removeUnpackedFiles(unpacked);
+                return;
+            }
+            unpacked.add(index);
+        }
+
+        // Swap it out, image files are in the index now
+        synchronized (mIndexLock) {
+            mPack = null;
+        }
+        pack.delete();
+        pack.release();
+    }
+
+    /**
+     * Remove image files of the pages, only the pages are still in the pack.
+     */
+    private void removeUnpackedFiles(List<Integer> indexes) {
         UniFile dir = getDownloadDir();
         if (dir == null) {
-            return false;
+            return;
+        }
+        List<String> filenames = new ArrayList<>(indexes.size());
+        synchronized (mIndexLock) {
+            SparseArray<String> downloadIndex = mDownloadIndex;
+            if (downloadIndex == null) {
+                return;
+            }
+            for (int index : indexes) {
+                String filename = downloadIndex.get(index);
+                if (filename != null) {
+                    filenames.add(filename);
+                    downloadIndex.remove(index);
+                }
+            }
+        }
+        for (String filename : filenames) {
+            UniFile file = dir.subFile(filename);
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Return the pack if pages are in a pack. A new gallery
+     * gets a pack if it's wanted, only in download mode.
+     */
+    @Nullable
+    private SpiderPack getPack() {
+        synchronized (mIndexLock) {
+            SparseArray<String> downloadIndex = getDownloadIndexLocked();
+            if (mPack == null && mPackWanted && mMode == SpiderQueen.MODE_DOWNLOAD &&
+                    downloadIndex != null && downloadIndex.size() == 0) {
+                UniFile dir = getDownloadDir();
+                UniFile packFile = dir != null ? dir.subFile(SpiderPack.FILENAME) : null;
+                mPack = packFile != null ? SpiderPack.obtain(packFile) : null;
+            }
+            return mPack;
+        }
+    }
+
+    /**
+     * Write the index of the pack, so it can be opened quickly next time,
+     * and let the pack go. Nothing is written after it, reading goes on.
+     */
+    void close() {
+        mWriteLock.lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            SpiderPack pack;
+            synchronized (mIndexLock) {
+                pack = mPack;
+            }
+            if (pack != null) {
+                pack.flush();
+                pack.release();
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    @Nullable
+    private UniFile findImageFile(int index) {
+        UniFile dir = getDownloadDir();
+        if (dir == null) {
+            return null;
         }
 
-        // Find image file in download dir
-        return findImageFile(dir, index) != null;
+        String filename;
+        synchronized (mIndexLock) {
+            SparseArray<String> downloadIndex = getDownloadIndexLocked();
+            filename = downloadIndex != null ? downloadIndex.get(index) : null;
+        }
+        return filename != null ? dir.subFile(filename) : null;
+    }
+
+    private boolean containInDownloadDir(int index) {
+        synchronized (mIndexLock) {
+            SparseArray<String> downloadIndex = getDownloadIndexLocked();
+            if (mPack != null) {
+                return mPack.contain(index);
+            }
+            return downloadIndex != null && downloadIndex.get(index) != null;
+        }
     }
 
     /**
@@ -204,8 +562,18 @@ public final class SpiderDen {
         if (sCache == null) {
             return false;
         }
+        // Wait for conversion, or the page is downloaded again
+        mWriteLock.lock();
+        try {
+            return copyFromCacheToDownloadDirLocked(index);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private boolean copyFromCacheToDownloadDirLocked(int index) {
         UniFile dir = getDownloadDir();
-        if (dir == null) {
+        if (mClosed || dir == null) {
             return false;
         }
         // Find image file in cache
@@ -215,6 +583,7 @@ public final class SpiderDen {
             return false;
         }
 
+        UniFile temp = null;
         OutputStream os = null;
         try {
             // Get extension
@@ -225,24 +594,35 @@ public final class SpiderDen {
             BitmapFactory.decodeStream(pipe.open(), null, options);
             pipe.close();
             extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(options.outMimeType);
-            if (extension != null) {
-                extension = '.' + extension;
-            } else {
+            if (extension == null) {
                 return false;
             }
-            // Fix extension
-            extension = fixExtension(extension);
+            // Copy from cache to pack
+            SpiderPack pack = getPack();
+            if (pack != null) {
+                return appendToPack(pack, index, fixExtension('.' + extension), pipe.open());
+            }
             // Copy from cache to download dir
-            UniFile file = dir.createFile(generateImageFilename(index, extension));
-            if (file == null) {
+            String filename = getDownloadFilename(index, extension);
+            temp = createTempFile(filename);
+            if (temp == null) {
                 return false;
             }
-            os = file.openOutputStream();
+            os = temp.openOutputStream();
             IOUtils.copy(pipe.open(), os);
-            return true;
+            os.close();
+            os = null;
+            boolean result = commitTempFile(index, temp, filename);
+            temp = null;
+            return result;
         } catch (IOException e) {
             return false;
         } finally {
+            if (temp != null) {
+                IOUtils.closeQuietly(os);
+                os = null;
+                temp.delete();
+            }
             IOUtils.closeQuietly(os);
             pipe.close();
             pipe.release();
@@ -269,20 +649,42 @@ public final class SpiderDen {
     }
 
     private boolean removeFromDownloadDir(int index) {
+        mWriteLock.lock();
+        try {
+            return removeFromDownloadDirLocked(index);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private boolean removeFromDownloadDirLocked(int index) {
         UniFile dir = getDownloadDir();
-        if (dir == null) {
+        if (mClosed || dir == null) {
             return false;
         }
 
-        boolean result = false;
-        for (int i = 0, n = GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS.length; i < n; i++) {
-            String filename = generateImageFilename(index, GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS[i]);
-            UniFile file = dir.subFile(filename);
-            if (file != null) {
-                result |= file.delete();
+        String filename;
+        SpiderPack pack;
+        synchronized (mIndexLock) {
+            SparseArray<String> downloadIndex = getDownloadIndexLocked();
+            if (downloadIndex == null) {
+                return false;
             }
+            pack = mPack;
+            filename = downloadIndex.get(index);
+            downloadIndex.remove(index);
+        }
+
+        if (pack != null) {
+            return pack.remove(index);
+        }
+
+        if (filename != null) {
+            UniFile file = dir.subFile(filename);
+            return file != null && file.delete();
+        } else {
+            return false;
         }
-        return result;
     }
 
     public boolean remove(int index) {
@@ -304,38 +706,287 @@ public final class SpiderDen {
     /**
      * @param extension without dot
      */
+    private String getDownloadFilename(int index, @Nullable String extension) {
+        return generateImageFilename(index, fixExtension('.' + extension));
+    }
+
+    /**
+     * Create a temp file in download dir for the image file.
+     * It becomes the image file in {@link #commitTempFile(int, UniFile, String)}.
+     */
     @Nullable
-    private OutputStreamPipe openDownloadOutputStreamPipe(int index, @Nullable String extension) {
+    private UniFile createTempFile(String filename) {
         UniFile dir = getDownloadDir();
         if (dir == null) {
             return null;
         }
 
-        extension = fixExtension('.' + extension);
-        UniFile file = dir.createFile(generateImageFilename(index, extension));
-        if (file != null) {
-            return new UniFileOutputStreamPipe(file);
-        } else {
-            return null;
+        // Build the index first, or the temp file will be swept
+        synchronized (mIndexLock) {
+            getDownloadIndexLocked();
+        }
+
+        String tempFilename = filename + TEMP_SUFFIX;
+        // Document provider may give the new file another name if it exists
+        UniFile oldTemp = dir.subFile(tempFilename);
+        if (oldTemp != null && oldTemp.exists()) {
+            oldTemp.delete();
         }
+        return dir.createFile(tempFilename);
     }
 
-    @Nullable
-    public OutputStreamPipe openOutputStreamPipe(int index, @Nullable String extension) {
-        if (mMode == SpiderQueen.MODE_READ) {
-            // Return the download pipe is the gallery has been downloaded
-            OutputStreamPipe pipe = openDownloadOutputStreamPipe(index, extension);
-            if (pipe == null) {
-                pipe = openCacheOutputStreamPipe(index);
+    /**
+     * Rename the completed temp file to the image file.
+     * The temp file is deleted if it failed, the old image file is kept.
+     * Called in mWriteLock, so files are renamed out of mIndexLock.
+     */
+    private boolean commitTempFile(int index, UniFile temp, String filename) {
+        UniFile dir = getDownloadDir();
+        if (dir == null) {
+            temp.delete();
+            return false;
+        }
+
+        String oldFilename;
+        synchronized (mIndexLock) {
+            SparseArray<String> downloadIndex = getDownloadIndexLocked();
+            oldFilename = downloadIndex != null ? downloadIndex.get(index) : null;
+        }
+
+        if (!replaceFile(dir, temp, filename)) {
+            temp.delete();
+            return false;
+        }
+
+        // Remove the image with other extension after the new one is there
+        if (oldFilename != null && !oldFilename.equals(filename)) {
+            UniFile oldFile = dir.subFile(oldFilename);
+            if (oldFile != null) {
+                oldFile.delete();
             }
-            return pipe;
-        } else if (mMode == SpiderQueen.MODE_DOWNLOAD) {
-            return openDownloadOutputStreamPipe(index, extension);
+        }
+
+        synchronized (mIndexLock) {
+            SparseArray<String> downloadIndex = getDownloadIndexLocked();
+            if (downloadIndex != null) {
+                downloadIndex.put(index, filename);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rename the temp file to the filename, the old file is replaced.
+     * The old file is kept if it failed.
+     */
+    static boolean replaceFile(UniFile dir, UniFile temp, String filename) {
+        // Plain file is replaced by rename atomically
+        if (toFile(temp) != null && temp.renameTo(filename)) {
+            return true;
+        }
+
+        // Document file can't be renamed to an existing one,
+        // move the old one aside until the new one is there
+        UniFile oldFile = dir.subFile(filename);
+        String backupFilename = filename + BACKUP_SUFFIX;
+        boolean backup = false;
+        if (oldFile != null && oldFile.exists()) {
+            UniFile oldBackup = dir.subFile(backupFilename);
+            if (oldBackup != null && oldBackup.exists()) {
+                oldBackup.delete();
+            }
+            if (!oldFile.renameTo(backupFilename)) {
+                return false;
+            }
+            backup = true;
+        }
+
+        boolean result = temp.renameTo(filename);
+        UniFile backupFile = backup ? dir.subFile(backupFilename) : null;
+        if (backupFile != null) {
+            if (result) {
+                backupFile.delete();
+            } else {
+                backupFile.renameTo(filename);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A plain file in partial dir to hold data for the pack, null if there is no partial dir.
+     */
+    @Nullable
+    private File getPackTempFile(int index) {
+        File dir = sPartialDir;
+        return dir != null ? new File(dir, mGid + "-" + index + TEMP_SUFFIX) : null;
+    }
+
+    /**
+     * Append the data of the file to the pack, the file is deleted.
+     *
+     * @param extension with dot
+     */
+    private static boolean appendFileToPack(SpiderPack pack, int index, String extension, File file) {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            return pack.append(index, extension, is, file.length());
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(is);
+            file.delete();
+        }
+    }
+
+    /**
+     * The length of data must be known for the pack, so copy it to a temp file first.
+     *
+     * @param extension with dot
+     */
+    private boolean appendToPack(SpiderPack pack, int index, String extension, InputStream is) {
+        File file = getPackTempFile(index);
+        if (file == null) {
+            return false;
+        }
+
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(file);
+            IOUtils.copy(is, os);
+        } catch (IOException e) {
+            file.delete();
+            return false;
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        return appendFileToPack(pack, index, extension, file);
+    }
+
+    /**
+     * Return the file if the UniFile is a plain file.
+     */
+    @Nullable
+    static File toFile(UniFile file) {
+        Uri uri = file.getUri();
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            return new File(uri.getPath());
         } else {
             return null;
         }
     }
 
+    @Nullable
+    SpiderPartial getPartial(int index) {
+        File dir = sPartialDir;
+        return dir != null ? new SpiderPartial(dir, mGid, index) : null;
+    }
+
+    /**
+     * Move the completed data of the partial to where the image should be.
+     * It waits if pages are being converted.
+     *
+     * @param extension without dot
+     */
+    boolean commitPartial(int index, SpiderPartial partial, @Nullable String extension) {
+        mWriteLock.lock();
+        try {
+            return commitPartialLocked(index, partial, extension);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private boolean commitPartialLocked(int index, SpiderPartial partial, @Nullable String extension) {
+        if (mClosed) {
+            return false;
+        }
+
+        // Append to the pack if pages are in a pack
+        SpiderPack pack = null;
+        if (mMode == SpiderQueen.MODE_READ || mMode == SpiderQueen.MODE_DOWNLOAD) {
+            pack = getPack();
+        }
+        if (pack != null) {
+            InputStream is = null;
+            try {
+                is = partial.openInputStream();
+                if (!pack.append(index, fixExtension('.' + extension), is, partial.length())) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            partial.delete();
+            return true;
+        }
+
+        // Plain file in download dir, rename or copy by channel.
+        // In read mode, download dir is used if the gallery has been downloaded
+        String filename = getDownloadFilename(index, extension);
+        UniFile temp = null;
+        if (mMode == SpiderQueen.MODE_READ || mMode == SpiderQueen.MODE_DOWNLOAD) {
+            temp = createTempFile(filename);
+        }
+        if (temp != null) {
+            File dst = toFile(temp);
+            if (dst != null) {
+                if (partial.moveTo(dst)) {
+                    return commitTempFile(index, temp, filename);
+                } else {
+                    temp.delete();
+                    return false;
+                }
+            }
+        }
+
+        // Document file, copy by stream, it is committed only if it is written completely
+        if (temp != null) {
+            OutputStream os = null;
+            try {
+                os = temp.openOutputStream();
+                partial.copyTo(os);
+                os.close();
+                os = null;
+            } catch (IOException e) {
+                IOUtils.closeQuietly(os);
+                temp.delete();
+                return false;
+            }
+            if (!commitTempFile(index, temp, filename)) {
+                return false;
+            }
+            partial.delete();
+            return true;
+        }
+
+        // Cache
+        OutputStreamPipe pipe = null;
+        if (mMode == SpiderQueen.MODE_READ) {
+            pipe = openCacheOutputStreamPipe(index);
+        }
+        if (pipe == null) {
+            return false;
+        }
+
+        try {
+            pipe.obtain();
+            partial.copyTo(pipe.open());
+        } catch (IOException e) {
+            pipe.close();
+            removeFromCache(index);
+            return false;
+        } finally {
+            pipe.close();
+            pipe.release();
+        }
+
+        partial.delete();
+        return true;
+    }
 
     @Nullable
     private InputStreamPipe openCacheInputStreamPipe(int index) {
@@ -355,10 +1006,19 @@ public final class SpiderDen {
         }
 
         for (int i = 0; i < 2; i++) {
-            UniFile file = findImageFile(dir, index);
-            if (file != null) {
-                return new UniFileInputStreamPipe(file);
-            } else if (!copyFromCacheToDownloadDir(index)) {
+            SpiderPack pack = getPack();
+            if (pack != null) {
+                InputStreamPipe pipe = pack.openInputStreamPipe(index);
+                if (pipe != null) {
+                    return pipe;
+                }
+            } else {
+                UniFile file = findImageFile(index);
+                if (file != null) {
+                    return new UniFileInputStreamPipe(file);
+                }
+            }
+            if (!copyFromCacheToDownloadDir(index)) {
                 return null;
             }
         }
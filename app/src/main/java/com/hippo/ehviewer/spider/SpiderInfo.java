@@ -26,17 +26,43 @@ import com.hippo.unifile.UniFile;
 import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.NumberUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.BitSet;
 
+/**
+ * Version 1 and 2 are ASCII, one line for each pToken. They can only be read.
+ * <p>
+ * Version 3 is binary. A header with fixed fields is followed by records,
+ * each record is a tag byte and varint fields. Records can be appended to
+ * the end of the file as a journal, the latter one wins. The whole file
+ * is rewritten by {@link #write(OutputStream)} to compact it.
+ */
 public class SpiderInfo {
 
     private static final String TAG = SpiderInfo.class.getSimpleName();
 
     private static final String VERSION_STR = "VERSION";
-    private static final int VERSION = 2;
+    private static final int VERSION_ASCII = 2;
+
+    private static final byte[] MAGIC = {'E', 'H', 'S', 'I'};
+    private static final int VERSION = 3;
+
+    private static final int TAG_PTOKEN = 1;
+    private static final int TAG_START_PAGE = 2;
+    private static final int TAG_PREVIEW = 3;
+    private static final int TAG_FINISHED = 4;
+    private static final int TAG_UNFINISHED = 5;
+    private static final int TAG_FINISHED_PAGES = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // pToken is 10 chars, token is 10 chars
+    private static final int MAX_STRING_LENGTH = 1024;
 
     static final String TOKEN_FAILED = "failed";
 
@@ -47,6 +73,8 @@ public class SpiderInfo {
     public int previewPages = -1;
     public int previewPerPage = -1;
     public SparseArray<String> pTokenMap = null;
+    // Pages downloaded to download dir, null if unknown
+    public BitSet finishedPages = null;
 
     public static SpiderInfo read(@Nullable UniFile file) {
         if (file == null) {
@@ -95,19 +123,227 @@ public class SpiderInfo {
     }
 
     @Nullable
-    @SuppressWarnings("InfiniteLoopStatement")
     public static SpiderInfo read(@Nullable InputStream is) {
         if (null == is) {
             return null;
         }
 
+        try {
+            is = new BufferedInputStream(is);
+            is.mark(MAGIC.length);
+            boolean binary = true;
+            for (byte b : MAGIC) {
+                if (is.read() != b) {
+                    binary = false;
+                    break;
+                }
+            }
+            if (binary) {
+                return readBinary(is);
+            } else {
+                is.reset();
+                return readAscii(is);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int readVarInt(InputStream is) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = is.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readVarLong(InputStream is) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = is.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // For -1
+    private static int readSignedVarInt(InputStream is) throws IOException {
+        int n = readVarInt(is);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static String readString(InputStream is) throws IOException {
+        int length = readVarInt(is);
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Bad string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int n = is.read(bytes, offset, length - offset);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            offset += n;
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeVarInt(OutputStream os, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            os.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.write(value);
+    }
+
+    private static void writeVarLong(OutputStream os, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            os.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    private static void writeSignedVarInt(OutputStream os, int value) throws IOException {
+        writeVarInt(os, (value << 1) ^ (value >> 31));
+    }
+
+    private static void writeString(OutputStream os, String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF_8);
+        writeVarInt(os, bytes.length);
+        os.write(bytes);
+    }
+
+    @Nullable
+    private static SpiderInfo readBinary(InputStream is) throws IOException {
+        if (is.read() != VERSION) {
+            // Invalid version
+            return null;
+        }
+
+        SpiderInfo spiderInfo = new SpiderInfo();
+        spiderInfo.gid = readVarLong(is);
+        spiderInfo.token = readString(is);
+        spiderInfo.startPage = readVarInt(is);
+        spiderInfo.pages = readVarInt(is);
+        spiderInfo.previewPages = readSignedVarInt(is);
+        spiderInfo.previewPerPage = readSignedVarInt(is);
+        // Check pages
+        if (spiderInfo.pages <= 0) {
+            return null;
+        }
+        spiderInfo.pTokenMap = new SparseArray<>(spiderInfo.pages);
+        spiderInfo.finishedPages = new BitSet(spiderInfo.pages);
+
+        // Records, the tail might be truncated if the app is killed in appending
+        try {
+            for (;;) {
+                int tag = is.read();
+                if (tag == -1) {
+                    break;
+                }
+                switch (tag) {
+                    case TAG_PTOKEN: {
+                        int index = readVarInt(is);
+                        String pToken = readString(is);
+                        if (index >= 0 && index < spiderInfo.pages && !TextUtils.isEmpty(pToken)) {
+                            spiderInfo.pTokenMap.put(index, pToken);
+                        }
+                        break;
+                    }
+                    case TAG_START_PAGE:
+                        spiderInfo.startPage = readVarInt(is);
+                        break;
+                    case TAG_PREVIEW:
+                        spiderInfo.previewPages = readSignedVarInt(is);
+                        spiderInfo.previewPerPage = readSignedVarInt(is);
+                        break;
+                    case TAG_FINISHED:
+                    case TAG_UNFINISHED: {
+                        int index = readVarInt(is);
+                        if (index >= 0 && index < spiderInfo.pages) {
+                            spiderInfo.finishedPages.set(index, tag == TAG_FINISHED);
+                        }
+                        break;
+                    }
+                    case TAG_FINISHED_PAGES:
+                        readFinishedPages(is, spiderInfo.finishedPages, spiderInfo.pages);
+                        break;
+                    default:
+                        throw new IOException("Unknown tag: " + tag);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Broken spider info record", e);
+        }
+
+        if (spiderInfo.startPage < 0) {
+            spiderInfo.startPage = 0;
+        }
+        return spiderInfo;
+    }
+
+    /**
+     * One bit for a page, lowest bit first.
+     */
+    private static void readFinishedPages(InputStream is, BitSet bitSet, int pages) throws IOException {
+        int length = readVarInt(is);
+        if (length < 0 || length > (pages + 7) / 8) {
+            throw new IOException("Bad bitmap length: " + length);
+        }
+        bitSet.clear();
+        for (int i = 0; i < length; i++) {
+            int b = is.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            for (int j = 0; j < 8; j++) {
+                if ((b & (1 << j)) != 0) {
+                    bitSet.set(i * 8 + j);
+                }
+            }
+        }
+    }
+
+    private static void writeFinishedPages(OutputStream os, BitSet bitSet) throws IOException {
+        int length = (bitSet.length() + 7) / 8;
+        os.write(TAG_FINISHED_PAGES);
+        writeVarInt(os, length);
+        for (int i = 0; i < length; i++) {
+            int b = 0;
+            for (int j = 0; j < 8; j++) {
+                if (bitSet.get(i * 8 + j)) {
+                    b |= 1 << j;
+                }
+            }
+            os.write(b);
+        }
+    }
+
+    @Nullable
+    @SuppressWarnings("InfiniteLoopStatement")
+    private static SpiderInfo readAscii(InputStream is) {
         SpiderInfo spiderInfo = null;
         try {
             spiderInfo = new SpiderInfo();
             // Get version
             String line = IOUtils.readAsciiLine(is);
             int version = getVersion(line);
-            if (version == VERSION) {
+            if (version == VERSION_ASCII) {
                 // Read next line
                 line = IOUtils.readAsciiLine(is);
             } else if (version == 1) {
@@ -166,44 +402,63 @@ public class SpiderInfo {
         }
     }
 
+    /**
+     * Write the whole spider info, the stream is closed.
+     */
     public void write(@NonNull OutputStream os) {
-        OutputStreamWriter writer = null;
         try {
-            writer = new OutputStreamWriter(os);
-            writer.write(VERSION_STR);
-            writer.write(Integer.toString(VERSION));
-            writer.write("\n");
-            writer.write(String.format("%08x", startPage >= 0 ? startPage : 0)); // Avoid negative
-            writer.write("\n");
-            writer.write(Long.toString(gid));
-            writer.write("\n");
-            writer.write(token);
-            writer.write("\n");
-            writer.write("1");
-            writer.write("\n");
-            writer.write(Integer.toString(previewPages));
-            writer.write("\n");
-            writer.write(Integer.toString(previewPerPage));
-            writer.write("\n");
-            writer.write(Integer.toString(pages));
-            writer.write("\n");
+            os = new BufferedOutputStream(os);
+            os.write(MAGIC);
+            os.write(VERSION);
+            writeVarLong(os, gid);
+            writeString(os, token);
+            writeVarInt(os, startPage >= 0 ? startPage : 0); // Avoid negative
+            writeVarInt(os, pages);
+            writeSignedVarInt(os, previewPages);
+            writeSignedVarInt(os, previewPerPage);
             for (int i = 0; i < pTokenMap.size(); i++) {
-                Integer key = pTokenMap.keyAt(i);
-                String value = pTokenMap.valueAt(i);
-                if (TOKEN_FAILED.equals(value) || TextUtils.isEmpty(value)) {
-                    continue;
-                }
-                writer.write(Integer.toString(key));
-                writer.write(" ");
-                writer.write(value);
-                writer.write("\n");
+                writePTokenRecord(os, pTokenMap.keyAt(i), pTokenMap.valueAt(i));
             }
-            writer.flush();
+            if (finishedPages != null && !finishedPages.isEmpty()) {
+                writeFinishedPages(os, finishedPages);
+            }
+            os.flush();
         } catch (IOException e) {
             // Ignore
         } finally {
-            IOUtils.closeQuietly(writer);
             IOUtils.closeQuietly(os);
         }
     }
+
+    /**
+     * Records can be appended to a file written by {@link #write(OutputStream)}.
+     */
+    public static void writePTokenRecord(@NonNull OutputStream os, int index, String pToken)
+            throws IOException {
+        if (TOKEN_FAILED.equals(pToken) || TextUtils.isEmpty(pToken)) {
+            return;
+        }
+        os.write(TAG_PTOKEN);
+        writeVarInt(os, index);
+        writeString(os, pToken);
+    }
+
+    public static void writeStartPageRecord(@NonNull OutputStream os, int startPage)
+            throws IOException {
+        os.write(TAG_START_PAGE);
+        writeVarInt(os, startPage >= 0 ? startPage : 0);
+    }
+
+    public static void writePreviewRecord(@NonNull OutputStream os, int previewPages, int previewPerPage)
+            throws IOException {
+        os.write(TAG_PREVIEW);
+        writeSignedVarInt(os, previewPages);
+        writeSignedVarInt(os, previewPerPage);
+    }
+
+    public static void writeFinishedRecord(@NonNull OutputStream os, int index, boolean finished)
+            throws IOException {
+        os.write(finished ? TAG_FINISHED : TAG_UNFINISHED);
+        writeVarInt(os, index);
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure the throughput of a queen and estimate the remaining time.
+ * <p>
+ * Workers only bump atomic counters. The speed is sampled when it is read,
+ * it is exponentially decayed at three horizons. The size of a page which
+ * is not started is guessed from finished pages.
+ */
+public final class SpiderMeter {
+
+    /**
+     * About 5 seconds, for the current speed.
+     */
+    public static final int HORIZON_SHORT = 0;
+    /**
+     * About 30 seconds, for the remaining time.
+     */
+    public static final int HORIZON_MEDIUM = 1;
+    /**
+     * About 5 minutes.
+     */
+    public static final int HORIZON_LONG = 2;
+
+    private static final long[] HORIZONS = {5 * 1000, 30 * 1000, 5 * 60 * 1000};
+    private static final long MIN_SAMPLE_INTERVAL = 200;
+
+    // Written by workers
+    private final AtomicLong mBytesRead = new AtomicLong();
+    // Pages in progress with known length
+    private final AtomicInteger mActivePages = new AtomicInteger();
+    private final AtomicLong mActiveLength = new AtomicLong();
+    private final AtomicLong mActiveRemaining = new AtomicLong();
+    private final AtomicInteger mFinishedPages = new AtomicInteger();
+    private final AtomicLong mFinishedLength = new AtomicLong();
+
+    // Guarded by this
+    private long mStartTime = -1;
+    private long mSampleTime = -1;
+    private long mSampleBytes;
+    // Bytes per millisecond, biased to zero before a horizon passed
+    private final double[] mRates = new double[HORIZONS.length];
+
+    /**
+     * A page starts to read.
+     *
+     * @param contentLength -1 for unknown
+     * @param receivedSize the size read before, not counted in speed
+     */
+    void onPageStart(long contentLength, long receivedSize) {
+        if (contentLength > 0) {
+            mActivePages.incrementAndGet();
+            mActiveLength.addAndGet(contentLength);
+            mActiveRemaining.addAndGet(contentLength - receivedSize);
+        }
+    }
+
+    void onBytesRead(long contentLength, long bytes) {
+        mBytesRead.addAndGet(bytes);
+        if (contentLength > 0) {
+            mActiveRemaining.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * A page stops reading, it might be finished or not.
+     */
+    void onPageEnd(long contentLength, long receivedSize) {
+        if (contentLength > 0) {
+            mActivePages.decrementAndGet();
+            mActiveLength.addAndGet(-contentLength);
+            mActiveRemaining.addAndGet(-(contentLength - receivedSize));
+        }
+    }
+
+    /**
+     * A page is downloaded, its size is a hint for pages not started.
+     */
+    void onPageFinished(long size) {
+        if (size > 0) {
+            mFinishedPages.incrementAndGet();
+            mFinishedLength.addAndGet(size);
+        }
+    }
+
+    private synchronized void sample(long now) {
+        long bytes = mBytesRead.get();
+        if (mSampleTime < 0 || (mStartTime < 0 && bytes == mSampleBytes)) {
+            // Start after the first bytes
+            mSampleTime = now;
+            mSampleBytes = bytes;
+            return;
+        }
+
+        long interval = now - mSampleTime;
+        if (interval < MIN_SAMPLE_INTERVAL) {
+            return;
+        }
+        if (mStartTime < 0) {
+            mStartTime = mSampleTime;
+        }
+        double rate = (double) (bytes - mSampleBytes) / interval;
+        for (int i = 0; i < HORIZONS.length; i++) {
+            double alpha = 1.0 - Math.exp(-(double) interval / HORIZONS[i]);
+            mRates[i] += alpha * (rate - mRates[i]);
+        }
+        mSampleTime = now;
+        mSampleBytes = bytes;
+    }
+
+    synchronized long getSpeed(int horizon, long now) {
+        sample(now);
+        if (mStartTime < 0 || mSampleTime <= mStartTime) {
+            return -1;
+        }
+        // Remove the bias of the zero start
+        double weight = 1.0 - Math.exp(-(double) (mSampleTime - mStartTime) / HORIZONS[horizon]);
+        return (long) (mRates[horizon] / weight * 1000);
+    }
+
+    /**
+     * Return bytes per second in the horizon, -1 if it is unknown.
+     */
+    public long getSpeed(int horizon) {
+        return getSpeed(horizon, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Return the guessed size of a page, -1 if it is unknown.
+     */
+    public long getPageSize() {
+        int finished = mFinishedPages.get();
+        if (finished > 0) {
+            return mFinishedLength.get() / finished;
+        }
+        int active = mActivePages.get();
+        if (active > 0) {
+            return mActiveLength.get() / active;
+        }
+        return -1;
+    }
+
+    long getRemainingTime(int remainingPages, long now) {
+        long speed = getSpeed(HORIZON_MEDIUM, now);
+        if (speed <= 0) {
+            return -1;
+        }
+        long bytes = Math.max(0, mActiveRemaining.get());
+        int notStarted = remainingPages - mActivePages.get();
+        if (notStarted > 0) {
+            long pageSize = getPageSize();
+            if (pageSize < 0) {
+                return -1;
+            }
+            bytes += notStarted * pageSize;
+        }
+        return bytes * 1000 / speed;
+    }
+
+    /**
+     * Return the remaining time in milliseconds, -1 if it is unknown.
+     *
+     * @param remainingPages pages not finished, including pages in progress
+     */
+    public long getRemainingTime(int remainingPages) {
+        return getRemainingTime(remainingPages, SystemClock.uptimeMillis());
+    }
+}
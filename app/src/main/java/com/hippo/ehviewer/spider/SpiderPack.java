@@ -0,0 +1,888 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.unifile.UniFile;
+import com.hippo.yorozuya.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * All pages of a gallery in one file. Thousands of small files are
+ * very slow to list and delete on document storage.
+ * <p>
+ * The file is a header and a list of blocks, only appended.
+ * A page block is appended for each page, a remove block for each removed page.
+ * An index block of all pages is appended now and then. If the file ends
+ * with an index block, it is opened without reading other blocks, or blocks
+ * are walked from the start. A torn block left by a killed process is
+ * dropped by rewriting the file.
+ * <p>
+ * A pack file must be written by one instance only, get it by
+ * {@link #obtain(UniFile)} and {@link #release()}.
+ * <pre>
+ * header: MAGIC (4) | VERSION (4)
+ * block:  type (1) | body length (4) | body
+ * page:   index (4) | extension length (1) | extension | data
+ * remove: index (4)
+ * index:  count (4) | count * (index (4) | offset (8) | length (4) | extension length (1) | extension)
+ *         | offset of the block (8) | INDEX_MAGIC (4)
+ * </pre>
+ */
+public final class SpiderPack {
+
+    private static final String TAG = SpiderPack.class.getSimpleName();
+
+    public static final String FILENAME = "pages.ehpack";
+    // With dot
+    public static final String EXTENSION = ".ehpack";
+
+    private static final int MAGIC = 0x45485041;
+    private static final int VERSION = 1;
+    private static final int INDEX_MAGIC = 0x494E4458;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int BLOCK_HEADER_SIZE = 5;
+    private static final int INDEX_TAIL_SIZE = 12;
+
+    private static final byte BLOCK_PAGE = 1;
+    private static final byte BLOCK_REMOVE = 2;
+    private static final byte BLOCK_INDEX = 3;
+
+    // Append an index block after so many changes
+    private static final int INDEX_INTERVAL = 64;
+    // Compact in flush if space of replaced or removed pages is more than
+    // both of it and a quarter of the file
+    private static final long COMPACT_MIN_DEAD_BYTES = 1024 * 1024;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static class Entry {
+        final long offset;
+        final int length;
+        // With dot
+        final String extension;
+
+        Entry(long offset, int length, String extension) {
+            this.offset = offset;
+            this.length = length;
+            this.extension = extension;
+        }
+    }
+
+    // Shared packs by uri, guarded by itself
+    private static final HashMap<String, SpiderPack> sPacks = new HashMap<>();
+
+    // The key in sPacks, null if it isn't shared. Guarded by sPacks
+    @Nullable
+    private String mKey;
+    private int mReferences;
+
+    private UniFile mFile;
+    // Guarded by this
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+    private long mLength;
+    // Changes after last index block
+    private int mChanges;
+    // The file has a torn block at the end, rewrite it before appending
+    private boolean mBroken;
+    // Changed when the file is replaced or deleted
+    private int mGeneration;
+
+    // Compactions one by one, taken before this
+    private final Object mCompactLock = new Object();
+
+    private SpiderPack(UniFile file) {
+        mFile = file;
+    }
+
+    /**
+     * Get the shared pack of the file, call {@link #release()} after use.
+     * It is created when the first page is appended.
+     *
+     * @return null if it is not a pack file
+     */
+    @Nullable
+    public static SpiderPack obtain(@NonNull UniFile file) {
+        String key = file.getUri().toString();
+        synchronized (sPacks) {
+            SpiderPack pack = sPacks.get(key);
+            if (pack == null) {
+                pack = open(file);
+                if (pack == null) {
+                    return null;
+                }
+                pack.mKey = key;
+                sPacks.put(key, pack);
+            } else {
+                pack.resetIfGone();
+            }
+            pack.mReferences++;
+            return pack;
+        }
+    }
+
+    /**
+     * Let the pack from {@link #obtain(UniFile)} go.
+     */
+    public void release() {
+        synchronized (sPacks) {
+            if (mKey != null && --mReferences == 0) {
+                sPacks.remove(mKey);
+                mKey = null;
+            }
+        }
+    }
+
+    /**
+     * The file is deleted with its dir while the pack is held,
+     * the pages are gone too.
+     */
+    private synchronized void resetIfGone() {
+        if (mLength > 0 && !mFile.exists()) {
+            Log.w(TAG, "Pack is gone " + mFile.getUri());
+            mEntries.clear();
+            mLength = 0;
+            mChanges = 0;
+            mBroken = false;
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Open the pack file not shared, only for files no one else knows,
+     * it is created when the first page is appended.
+     *
+     * @return null if it is not a pack file
+     */
+    @Nullable
+    public static SpiderPack open(@NonNull UniFile file) {
+        SpiderPack pack = new SpiderPack(file);
+        if (!file.exists()) {
+            return pack;
+        }
+        try {
+            if (!pack.readIndexBlock() && !pack.walkBlocks()) {
+                return null;
+            }
+            return pack;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't open pack " + file.getUri(), e);
+            return null;
+        }
+    }
+
+    private static void skipFully(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                if (is.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static InputStream openInputStreamAt(UniFile file, long offset) throws IOException {
+        InputStream is = file.openInputStream();
+        try {
+            skipFully(is, offset);
+            return is;
+        } catch (IOException e) {
+            IOUtils.closeQuietly(is);
+            throw e;
+        }
+    }
+
+    private static Entry readEntry(DataInputStream dis) throws IOException {
+        long offset = dis.readLong();
+        int length = dis.readInt();
+        byte[] extension = new byte[dis.readUnsignedByte()];
+        dis.readFully(extension);
+        return new Entry(offset, length, new String(extension, "US-ASCII"));
+    }
+
+    /**
+     * Read the index block at the end of the file.
+     *
+     * @return false if the file doesn't end with an index block
+     */
+    private boolean readIndexBlock() throws IOException {
+        long length = mFile.length();
+        if (length < HEADER_SIZE + BLOCK_HEADER_SIZE + 4 + INDEX_TAIL_SIZE) {
+            return false;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(openInputStreamAt(mFile, length - INDEX_TAIL_SIZE));
+            long offset = dis.readLong();
+            if (dis.readInt() != INDEX_MAGIC || offset < HEADER_SIZE || offset >= length) {
+                return false;
+            }
+            dis.close();
+
+            dis = new DataInputStream(new BufferedInputStream(openInputStreamAt(mFile, offset)));
+            if (dis.readByte() != BLOCK_INDEX || dis.readInt() != length - offset - BLOCK_HEADER_SIZE) {
+                return false;
+            }
+            int count = dis.readInt();
+            SparseArray<Entry> entries = new SparseArray<>(count);
+            for (int i = 0; i < count; i++) {
+                int index = dis.readInt();
+                entries.put(index, readEntry(dis));
+            }
+
+            synchronized (this) {
+                mEntries.clear();
+                for (int i = 0, n = entries.size(); i < n; i++) {
+                    mEntries.put(entries.keyAt(i), entries.valueAt(i));
+                }
+                mLength = length;
+            }
+            return true;
+        } finally {
+            IOUtils.closeQuietly(dis);
+        }
+    }
+
+    /**
+     * Walk all blocks from the start.
+     *
+     * @return false if it is not a pack file
+     */
+    private boolean walkBlocks() throws IOException {
+        long length = mFile.length();
+        if (length == 0) {
+            // Created but nothing written, the header is written with the first page
+            return true;
+        }
+        SparseArray<Entry> entries = new SparseArray<>();
+        long position;
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(mFile.openInputStream()));
+            if (length < HEADER_SIZE || dis.readInt() != MAGIC || dis.readInt() > VERSION) {
+                return false;
+            }
+            position = HEADER_SIZE;
+
+            while (position + BLOCK_HEADER_SIZE <= length) {
+                byte type = dis.readByte();
+                int bodyLength = dis.readInt();
+                long end = position + BLOCK_HEADER_SIZE + bodyLength;
+                if (bodyLength < 0 || end > length) {
+                    // Torn
+                    break;
+                }
+                if (type == BLOCK_PAGE) {
+                    int index = dis.readInt();
+                    byte[] extension = new byte[dis.readUnsignedByte()];
+                    dis.readFully(extension);
+                    int headLength = 4 + 1 + extension.length;
+                    if (headLength > bodyLength) {
+                        break;
+                    }
+                    entries.put(index, new Entry(position + BLOCK_HEADER_SIZE + headLength,
+                            bodyLength - headLength, new String(extension, "US-ASCII")));
+                    skipFully(dis, bodyLength - headLength);
+                } else if (type == BLOCK_REMOVE) {
+                    if (bodyLength < 4) {
+                        break;
+                    }
+                    entries.remove(dis.readInt());
+                    skipFully(dis, bodyLength - 4);
+                } else if (type == BLOCK_INDEX) {
+                    // Pages are known from page blocks
+                    skipFully(dis, bodyLength);
+                } else {
+                    break;
+                }
+                position = end;
+            }
+        } finally {
+            IOUtils.closeQuietly(dis);
+        }
+
+        synchronized (this) {
+            mEntries.clear();
+            for (int i = 0, n = entries.size(); i < n; i++) {
+                mEntries.put(entries.keyAt(i), entries.valueAt(i));
+            }
+            mLength = length;
+            mBroken = position != length;
+            // No index block at the end
+            mChanges = 1;
+        }
+        if (mBroken) {
+            Log.w(TAG, "Torn block at " + position + " of " + mFile.getUri());
+        }
+        return true;
+    }
+
+    @NonNull
+    public UniFile getFile() {
+        return mFile;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Return page indexes in ascending order.
+     */
+    public synchronized int[] getIndexes() {
+        int[] indexes = new int[mEntries.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = mEntries.keyAt(i);
+        }
+        return indexes;
+    }
+
+    public synchronized boolean contain(int index) {
+        return mEntries.get(index) != null;
+    }
+
+    /**
+     * @return extension with dot, null if there is no such page
+     */
+    @Nullable
+    public synchronized String getExtension(int index) {
+        Entry entry = mEntries.get(index);
+        return entry != null ? entry.extension : null;
+    }
+
+    /**
+     * @return the data length of the page, -1 if there is no such page
+     */
+    public synchronized long getLength(int index) {
+        Entry entry = mEntries.get(index);
+        return entry != null ? entry.length : -1;
+    }
+
+    /**
+     * Open the data of the page. It is memory-mapped if it is a plain file.
+     * <p>
+     * It is opened in the lock, so compaction can't replace the file between
+     * getting the offset and opening it. The opened stream keeps reading
+     * the old file after compaction.
+     */
+    @NonNull
+    public synchronized InputStream openInputStream(int index) throws IOException {
+        Entry entry = mEntries.get(index);
+        if (entry == null) {
+            throw new FileNotFoundException("No page " + index + " in " + mFile.getUri());
+        }
+        return openInputStream(mFile, entry);
+    }
+
+    private static InputStream openInputStream(UniFile file, Entry entry) throws IOException {
+        File plainFile = SpiderDen.toFile(file);
+        if (plainFile != null) {
+            RandomAccessFile raf = new RandomAccessFile(plainFile, "r");
+            try {
+                // The mapping is valid after the channel is closed
+                return new ByteBufferInputStream(raf.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, entry.offset, entry.length));
+            } finally {
+                IOUtils.closeQuietly(raf);
+            }
+        } else {
+            return new LimitedInputStream(openInputStreamAt(file, entry.offset), entry.length);
+        }
+    }
+
+    @Nullable
+    public InputStreamPipe openInputStreamPipe(int index) {
+        return contain(index) ? new PagePipe(index) : null;
+    }
+
+    private DataOutputStream openAppendStream() throws IOException {
+        if (!mFile.exists()) {
+            UniFile dir = mFile.getParentFile();
+            UniFile file = dir != null ? dir.createFile(mFile.getName()) : null;
+            if (file == null) {
+                throw new IOException("Can't create " + mFile.getUri());
+            }
+            mFile = file;
+            mLength = 0;
+        }
+        OutputStream os = mFile.openOutputStream(true);
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+        if (mLength == 0) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            mLength = HEADER_SIZE;
+        }
+        return dos;
+    }
+
+    private synchronized boolean isBroken() {
+        return mBroken;
+    }
+
+    /**
+     * Append a page, it replaces the old one.
+     *
+     * @param extension with dot
+     * @param length the exact length of data in the stream
+     */
+    public boolean append(int index, @NonNull String extension,
+            @NonNull InputStream is, long length) {
+        // Drop the torn block first
+        if (isBroken() && !compact()) {
+            return false;
+        }
+        synchronized (this) {
+            return !mBroken && appendLocked(index, extension, is, length);
+        }
+    }
+
+    private boolean appendLocked(int index, String extension, InputStream is, long length) {
+
+        DataOutputStream dos = null;
+        try {
+            byte[] ext = extension.getBytes("US-ASCII");
+            int headLength = 4 + 1 + ext.length;
+            if (ext.length > 255 || length < 0 || length > Integer.MAX_VALUE - BLOCK_HEADER_SIZE - headLength) {
+                return false;
+            }
+
+            dos = openAppendStream();
+            long position = mLength;
+            dos.writeByte(BLOCK_PAGE);
+            dos.writeInt((int) (headLength + length));
+            dos.writeInt(index);
+            dos.writeByte(ext.length);
+            dos.write(ext);
+
+            byte[] buffer = new byte[8 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) {
+                    throw new EOFException("Expect " + remaining + " more bytes");
+                }
+                dos.write(buffer, 0, n);
+                remaining -= n;
+            }
+            dos.flush();
+
+            mLength = position + BLOCK_HEADER_SIZE + headLength + length;
+            mEntries.put(index, new Entry(position + BLOCK_HEADER_SIZE + headLength, (int) length, extension));
+            onChangedLocked();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't append page " + index + " to " + mFile.getUri(), e);
+            // Some bytes might be written
+            mBroken = true;
+            return false;
+        } finally {
+            IOUtils.closeQuietly(dos);
+        }
+    }
+
+    public boolean remove(int index) {
+        if (isBroken() && !compact()) {
+            return false;
+        }
+        synchronized (this) {
+            return !mBroken && removeLocked(index);
+        }
+    }
+
+    private boolean removeLocked(int index) {
+        if (mEntries.get(index) == null) {
+            return false;
+        }
+
+        DataOutputStream dos = null;
+        try {
+            dos = openAppendStream();
+            dos.writeByte(BLOCK_REMOVE);
+            dos.writeInt(4);
+            dos.writeInt(index);
+            dos.flush();
+            mLength += BLOCK_HEADER_SIZE + 4;
+            mEntries.remove(index);
+            onChangedLocked();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't remove page " + index + " from " + mFile.getUri(), e);
+            mBroken = true;
+            return false;
+        } finally {
+            IOUtils.closeQuietly(dos);
+        }
+    }
+
+    private void onChangedLocked() {
+        if (++mChanges >= INDEX_INTERVAL) {
+            writeIndexBlockLocked();
+        }
+    }
+
+    private void writeIndexBlockLocked() {
+        DataOutputStream dos = null;
+        try {
+            int bodyLength = 4 + INDEX_TAIL_SIZE;
+            byte[][] extensions = new byte[mEntries.size()][];
+            for (int i = 0, n = mEntries.size(); i < n; i++) {
+                extensions[i] = mEntries.valueAt(i).extension.getBytes("US-ASCII");
+                bodyLength += 4 + 8 + 4 + 1 + extensions[i].length;
+            }
+
+            dos = openAppendStream();
+            long position = mLength;
+            dos.writeByte(BLOCK_INDEX);
+            dos.writeInt(bodyLength);
+            dos.writeInt(mEntries.size());
+            for (int i = 0, n = mEntries.size(); i < n; i++) {
+                Entry entry = mEntries.valueAt(i);
+                dos.writeInt(mEntries.keyAt(i));
+                dos.writeLong(entry.offset);
+                dos.writeInt(entry.length);
+                dos.writeByte(extensions[i].length);
+                dos.write(extensions[i]);
+            }
+            dos.writeLong(position);
+            dos.writeInt(INDEX_MAGIC);
+            dos.flush();
+
+            mLength = position + BLOCK_HEADER_SIZE + bodyLength;
+            mChanges = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write index to " + mFile.getUri(), e);
+            mBroken = true;
+        } finally {
+            IOUtils.closeQuietly(dos);
+        }
+    }
+
+    /**
+     * Return bytes of blocks which are not pages in the pack.
+     */
+    private long getDeadBytesLocked() {
+        long live = HEADER_SIZE;
+        for (int i = 0, n = mEntries.size(); i < n; i++) {
+            Entry entry = mEntries.valueAt(i);
+            live += BLOCK_HEADER_SIZE + 4 + 1 + entry.extension.length() + entry.length;
+        }
+        return mLength - live;
+    }
+
+    /**
+     * Append an index block if pages are changed, so it can be opened quickly.
+     * The file is compacted instead if too much space is wasted.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (mChanges == 0) {
+                return;
+            }
+            long dead = getDeadBytesLocked();
+            if (!mBroken && (dead <= COMPACT_MIN_DEAD_BYTES || dead <= mLength / 4)) {
+                writeIndexBlockLocked();
+                return;
+            }
+        }
+        // The index is written in compaction
+        if (!compact()) {
+            synchronized (this) {
+                if (!mBroken && mChanges != 0) {
+                    writeIndexBlockLocked();
+                }
+            }
+        }
+    }
+
+    private static SparseArray<Entry> copyOf(SparseArray<Entry> entries) {
+        SparseArray<Entry> copy = new SparseArray<>(entries.size());
+        for (int i = 0, n = entries.size(); i < n; i++) {
+            copy.put(entries.keyAt(i), entries.valueAt(i));
+        }
+        return copy;
+    }
+
+    /**
+     * Copy the page from the file to the pack.
+     *
+     * @return false if it can't be appended
+     */
+    private static boolean copyPage(UniFile file, int index, Entry entry, SpiderPack pack) {
+        InputStream is = null;
+        try {
+            is = openInputStream(file, entry);
+            return pack.append(index, entry.extension, is, entry.length);
+        } catch (IOException e) {
+            // Drop the page, it can be downloaded again
+            Log.w(TAG, "Can't read page " + index + " of " + file.getUri(), e);
+            return true;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Rewrite the file with only the pages, the torn block
+     * and the space of replaced or removed pages are dropped.
+     * <p>
+     * Pages are copied to a temp file without the lock, reading and appending
+     * go on meanwhile. Pages changed meanwhile are copied again in the lock,
+     * then the temp file replaces the file.
+     */
+    public boolean compact() {
+        synchronized (mCompactLock) {
+            UniFile file;
+            SparseArray<Entry> entries;
+            int generation;
+            synchronized (this) {
+                file = mFile;
+                entries = copyOf(mEntries);
+                generation = mGeneration;
+            }
+
+            UniFile dir = file.getParentFile();
+            String filename = file.getName();
+            if (dir == null || filename == null) {
+                return false;
+            }
+            UniFile oldTemp = dir.subFile(filename + TEMP_SUFFIX);
+            if (oldTemp != null && oldTemp.exists()) {
+                oldTemp.delete();
+            }
+            UniFile temp = dir.createFile(filename + TEMP_SUFFIX);
+            if (temp == null) {
+                return false;
+            }
+
+            SpiderPack pack = new SpiderPack(temp);
+            for (int i = 0, n = entries.size(); i < n; i++) {
+                if (!copyPage(file, entries.keyAt(i), entries.valueAt(i), pack)) {
+                    pack.delete();
+                    return false;
+                }
+            }
+
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    // Deleted meanwhile
+                    pack.delete();
+                    return false;
+                }
+
+                // Catch up with changes meanwhile
+                for (int i = 0, n = entries.size(); i < n; i++) {
+                    int index = entries.keyAt(i);
+                    if (mEntries.get(index) == null && !pack.remove(index) && pack.isBroken()) {
+                        pack.delete();
+                        return false;
+                    }
+                }
+                for (int i = 0, n = mEntries.size(); i < n; i++) {
+                    int index = mEntries.keyAt(i);
+                    Entry entry = mEntries.valueAt(i);
+                    if (entries.get(index) != entry && !copyPage(file, index, entry, pack)) {
+                        pack.delete();
+                        return false;
+                    }
+                }
+
+                synchronized (pack) {
+                    pack.writeIndexBlockLocked();
+                }
+                if (pack.isBroken() || !SpiderDen.replaceFile(dir, pack.mFile, filename)) {
+                    pack.delete();
+                    return false;
+                }
+
+                // Some file can't follow the rename
+                UniFile newFile = dir.subFile(filename);
+                mFile = newFile != null ? newFile : pack.mFile;
+                mEntries.clear();
+                for (int i = 0, n = pack.mEntries.size(); i < n; i++) {
+                    mEntries.put(pack.mEntries.keyAt(i), pack.mEntries.valueAt(i));
+                }
+                mLength = pack.mLength;
+                mChanges = 0;
+                mBroken = false;
+                mGeneration++;
+                return true;
+            }
+        }
+    }
+
+    public synchronized boolean delete() {
+        mEntries.clear();
+        mLength = 0;
+        mChanges = 0;
+        mBroken = false;
+        mGeneration++;
+        return mFile.delete();
+    }
+
+    private class PagePipe implements InputStreamPipe {
+
+        private final int mIndex;
+        private InputStream mIs;
+
+        public PagePipe(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void obtain() {
+            // Empty
+        }
+
+        @Override
+        public void release() {
+            // Empty
+        }
+
+        @NonNull
+        @Override
+        public InputStream open() throws IOException {
+            if (mIs != null) {
+                throw new IllegalStateException("Please close it first");
+            }
+
+            mIs = openInputStream(mIndex);
+            return mIs;
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(mIs);
+            mIs = null;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long mRemaining;
+
+        public LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            mRemaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, mRemaining));
+            if (n > 0) {
+                mRemaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * State, download progress and error of each page, one long for a page.
+ * All methods are lock-free, reading doesn't allocate.
+ * <p>
+ * Bits 0-7 are state, bits 8-19 are progress in permille plus one
+ * (0 for unknown), bits 20-51 are error id (0 for no error).
+ */
+final class SpiderPageTable {
+
+    private static final int STATE_BITS = 8;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+    private static final int PROGRESS_SHIFT = STATE_BITS;
+    private static final int PROGRESS_BITS = 12;
+    private static final long PROGRESS_MASK = ((1L << PROGRESS_BITS) - 1) << PROGRESS_SHIFT;
+    private static final int ERROR_SHIFT = PROGRESS_SHIFT + PROGRESS_BITS;
+    private static final long ERROR_MASK = 0xffffffffL << ERROR_SHIFT;
+
+    private static final int PROGRESS_MAX = 1000;
+    private static final Float[] PROGRESS_CACHE = new Float[PROGRESS_MAX + 1];
+
+    // Error strings are few, the same messages again and again
+    private static final int MAX_ERROR_COUNT = 1024;
+    private static final Map<String, Integer> sErrorIdMap = new HashMap<>();
+    private static volatile String[] sErrors = new String[]{null};
+
+    static {
+        for (int i = 0; i <= PROGRESS_MAX; i++) {
+            PROGRESS_CACHE[i] = (float) i / PROGRESS_MAX;
+        }
+    }
+
+    private final AtomicLongArray mSlots;
+    private final AtomicInteger mDownloadedPages = new AtomicInteger();
+    private final AtomicInteger mFinishedPages = new AtomicInteger();
+
+    SpiderPageTable(int size) {
+        mSlots = new AtomicLongArray(size);
+    }
+
+    private static int getErrorId(@Nullable String error) {
+        if (error == null) {
+            return 0;
+        }
+        synchronized (sErrorIdMap) {
+            Integer id = sErrorIdMap.get(error);
+            if (id != null) {
+                return id;
+            }
+            String[] errors = sErrors;
+            if (errors.length >= MAX_ERROR_COUNT) {
+                return 0;
+            }
+            String[] newErrors = new String[errors.length + 1];
+            System.arraycopy(errors, 0, newErrors, 0, errors.length);
+            newErrors[errors.length] = error;
+            sErrorIdMap.put(error, errors.length);
+            sErrors = newErrors;
+            return errors.length;
+        }
+    }
+
+    private static int stateOf(long slot) {
+        return (int) (slot & STATE_MASK);
+    }
+
+    private static int progressOf(long slot) {
+        return (int) ((slot & PROGRESS_MASK) >>> PROGRESS_SHIFT);
+    }
+
+    private static int errorOf(long slot) {
+        return (int) ((slot & ERROR_MASK) >>> ERROR_SHIFT);
+    }
+
+    private static long pack(int state, int progress, int error) {
+        return (state & STATE_MASK) |
+                (((long) progress << PROGRESS_SHIFT) & PROGRESS_MASK) |
+                (((long) error << ERROR_SHIFT) & ERROR_MASK);
+    }
+
+    private static boolean isStateDone(int state) {
+        return state == SpiderQueen.STATE_FINISHED || state == SpiderQueen.STATE_FAILED;
+    }
+
+    public int size() {
+        return mSlots.length();
+    }
+
+    public int getDownloadedPages() {
+        return mDownloadedPages.get();
+    }
+
+    public int getFinishedPages() {
+        return mFinishedPages.get();
+    }
+
+    /**
+     * @return {@link SpiderQueen#STATE_NONE} if index is out of range
+     */
+    public int getState(int index) {
+        if (index < 0 || index >= mSlots.length()) {
+            return SpiderQueen.STATE_NONE;
+        }
+        return stateOf(mSlots.get(index));
+    }
+
+    /**
+     * @return the download percent, null if unknown
+     */
+    @Nullable
+    public Float getProgress(int index) {
+        if (index < 0 || index >= mSlots.length()) {
+            return null;
+        }
+        int progress = progressOf(mSlots.get(index));
+        return progress == 0 ? null : PROGRESS_CACHE[progress - 1];
+    }
+
+    @Nullable
+    public String getError(int index) {
+        if (index < 0 || index >= mSlots.length()) {
+            return null;
+        }
+        int error = errorOf(mSlots.get(index));
+        String[] errors = sErrors;
+        return error < errors.length ? errors[error] : null;
+    }
+
+    /**
+     * Only works for downloading page.
+     */
+    public void setProgress(int index, float percent) {
+        int progress = Math.round(Math.max(0.0f, Math.min(1.0f, percent)) * PROGRESS_MAX) + 1;
+        for (;;) {
+            long slot = mSlots.get(index);
+            if (stateOf(slot) != SpiderQueen.STATE_DOWNLOADING || progressOf(slot) == progress) {
+                return;
+            }
+            if (mSlots.compareAndSet(index, slot, pack(SpiderQueen.STATE_DOWNLOADING, progress, errorOf(slot)))) {
+                return;
+            }
+        }
+    }
+
+    private void updateCounters(int oldState, int state) {
+        if (!isStateDone(oldState) && isStateDone(state)) {
+            mDownloadedPages.incrementAndGet();
+        } else if (isStateDone(oldState) && !isStateDone(state)) {
+            mDownloadedPages.decrementAndGet();
+        }
+        if (oldState != SpiderQueen.STATE_FINISHED && state == SpiderQueen.STATE_FINISHED) {
+            mFinishedPages.incrementAndGet();
+        } else if (oldState == SpiderQueen.STATE_FINISHED && state != SpiderQueen.STATE_FINISHED) {
+            mFinishedPages.decrementAndGet();
+        }
+    }
+
+    private long newSlot(long slot, int state, int errorId) {
+        int progress = progressOf(slot);
+        int error = errorOf(slot);
+        // Clear
+        if (state == SpiderQueen.STATE_DOWNLOADING) {
+            error = 0;
+        } else if (state == SpiderQueen.STATE_FINISHED || state == SpiderQueen.STATE_FAILED) {
+            progress = 0;
+        }
+        if (state == SpiderQueen.STATE_FAILED) {
+            error = errorId;
+        }
+        return pack(state, progress, error);
+    }
+
+    /**
+     * @return the old state
+     */
+    public int setState(int index, int state, @Nullable String error) {
+        int errorId = state == SpiderQueen.STATE_FAILED ? getErrorId(error) : 0;
+        for (;;) {
+            long slot = mSlots.get(index);
+            if (mSlots.compareAndSet(index, slot, newSlot(slot, state, errorId))) {
+                int oldState = stateOf(slot);
+                updateCounters(oldState, state);
+                return oldState;
+            }
+        }
+    }
+
+    /**
+     * Set the page downloading if it is not downloading.
+     * Finished and failed pages are only taken for force request.
+     *
+     * @return true if the page is taken
+     */
+    public boolean startDownloading(int index, boolean force) {
+        for (;;) {
+            long slot = mSlots.get(index);
+            int oldState = stateOf(slot);
+            if (oldState == SpiderQueen.STATE_DOWNLOADING || (!force && isStateDone(oldState))) {
+                return false;
+            }
+            if (mSlots.compareAndSet(index, slot, newSlot(slot, SpiderQueen.STATE_DOWNLOADING, 0))) {
+                updateCounters(oldState, SpiderQueen.STATE_DOWNLOADING);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reset all pages to {@link SpiderQueen#STATE_NONE} except downloading pages.
+     */
+    public void resetUnlessDownloading() {
+        for (int i = 0, n = mSlots.length(); i < n; i++) {
+            for (;;) {
+                long slot = mSlots.get(i);
+                int oldState = stateOf(slot);
+                if (oldState == SpiderQueen.STATE_DOWNLOADING) {
+                    break;
+                }
+                if (mSlots.compareAndSet(i, slot, pack(SpiderQueen.STATE_NONE, 0, 0))) {
+                    updateCounters(oldState, SpiderQueen.STATE_NONE);
+                    break;
+                }
+            }
+        }
+    }
+}
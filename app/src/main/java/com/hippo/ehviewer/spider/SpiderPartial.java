@@ -0,0 +1,327 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.hippo.yorozuya.IOUtils;
+import com.hippo.yorozuya.NumberUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * The partially downloaded data of a page. The data is kept in a plain file
+ * beside a small meta file, so a later attempt, a new queen or a new process
+ * can continue the download with a {@code Range} request.
+ */
+final class SpiderPartial {
+
+    private static final String TAG = SpiderPartial.class.getSimpleName();
+
+    private static final String VERSION_STR = "PARTIAL";
+    private static final int VERSION = 1;
+
+    private static final String META_SUFFIX = ".meta";
+
+    // Remove partial files which are not touched for a week
+    private static final long EXPIRED_TIME = 7L * 24 * 60 * 60 * 1000;
+
+    private static final Pattern PATTERN_CONTENT_RANGE =
+            Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final File mFile;
+    private final File mMetaFile;
+
+    private boolean mMetaLoaded;
+    @Nullable
+    private String mKey;
+    @Nullable
+    private String mHost;
+    @Nullable
+    private String mValidator;
+    private long mTotalLength = -1;
+
+    SpiderPartial(File dir, long gid, int index) {
+        String name = gid + "-" + index;
+        mFile = new File(dir, name);
+        mMetaFile = new File(dir, name + META_SUFFIX);
+    }
+
+    /**
+     * Remove expired partial files in the dir.
+     */
+    static void trim(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > EXPIRED_TIME) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Return a key which is the same for the same image on any H@H node.
+     * The {@code /h/<sha1>-<size>-<width>-<height>-<type>} segment identifies
+     * the image, the whole url is used if it is missing.
+     */
+    static String getResumeKey(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        if (httpUrl != null) {
+            int index = httpUrl.pathSegments().indexOf("h");
+            if (index >= 0 && index + 1 < httpUrl.pathSize()) {
+                return "h/" + httpUrl.pathSegments().get(index + 1);
+            }
+        }
+        return url;
+    }
+
+    @Nullable
+    static String getHost(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        return httpUrl != null ? httpUrl.host() + ":" + httpUrl.port() : null;
+    }
+
+    /**
+     * Strong ETag is better, weak ETag can't be used in {@code If-Range}.
+     */
+    @Nullable
+    static String getValidator(Response response) {
+        String eTag = response.header("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return response.header("Last-Modified");
+    }
+
+    /**
+     * Parse {@code Content-Range: bytes <start>-<end>/<total>}.
+     *
+     * @return {start, end, total}, total is -1 if it is unknown, null if invalid
+     */
+    @Nullable
+    static long[] parseContentRange(@Nullable String contentRange) {
+        if (contentRange == null) {
+            return null;
+        }
+        Matcher matcher = PATTERN_CONTENT_RANGE.matcher(contentRange.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        long start = NumberUtils.parseLongSafely(matcher.group(1), -1);
+        long end = NumberUtils.parseLongSafely(matcher.group(2), -1);
+        long total = "*".equals(matcher.group(3)) ? -1 :
+                NumberUtils.parseLongSafely(matcher.group(3), -1);
+        if (start < 0 || end < start || (total >= 0 && end >= total)) {
+            return null;
+        }
+        return new long[]{start, end, total};
+    }
+
+    private void loadMeta() {
+        if (mMetaLoaded) {
+            return;
+        }
+        mMetaLoaded = true;
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(mMetaFile);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            String version = reader.readLine();
+            if (!(VERSION_STR + VERSION).equals(version)) {
+                return;
+            }
+            String key = reader.readLine();
+            String host = reader.readLine();
+            String validator = reader.readLine();
+            String totalLength = reader.readLine();
+            if (key == null || host == null || validator == null || totalLength == null) {
+                return;
+            }
+            mKey = key;
+            mHost = host.isEmpty() ? null : host;
+            mValidator = validator.isEmpty() ? null : validator;
+            mTotalLength = NumberUtils.parseLongSafely(totalLength, -1);
+        } catch (IOException e) {
+            // Ignore
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private boolean writeMeta() {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mMetaFile), "UTF-8");
+            writer.write(VERSION_STR + VERSION + "\n");
+            writer.write(mKey + "\n");
+            writer.write((mHost != null ? mHost : "") + "\n");
+            writer.write((mValidator != null ? mValidator : "") + "\n");
+            writer.write(mTotalLength + "\n");
+            writer.flush();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write partial meta " + mMetaFile, e);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Return the length of data which can be resumed for the image,
+     * 0 if it should be downloaded from the start.
+     */
+    long getResumeOffset(String key) {
+        loadMeta();
+        if (mKey == null || !mKey.equals(key)) {
+            return 0;
+        }
+        long length = mFile.length();
+        if (mTotalLength >= 0 && length >= mTotalLength) {
+            // It should have been committed, something is wrong
+            return 0;
+        }
+        return length;
+    }
+
+    /**
+     * The validator is only meaningful to the host which sent it.
+     */
+    @Nullable
+    String getValidator(@Nullable String host) {
+        loadMeta();
+        return host != null && host.equals(mHost) ? mValidator : null;
+    }
+
+    long getTotalLength() {
+        loadMeta();
+        return mTotalLength;
+    }
+
+    /**
+     * Drop old data and start a new download.
+     */
+    boolean begin(String key, @Nullable String host, @Nullable String validator, long totalLength) {
+        mFile.delete();
+        mKey = key;
+        mHost = host;
+        mValidator = validator;
+        mTotalLength = totalLength;
+        mMetaLoaded = true;
+        return writeMeta();
+    }
+
+    /**
+     * Append data to the partial file.
+     */
+    BufferedSink openSink() throws IOException {
+        return Okio.buffer(Okio.appendingSink(mFile));
+    }
+
+    /**
+     * Move the data to the file, the partial is deleted if succeeded.
+     * Rename it if they are in the same file system, or copy it by channel.
+     */
+    boolean moveTo(File file) {
+        if (mFile.renameTo(file)) {
+            delete();
+            return true;
+        }
+
+        FileChannel src = null;
+        FileChannel dst = null;
+        try {
+            src = new FileInputStream(mFile).getChannel();
+            dst = new FileOutputStream(file).getChannel();
+            long size = src.size();
+            long position = 0;
+            while (position < size) {
+                long count = src.transferTo(position, size - position, dst);
+                if (count <= 0) {
+                    throw new IOException("Can't transfer data to " + file);
+                }
+                position += count;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't move partial file to " + file, e);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(src);
+            IOUtils.closeQuietly(dst);
+        }
+
+        delete();
+        return true;
+    }
+
+    /**
+     * Copy the data to the stream with pooled segments, the stream is not closed.
+     */
+    void copyTo(OutputStream os) throws IOException {
+        Source source = null;
+        try {
+            source = Okio.source(mFile);
+            BufferedSink sink = Okio.buffer(Okio.sink(os));
+            sink.writeAll(source);
+            sink.flush();
+        } finally {
+            IOUtils.closeQuietly(source);
+        }
+    }
+
+    InputStream openInputStream() throws IOException {
+        return new FileInputStream(mFile);
+    }
+
+    long length() {
+        return mFile.length();
+    }
+
+    void delete() {
+        mFile.delete();
+        mMetaFile.delete();
+        mKey = null;
+        mHost = null;
+        mValidator = null;
+        mTotalLength = -1;
+        mMetaLoaded = true;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+/**
+ * The download progress of pages changed in an interval.
+ * It is immutable, so it can be posted to other threads.
+ */
+public final class SpiderProgress {
+
+    private final int mSize;
+    private final int[] mIndexes;
+    private final long[] mContentLengths;
+    private final long[] mReceivedSizes;
+    private final long mBytesRead;
+
+    SpiderProgress(int size, int[] indexes, long[] contentLengths, long[] receivedSizes, long bytesRead) {
+        mSize = size;
+        mIndexes = indexes;
+        mContentLengths = contentLengths;
+        mReceivedSizes = receivedSizes;
+        mBytesRead = bytesRead;
+    }
+
+    /**
+     * The count of pages in it.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public int getIndex(int i) {
+        return mIndexes[i];
+    }
+
+    /**
+     * @return -1 for unknown
+     */
+    public long getContentLength(int i) {
+        return mContentLengths[i];
+    }
+
+    public long getReceivedSize(int i) {
+        return mReceivedSizes[i];
+    }
+
+    /**
+     * Bytes read of all pages in the interval.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.SystemClock;
+
+/**
+ * Collects page download progress from workers and dispatches it
+ * as one {@link SpiderProgress} at most once an interval. The worker
+ * which crosses the interval dispatches it, so no extra thread is needed.
+ */
+final class SpiderProgressAggregator {
+
+    interface Callback {
+        void onProgress(SpiderProgress progress);
+    }
+
+    private final Callback mCallback;
+    private final long mInterval;
+
+    // Guarded by mLock
+    private final Object mLock = new Object();
+    private final long[] mContentLengths;
+    private final long[] mReceivedSizes;
+    private final boolean[] mDirty;
+    private final int[] mDirtyIndexes;
+    private int mDirtyCount;
+    private long mBytesRead;
+    private long mLastDispatchTime;
+
+    // Keep progress in order
+    private final Object mDispatchLock = new Object();
+
+    SpiderProgressAggregator(int pages, long interval, Callback callback) {
+        mCallback = callback;
+        mInterval = interval;
+        mContentLengths = new long[pages];
+        mReceivedSizes = new long[pages];
+        mDirty = new boolean[pages];
+        mDirtyIndexes = new int[pages];
+    }
+
+    void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead) {
+        if (index < 0 || index >= mDirty.length) {
+            return;
+        }
+
+        boolean dispatch;
+        synchronized (mLock) {
+            mContentLengths[index] = contentLength;
+            mReceivedSizes[index] = receivedSize;
+            if (!mDirty[index]) {
+                mDirty[index] = true;
+                mDirtyIndexes[mDirtyCount++] = index;
+            }
+            mBytesRead += bytesRead;
+            dispatch = SystemClock.uptimeMillis() - mLastDispatchTime >= mInterval;
+        }
+
+        if (dispatch) {
+            flush();
+        }
+    }
+
+    /**
+     * Dispatch pending progress now. Call it before page success or
+     * failure, so listeners get the progress first.
+     */
+    void flush() {
+        synchronized (mDispatchLock) {
+            SpiderProgress progress;
+            synchronized (mLock) {
+                mLastDispatchTime = SystemClock.uptimeMillis();
+                int size = mDirtyCount;
+                if (size == 0 && mBytesRead == 0) {
+                    return;
+                }
+                int[] indexes = new int[size];
+                long[] contentLengths = new long[size];
+                long[] receivedSizes = new long[size];
+                for (int i = 0; i < size; i++) {
+                    int index = mDirtyIndexes[i];
+                    indexes[i] = index;
+                    contentLengths[i] = mContentLengths[index];
+                    receivedSizes[i] = mReceivedSizes[index];
+                    mDirty[index] = false;
+                }
+                progress = new SpiderProgress(size, indexes, contentLengths, receivedSizes, mBytesRead);
+                mDirtyCount = 0;
+                mBytesRead = 0;
+            }
+            mCallback.onProgress(progress);
+        }
+    }
+}
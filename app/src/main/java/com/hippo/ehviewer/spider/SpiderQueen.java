@@ -20,6 +20,7 @@ import android.content.Context;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -27,6 +28,8 @@ import android.support.annotation.UiThread;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.webkit.MimeTypeMap;
 
 import com.hippo.beerbelly.SimpleDiskCache;
@@ -46,13 +49,16 @@ import com.hippo.ehviewer.client.parser.GalleryDetailParser;
 import com.hippo.ehviewer.client.parser.GalleryPageParser;
 import com.hippo.ehviewer.client.parser.GalleryPageUrlParser;
 import com.hippo.ehviewer.gallery.GalleryProvider2;
+import com.hippo.ehviewer.gallery.PageDecoder;
+import com.hippo.ehviewer.gallery.SharedImageCache;
 import com.hippo.glgallery.GalleryPageView;
 import com.hippo.glgallery.GalleryProvider;
-import com.hippo.image.Image;
+import com.hippo.glview.image.ImageWrapper;
 import com.hippo.streampipe.InputStreamPipe;
 import com.hippo.streampipe.OutputStreamPipe;
 import com.hippo.unifile.UniFile;
 import com.hippo.util.ExceptionUtils;
+import com.hippo.util.Histogram;
 import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.MathUtils;
 import com.hippo.yorozuya.OSUtils;
@@ -62,17 +68,21 @@ import com.hippo.yorozuya.collect.SparseJLArray;
 import com.hippo.yorozuya.thread.PriorityThread;
 import com.hippo.yorozuya.thread.PriorityThreadFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -84,6 +94,9 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
 
 public final class SpiderQueen implements Runnable {
 
@@ -108,9 +121,31 @@ public final class SpiderQueen implements Runnable {
     public static final int STATE_FINISHED = 2;
     public static final int STATE_FAILED = 3;
 
-    public static final int DECODE_THREAD_NUM = 1;
+    private static final int MAX_DECODE_THREAD_NUM = 4;
+    // Preview pages fetched at the same time for pToken
+    private static final int PTOKEN_THREAD_NUM = 3;
+    // Preview size may changed, so try to get pToken twice
+    private static final int PTOKEN_MAX_TRY = 2;
+    // Decode requests further than it from current index are dropped
+    private static final int DECODE_WINDOW_EXTRA = 3;
+    // Image urls tried for a page, each one with another skip hath key
+    private static final int IMAGE_MAX_TRY = 5;
+    // Slow hosts skipped for a page, they are not counted as tries
+    private static final int IMAGE_MAX_HOST_SKIP = 3;
+    // Wait for a connection slot of the host at most it, then try the page later
+    private static final long HOST_WAIT_TIMEOUT = 10 * 1000;
+
+    // Bytes read from response and written to file at a time
+    private static final long READ_BUFFER_SIZE = 64 * 1024;
+
+    // Page download progress is dispatched at most once in it
+    private static final long PROGRESS_INTERVAL = 100;
 
     public static final String SPIDER_INFO_FILENAME = ".ehviewer";
+    // Compact spider info when the journal has more records than it
+    private static final int SPIDER_INFO_COMPACT_MIN_RECORDS = 256;
+    // Finished page records are appended in batches
+    private static final int FINISHED_RECORD_BATCH = 16;
 
     private static final String[] URL_509_SUFFIX_ARRAY = {
             "/509.gif",
@@ -128,7 +163,7 @@ public final class SpiderQueen implements Runnable {
     @NonNull
     private final SpiderDen mSpiderDen;
 
-    private int mReadReference = 0;
+    private volatile int mReadReference = 0;
     private int mDownloadReference = 0;
 
     // It mQueenThread is null, failed or stopped
@@ -136,20 +171,50 @@ public final class SpiderQueen implements Runnable {
     private volatile Thread mQueenThread;
     private final Object mQueenLock = new Object();
 
-    private final Thread[] mDecodeThreadArray = new Thread[DECODE_THREAD_NUM];
-    private final int[] mDecodeIndexArray = new int[DECODE_THREAD_NUM];
-    private final Queue<Integer> mDecodeRequestQueue = new LinkedList<>();
-
-    private final Object mWorkerLock = new Object();
-    private ThreadPoolExecutor mWorkerPoolExecutor;
-    private int mWorkerCount;
+    private final int mDecodeThreadNum;
+    private final Thread[] mDecodeThreadArray;
+    private final int[] mDecodeIndexArray;
+    // Picked by distance to mCurrentIndex, not by order
+    private final List<DecodeRequest> mDecodeRequestQueue = new ArrayList<>();
+    // The page the reader is looking at
+    private volatile int mCurrentIndex = GalleryPageView.INVALID_INDEX;
+    // Plan preload pages around mCurrentIndex
+    private final ReadAheadScheduler mReadAhead;
+
+    private final Histogram mDecodeWaitHistogram = new Histogram("Decode wait", "ms");
+    private final Histogram mDecodeTimeHistogram = new Histogram("Decode time", "ms");
+
+    // Workers come from the shared pool
+    private final SpiderWorker mWorker;
+    private volatile boolean mWorkerStopped;
+    // Worker count limit, the setting is the ceiling
+    private final SpiderConcurrency mConcurrency;
+
+    // Check downloaded pages
+    private final boolean mVerifyDownload;
+    private final SpiderVerifier mVerifier;
+    // Pages downloaded again for failed verification. Guarded by itself
+    private final SparseBooleanArray mVerifyRetried = new SparseBooleanArray();
 
     private final Object mPTokenLock = new Object();
     private final AtomicReference<SpiderInfo> mSpiderInfo = new AtomicReference<>();
     private final Queue<Integer> mRequestPTokenQueue = new ConcurrentLinkedQueue<>();
-
-    private final Object mPageStateLock = new Object();
-    private volatile int[] mPageStateArray;
+    // Guarded by this
+    private int mSpiderInfoJournalRecords;
+    private boolean mSpiderInfoWrittenToDir;
+    private boolean mSpiderInfoDirty;
+    private final ByteArrayOutputStream mFinishedRecords = new ByteArrayOutputStream();
+    private int mFinishedRecordCount;
+    // Index -> the pToken future the worker is waiting on. Guarded by mPTokenLock
+    private final SparseArray<PTokenFuture> mPTokenFutureMap = new SparseArray<>();
+    // Preview index of fetched preview page, succeeded or not
+    private final Queue<Integer> mFetchedPreviewQueue = new ConcurrentLinkedQueue<>();
+    private ThreadPoolExecutor mPTokenPoolExecutor;
+
+    // State, progress and error of pages, null before getting pages
+    private volatile SpiderPageTable mPageTable;
+    private volatile SpiderProgressAggregator mProgressAggregator;
+    private final SpiderMeter mMeter = new SpiderMeter();
 
     // Store request page. The index may be invalid
     private final Queue<Integer> mRequestPageQueue = new LinkedList<>();
@@ -157,21 +222,14 @@ public final class SpiderQueen implements Runnable {
     private final Queue<Integer> mRequestPageQueue2 = new LinkedList<>();
     // Store force request page. The index may be invalid
     private final Queue<Integer> mForceRequestPageQueue = new LinkedList<>();
-    // For download, when it go to mPageStateArray.size(), done
+    // For download, when it go to mPageTable.size(), done
     private volatile int mDownloadPage = -1;
 
-    private final AtomicInteger mDownloadedPages = new AtomicInteger(0);
-    private final AtomicInteger mFinishedPages = new AtomicInteger(0);
-
-    // Store page error
-    private final ConcurrentHashMap<Integer, String> mPageErrorMap = new ConcurrentHashMap<>();
-    // Store page download percent
-    private final ConcurrentHashMap<Integer, Float> mPagePercentMap = new ConcurrentHashMap<>();
-
     private final List<OnSpiderListener> mSpiderListeners = new ArrayList<>();
+    // Listeners in mSpiderListeners which show page progress
+    private volatile int mPageDownloadListenerCount;
 
     private final int mWorkerMaxCount;
-    private final int mPreloadNumber;
 
     private SpiderQueen(EhApplication application, @NonNull GalleryInfo galleryInfo) {
         mHttpClient = EhApplication.getOkHttpClient(application);
@@ -180,26 +238,72 @@ public final class SpiderQueen implements Runnable {
         mSpiderDen = new SpiderDen(mGalleryInfo);
 
         mWorkerMaxCount = MathUtils.clamp(Settings.getMultiThreadDownload(), 1, 10);
-        mPreloadNumber = MathUtils.clamp(Settings.getPreloadImage(), 0, 100);
+        mConcurrency = new SpiderConcurrency(mWorkerMaxCount, new SpiderConcurrency.Callback() {
+            @Override
+            public void onLimitIncreased(int limit) {
+                SpiderWorkerPool.getInstance().onLimitIncreased();
+            }
+        });
+        int preloadNumber = MathUtils.clamp(Settings.getPreloadImage(), 0, 100);
+        mReadAhead = new ReadAheadScheduler(preloadNumber);
+        mVerifyDownload = Settings.getVerifyDownload();
+        mVerifier = new SpiderVerifier(new SpiderVerifier.Callback() {
+            @Nullable
+            @Override
+            public InputStreamPipe openPage(int index) {
+                return mSpiderDen.openDownloadInputStreamPipe(index);
+            }
+
+            @Override
+            public boolean onVerifyFailure(int index) {
+                return onPageBroken(index);
+            }
+
+            @Override
+            public void onDeferredFinish() {
+                notifyFinish();
+            }
+        });
 
-        for (int i = 0; i < DECODE_THREAD_NUM; i++) {
+        mDecodeThreadNum = getDecodeThreadNum();
+        mDecodeThreadArray = new Thread[mDecodeThreadNum];
+        mDecodeIndexArray = new int[mDecodeThreadNum];
+        for (int i = 0; i < mDecodeThreadNum; i++) {
             mDecodeIndexArray[i] = GalleryPageView.INVALID_INDEX;
         }
 
-        mWorkerPoolExecutor = new ThreadPoolExecutor(mWorkerMaxCount, mWorkerMaxCount,
+        mWorker = new SpiderWorker();
+        mPTokenPoolExecutor = new ThreadPoolExecutor(PTOKEN_THREAD_NUM, PTOKEN_THREAD_NUM,
                 0, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>(),
-                new PriorityThreadFactory(SpiderWorker.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND));
+                new PriorityThreadFactory(PreviewFetcher.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND));
+    }
+
+    /**
+     * The number of threads to decode pages for the reader.
+     */
+    public static int getDecodeThreadNum() {
+        int num = Settings.getDecodeThread();
+        if (num <= 0) {
+            // Leave one core for GL thread
+            num = Runtime.getRuntime().availableProcessors() - 1;
+        }
+        return MathUtils.clamp(num, 1, MAX_DECODE_THREAD_NUM);
     }
 
     public void addOnSpiderListener(OnSpiderListener listener) {
         synchronized (mSpiderListeners) {
             mSpiderListeners.add(listener);
+            if (listener instanceof OnPageDownloadListener) {
+                mPageDownloadListenerCount++;
+            }
         }
     }
 
     public void removeOnSpiderListener(OnSpiderListener listener) {
         synchronized (mSpiderListeners) {
-            mSpiderListeners.remove(listener);
+            if (mSpiderListeners.remove(listener) && listener instanceof OnPageDownloadListener) {
+                mPageDownloadListenerCount--;
+            }
         }
     }
 
@@ -212,6 +316,7 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void notifyGet509(int index) {
+        mConcurrency.on509();
         synchronized (mSpiderListeners) {
             for (OnSpiderListener listener : mSpiderListeners) {
                 listener.onGet509(index);
@@ -220,53 +325,93 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void notifyPageDownload(int index, long contentLength, long receivedSize, int bytesRead) {
+        mConcurrency.onBytesRead(bytesRead);
+        mMeter.onBytesRead(contentLength, bytesRead);
+        SpiderProgressAggregator aggregator = mProgressAggregator;
+        // No one shows the progress, don't collect it
+        if (aggregator != null && mPageDownloadListenerCount > 0) {
+            aggregator.onPageDownload(index, contentLength, receivedSize, bytesRead);
+        }
+    }
+
+    private void flushPageDownload() {
+        SpiderProgressAggregator aggregator = mProgressAggregator;
+        if (aggregator != null) {
+            aggregator.flush();
+        }
+    }
+
+    private void dispatchPageDownload(SpiderProgress progress) {
         synchronized (mSpiderListeners) {
             for (OnSpiderListener listener : mSpiderListeners) {
-                listener.onPageDownload(index, contentLength, receivedSize, bytesRead);
+                if (listener instanceof OnPageDownloadListener) {
+                    ((OnPageDownloadListener) listener).onPageDownload(progress);
+                }
             }
         }
     }
 
     private void notifyPageSuccess(int index) {
+        // Progress before result
+        flushPageDownload();
+
         int size = -1;
-        int[] temp = mPageStateArray;
-        if (temp != null) {
-            size = temp.length;
+        int finished = 0;
+        int downloaded = 0;
+        SpiderPageTable table = mPageTable;
+        if (table != null) {
+            size = table.size();
+            finished = table.getFinishedPages();
+            downloaded = table.getDownloadedPages();
         }
         synchronized (mSpiderListeners) {
             for (OnSpiderListener listener : mSpiderListeners) {
-                listener.onPageSuccess(index, mFinishedPages.get(), mDownloadedPages.get(), size);
+                listener.onPageSuccess(index, finished, downloaded, size);
             }
         }
     }
 
     private void notifyPageFailure(int index, String error) {
+        // Progress before result
+        flushPageDownload();
+
         int size = -1;
-        int[] temp = mPageStateArray;
-        if (temp != null) {
-            size = temp.length;
+        int finished = 0;
+        int downloaded = 0;
+        SpiderPageTable table = mPageTable;
+        if (table != null) {
+            size = table.size();
+            finished = table.getFinishedPages();
+            downloaded = table.getDownloadedPages();
         }
         synchronized (mSpiderListeners) {
             for (OnSpiderListener listener : mSpiderListeners) {
-                listener.onPageFailure(index, error, mFinishedPages.get(), mDownloadedPages.get(), size);
+                listener.onPageFailure(index, error, finished, downloaded, size);
             }
         }
     }
 
     private void notifyFinish() {
+        // Progress before result
+        flushPageDownload();
+
         int size = -1;
-        int[] temp = mPageStateArray;
-        if (temp != null) {
-            size = temp.length;
+        int finished = 0;
+        int downloaded = 0;
+        SpiderPageTable table = mPageTable;
+        if (table != null) {
+            size = table.size();
+            finished = table.getFinishedPages();
+            downloaded = table.getDownloadedPages();
         }
         synchronized (mSpiderListeners) {
             for (OnSpiderListener listener : mSpiderListeners) {
-                listener.onFinish(mFinishedPages.get(), mDownloadedPages.get(), size);
+                listener.onFinish(finished, downloaded, size);
             }
         }
     }
 
-    private void notifyGetImageSuccess(int index, Image image) {
+    private void notifyGetImageSuccess(int index, ImageWrapper image) {
         synchronized (mSpiderListeners) {
             for (OnSpiderListener listener : mSpiderListeners) {
                 listener.onGetImageSuccess(index, image);
@@ -342,20 +487,13 @@ public final class SpiderQueen implements Runnable {
             }
         }
 
-        if (intoDownloadMode && mPageStateArray != null) {
+        SpiderPageTable table = mPageTable;
+        if (intoDownloadMode && table != null) {
             // Clear download state
-            synchronized (mPageStateLock) {
-                int[] temp = mPageStateArray;
-                for (int i = 0, n = temp.length; i < n; i++) {
-                    int oldState = temp[i];
-                    if (STATE_DOWNLOADING != oldState) {
-                        temp[i] = STATE_NONE;
-                    }
-                }
-                mDownloadedPages.lazySet(0);
-                mFinishedPages.lazySet(0);
-                mPageErrorMap.clear();
-                mPagePercentMap.clear();
+            table.resetUnlessDownloading();
+            SpiderInfo spiderInfo = mSpiderInfo.get();
+            if (spiderInfo != null) {
+                verifyRestoredPages(applyFinishedPages(spiderInfo, table));
             }
             // Ensure download workers
             ensureWorkers();
@@ -414,10 +552,12 @@ public final class SpiderQueen implements Runnable {
     public int size() {
         if (mQueenThread == null) {
             return GalleryProvider.STATE_ERROR;
-        } else if (mPageStateArray == null) {
+        }
+        SpiderPageTable table = mPageTable;
+        if (table == null) {
             return GalleryProvider.STATE_WAIT;
         } else {
-            return mPageStateArray.length;
+            return table.size();
         }
     }
 
@@ -437,24 +577,62 @@ public final class SpiderQueen implements Runnable {
         return request(index, true, false, true);
     }
 
-    private int getPageState(int index) {
-        synchronized (mPageStateLock) {
-            if (mPageStateArray != null && index >= 0 && index < mPageStateArray.length) {
-                return mPageStateArray[index];
-            } else {
-                return STATE_NONE;
+    /**
+     * Update the page the reader is looking at. Decode requests are picked
+     * by the distance to it, preload pages are planned around it.
+     */
+    public void setCurrentIndex(int index) {
+        mCurrentIndex = index;
+        mReadAhead.onPageChanged(index, SystemClock.uptimeMillis());
+        preload(index);
+    }
+
+    /**
+     * Replace preload pages with the pages planned around the index.
+     */
+    private void preload(int index) {
+        if (mQueenThread == null) {
+            return;
+        }
+
+        SpiderPageTable table = mPageTable;
+        int[] pages = mReadAhead.plan(index, table != null ? table.size() : Integer.MAX_VALUE);
+        synchronized (mRequestPageQueue) {
+            mRequestPageQueue2.clear();
+            for (int page : pages) {
+                if (STATE_NONE == getPageState(page)) {
+                    mRequestPageQueue2.add(page);
+                }
             }
         }
+
+        tryToEnsureWorkers();
+    }
+
+    @NonNull
+    public Histogram getDecodeWaitHistogram() {
+        return mDecodeWaitHistogram;
+    }
+
+    @NonNull
+    public Histogram getDecodeTimeHistogram() {
+        return mDecodeTimeHistogram;
+    }
+
+    private int getPageState(int index) {
+        SpiderPageTable table = mPageTable;
+        return table != null ? table.getState(index) : STATE_NONE;
     }
 
     private void tryToEnsureWorkers() {
         boolean startWorkers = false;
+        SpiderPageTable table = mPageTable;
         synchronized (mRequestPageQueue) {
-            if (mPageStateArray != null &&
+            if (table != null &&
                     (!mForceRequestPageQueue.isEmpty() ||
                             !mRequestPageQueue.isEmpty() ||
                             !mRequestPageQueue2.isEmpty() ||
-                            mDownloadPage >= 0 && mDownloadPage < mPageStateArray.length)) {
+                            mDownloadPage >= 0 && mDownloadPage < table.size())) {
                 startWorkers = true;
             }
         }
@@ -473,7 +651,11 @@ public final class SpiderQueen implements Runnable {
             mRequestPageQueue.remove(index);
         }
         synchronized (mDecodeRequestQueue) {
-            mDecodeRequestQueue.remove(index);
+            for (Iterator<DecodeRequest> iterator = mDecodeRequestQueue.iterator(); iterator.hasNext();) {
+                if (iterator.next().index == index) {
+                    iterator.remove();
+                }
+            }
         }
     }
 
@@ -508,23 +690,12 @@ public final class SpiderQueen implements Runnable {
                     mRequestPageQueue.add(index);
                 }
             }
+        }
 
-            // Add next some pages to request queue
-            if (addNeighbor) {
-                mRequestPageQueue2.clear();
-                int[] pageStateArray = mPageStateArray;
-                int size;
-                if (pageStateArray != null) {
-                    size = pageStateArray.length;
-                } else {
-                    size = Integer.MAX_VALUE;
-                }
-                for (int i = index + 1, n = index + i + mPreloadNumber; i < n && i < size; i++) {
-                    if (STATE_NONE == getPageState(i)) {
-                        mRequestPageQueue2.add(i);
-                    }
-                }
-            }
+        // Preload pages are planned in setCurrentIndex(),
+        // plan them here before the reader reports the page
+        if (addNeighbor && mCurrentIndex == GalleryPageView.INVALID_INDEX) {
+            preload(index);
         }
 
         Object result;
@@ -535,10 +706,10 @@ public final class SpiderQueen implements Runnable {
                 result = null;
                 break;
             case STATE_DOWNLOADING:
-                result = mPagePercentMap.get(index);
+                result = mPageTable.getProgress(index);
                 break;
             case STATE_FAILED:
-                String error = mPageErrorMap.get(index);
+                String error = mPageTable.getError(index);
                 if (error == null) {
                     error = GetText.getString(R.string.error_unknown);
                 }
@@ -546,8 +717,8 @@ public final class SpiderQueen implements Runnable {
                 break;
             case STATE_FINISHED:
                 synchronized (mDecodeRequestQueue) {
-                    if (!contain(mDecodeIndexArray, index) && !mDecodeRequestQueue.contains(index)) {
-                        mDecodeRequestQueue.add(index);
+                    if (!contain(mDecodeIndexArray, index) && !containDecodeRequest(index)) {
+                        mDecodeRequestQueue.add(new DecodeRequest(index, SystemClock.uptimeMillis()));
                         mDecodeRequestQueue.notify();
                     }
                 }
@@ -560,6 +731,54 @@ public final class SpiderQueen implements Runnable {
         return result;
     }
 
+    // Must be called in synchronized (mDecodeRequestQueue)
+    private boolean containDecodeRequest(int index) {
+        for (int i = 0, n = mDecodeRequestQueue.size(); i < n; i++) {
+            if (mDecodeRequestQueue.get(i).index == index) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the request nearest to current index, pages in reading direction first.
+     * Requests out of the decode window are dropped.
+     * Must be called in synchronized (mDecodeRequestQueue).
+     */
+    @Nullable
+    private DecodeRequest pollDecodeRequest() {
+        List<DecodeRequest> queue = mDecodeRequestQueue;
+        int current = mCurrentIndex;
+        if (current == GalleryPageView.INVALID_INDEX) {
+            // No current index, first in first out
+            return queue.isEmpty() ? null : queue.remove(0);
+        }
+
+        int window = mReadAhead.getWindow() + DECODE_WINDOW_EXTRA;
+        boolean forward = mReadAhead.isForward();
+        int bestPosition = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = queue.size() - 1; i >= 0; i--) {
+            int offset = forward ? queue.get(i).index - current : current - queue.get(i).index;
+            if (offset > window || offset < -window) {
+                // Scrolled out
+                queue.remove(i);
+                if (bestPosition > i) {
+                    bestPosition--;
+                }
+                continue;
+            }
+            // Pages ahead win the tie
+            int distance = offset >= 0 ? offset * 2 : -offset * 2 - 1;
+            if (distance <= bestDistance) {
+                bestDistance = distance;
+                bestPosition = i;
+            }
+        }
+        return bestPosition >= 0 ? queue.remove(bestPosition) : null;
+    }
+
     public static boolean contain(int[] array, int value) {
         for (int v: array) {
             if (v == value) {
@@ -570,18 +789,99 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void ensureWorkers() {
-        synchronized (mWorkerLock) {
-            if (null == mWorkerPoolExecutor) {
-                Log.e(TAG, "Try to start worker after stopped");
-                return;
-            }
+        if (mWorkerStopped) {
+            Log.e(TAG, "Try to start worker after stopped");
+            return;
+        }
+        SpiderWorkerPool.getInstance().request(this);
+    }
 
-            for (; mWorkerCount < mWorkerMaxCount; mWorkerCount++) {
-                mWorkerPoolExecutor.execute(new SpiderWorker());
-            }
+    boolean isReading() {
+        return mReadReference > 0;
+    }
+
+    /**
+     * Download one page on a thread of the shared worker pool.
+     *
+     * @return false if there is no page to download now
+     */
+    boolean work() {
+        return !mWorkerStopped && mSpiderDen.isReady() &&
+                !Thread.currentThread().isInterrupted() && mWorker.runInternal();
+    }
+
+    /**
+     * All workers on this queen are done.
+     */
+    void onWorkFinished() {
+        // Wait for the verifier
+        if (!mVerifier.deferFinish()) {
+            notifyFinish();
         }
     }
 
+    /**
+     * Check the page later if it is downloaded to download dir.
+     */
+    private void verifyPage(int index, @Nullable String sha1) {
+        if (mVerifyDownload && mDownloadPage >= 0) {
+            mVerifier.verify(index, sha1);
+        }
+    }
+
+    /**
+     * The page failed in verification, remove it and download it again.
+     * It is failed if it has been downloaded again.
+     *
+     * @return true if the page will be downloaded again
+     */
+    private boolean onPageBroken(int index) {
+        Log.w(TAG, "Page " + index + " of " + mGalleryInfo.gid + " is broken");
+        mSpiderDen.remove(index);
+
+        boolean retry;
+        synchronized (mVerifyRetried) {
+            retry = !mVerifyRetried.get(index);
+            mVerifyRetried.put(index, true);
+        }
+        if (!retry || mWorkerStopped) {
+            updatePageState(index, STATE_FAILED, GetText.getString(R.string.error_verify_failed));
+            return false;
+        }
+
+        updatePageState(index, STATE_NONE);
+        synchronized (mRequestPageQueue) {
+            // Don't get it from cache
+            mForceRequestPageQueue.add(index);
+        }
+        ensureWorkers();
+        return true;
+    }
+
+    /**
+     * Return true if verification is on and all pages are finished.
+     * A page which fails in verification is never finished, pages
+     * restored from finished pages are verified before the finish.
+     */
+    public boolean isVerified() {
+        SpiderPageTable table = mPageTable;
+        return mVerifyDownload && table != null && table.getFinishedPages() == table.size();
+    }
+
+    /**
+     * Return the max count of download workers now.
+     */
+    public int getWorkerLimit() {
+        return mConcurrency.getLimit();
+    }
+
+    /**
+     * Return the meter of the traffic of this queen.
+     */
+    public SpiderMeter getMeter() {
+        return mMeter;
+    }
+
     public boolean save(int index, @NonNull UniFile file) {
         int state = getPageState(index);
         if (STATE_FINISHED != state) {
@@ -658,14 +958,14 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
-    public void putStartPage(int page) {
+    public void putStartPage(final int page) {
         final SpiderInfo spiderInfo = mSpiderInfo.get();
         if (spiderInfo != null) {
             spiderInfo.startPage = page;
             new AsyncTask<Void, Void, Void>() {
                 @Override
                 protected Void doInBackground(Void... params) {
-                    writeSpiderInfoToLocal(spiderInfo);
+                    appendStartPageToLocal(spiderInfo, page);
                     return null;
                 }
             }.execute();
@@ -697,6 +997,8 @@ public final class SpiderQueen implements Runnable {
                 spiderInfo = SpiderInfo.read(pipe.open());
                 if (spiderInfo != null && spiderInfo.gid == mGalleryInfo.gid &&
                         spiderInfo.token.equals(mGalleryInfo.token)) {
+                    // The download dir might be removed, finished pages are unknown
+                    spiderInfo.finishedPages = null;
                     return spiderInfo;
                 }
             } catch (IOException e) {
@@ -710,24 +1012,57 @@ public final class SpiderQueen implements Runnable {
         return null;
     }
 
-    private void readPreviews(String body, int index, SpiderInfo spiderInfo) throws ParseException {
-        spiderInfo.pages = GalleryDetailParser.parsePages(body);
-        spiderInfo.previewPages = GalleryDetailParser.parsePreviewPages(body);
+    /**
+     * @return the pTokens which are new to the spider info
+     */
+    private SparseArray<String> readPreviews(String body, int index, SpiderInfo spiderInfo) throws ParseException {
+        int pages = GalleryDetailParser.parsePages(body);
+        int previewPages = GalleryDetailParser.parsePreviewPages(body);
         PreviewSet previewSet = GalleryDetailParser.parsePreviewSet(body);
-        if ((index >= 0 && index < spiderInfo.pages - 1) || (index == 0 && spiderInfo.pages == 1)) {
-            spiderInfo.previewPerPage = previewSet.size();
-        } else {
-            spiderInfo.previewPerPage = Math.max(spiderInfo.previewPerPage, previewSet.size());
-        }
 
-        for (int i = 0, n = previewSet.size(); i < n; i++) {
-            GalleryPageUrlParser.Result result = GalleryPageUrlParser.parse(previewSet.getPageUrlAt(i));
-            if (result != null) {
-                synchronized (mPTokenLock) {
-                    spiderInfo.pTokenMap.put(result.page, result.pToken);
+        SparseArray<String> newPTokens = new SparseArray<>(previewSet.size());
+        // Preview pages may be read at the same time
+        synchronized (mPTokenLock) {
+            spiderInfo.pages = pages;
+            spiderInfo.previewPages = previewPages;
+            if ((index >= 0 && index < spiderInfo.previewPages - 1) || (index == 0 && spiderInfo.previewPages == 1)) {
+                spiderInfo.previewPerPage = previewSet.size();
+            } else {
+                spiderInfo.previewPerPage = Math.max(spiderInfo.previewPerPage, previewSet.size());
+            }
+
+            for (int i = 0, n = previewSet.size(); i < n; i++) {
+                GalleryPageUrlParser.Result result = GalleryPageUrlParser.parse(previewSet.getPageUrlAt(i));
+                if (result != null) {
+                    if (!result.pToken.equals(spiderInfo.pTokenMap.get(result.page))) {
+                        newPTokens.put(result.page, result.pToken);
+                    }
+                    putPTokenLocked(spiderInfo, result.page, result.pToken);
                 }
             }
         }
+        return newPTokens;
+    }
+
+    /**
+     * Put the pToken to spider info and wake up the worker waiting on it.
+     * Must be called in mPTokenLock.
+     */
+    private void putPTokenLocked(SpiderInfo spiderInfo, int index, String pToken) {
+        spiderInfo.pTokenMap.put(index, pToken);
+        completePTokenFutureLocked(index, pToken);
+    }
+
+    /**
+     * Must be called in mPTokenLock.
+     */
+    private void completePTokenFutureLocked(int index, String pToken) {
+        int i = mPTokenFutureMap.indexOfKey(index);
+        if (i >= 0) {
+            PTokenFuture future = mPTokenFutureMap.valueAt(i);
+            mPTokenFutureMap.removeAt(i);
+            future.complete(pToken);
+        }
     }
 
     private SpiderInfo readSpiderInfoFromInternet(EhConfig config) {
@@ -750,52 +1085,81 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
-    private String getPTokenFromInternet(int index, EhConfig config) {
-        SpiderInfo spiderInfo = mSpiderInfo.get();
-        if (spiderInfo == null) {
-            return null;
+    private int getPreviewIndex(SpiderInfo spiderInfo, int index) {
+        synchronized (mPTokenLock) {
+            if (spiderInfo.previewPerPage > 0) {
+                return index / spiderInfo.previewPerPage;
+            } else {
+                return 0;
+            }
         }
+    }
 
-        // Check previewIndex
-        int previewIndex;
-        if (spiderInfo.previewPerPage >= 0) {
-            previewIndex = index / spiderInfo.previewPerPage;
-        } else {
-            previewIndex = 0;
+    /**
+     * @return true if all pTokens of the preview page are known
+     */
+    private boolean isPreviewPageResolved(SpiderInfo spiderInfo, int previewIndex) {
+        synchronized (mPTokenLock) {
+            int previewPerPage = spiderInfo.previewPerPage;
+            if (previewPerPage <= 0) {
+                return false;
+            }
+            int start = previewIndex * previewPerPage;
+            int end = Math.min(start + previewPerPage, spiderInfo.pages);
+            for (int i = start; i < end; i++) {
+                if (spiderInfo.pTokenMap.get(i) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private boolean getPreviewPageFromInternet(int previewIndex, EhConfig config) {
+        SpiderInfo spiderInfo = mSpiderInfo.get();
+        if (spiderInfo == null) {
+            return false;
         }
 
         try {
             String url = EhUrl.getGalleryDetailUrl(
                     mGalleryInfo.gid, mGalleryInfo.token, previewIndex, false);
             if (DEBUG_PTOKEN) {
-                Log.d(TAG, "index " + index + ", previewIndex " + previewIndex +
+                Log.d(TAG, "previewIndex " + previewIndex +
                         ", previewPerPage " + spiderInfo.previewPerPage+ ", url " + url);
             }
             Request request = new EhRequestBuilder(url, config).build();
             Response response = mHttpClient.newCall(request).execute();
             String body = response.body().string();
-            readPreviews(body, previewIndex, spiderInfo);
+            SparseArray<String> newPTokens = readPreviews(body, previewIndex, spiderInfo);
 
             // Save to local
-            writeSpiderInfoToLocal(spiderInfo);
-
-            String pToken;
-            synchronized (mPTokenLock) {
-                pToken = spiderInfo.pTokenMap.get(index);
-            }
-            return pToken;
+            appendPTokensToLocal(spiderInfo, newPTokens);
+            return true;
         } catch (Exception e) {
-            return null;
+            return false;
         }
     }
 
+    /**
+     * Write the whole spider info to download dir and cache. It compacts the journal.
+     */
     private synchronized void writeSpiderInfoToLocal(@NonNull SpiderInfo spiderInfo) {
+        mSpiderInfoJournalRecords = 0;
+        mSpiderInfoWrittenToDir = false;
+        mSpiderInfoDirty = false;
+        mFinishedRecords.reset();
+        mFinishedRecordCount = 0;
+
         // Write to download dir
         UniFile downloadDir = mSpiderDen.getDownloadDir();
         if (downloadDir != null) {
             UniFile file = downloadDir.createFile(SPIDER_INFO_FILENAME);
             try {
-                spiderInfo.write(file.openOutputStream());
+                synchronized (mPTokenLock) {
+                    spiderInfo.write(file.openOutputStream());
+                }
+                mSpiderInfoWrittenToDir = true;
             } catch (Exception e) {
                 // Ignore
             }
@@ -805,7 +1169,9 @@ public final class SpiderQueen implements Runnable {
         OutputStreamPipe pipe = mSpiderInfoCache.getOutputStreamPipe(Long.toString(mGalleryInfo.gid));
         try {
             pipe.obtain();
-            spiderInfo.write(pipe.open());
+            synchronized (mPTokenLock) {
+                spiderInfo.write(pipe.open());
+            }
         } catch (IOException e) {
             // Ignore
         } finally {
@@ -814,6 +1180,140 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
+    private void appendPTokensToLocal(@NonNull SpiderInfo spiderInfo, SparseArray<String> pTokens) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            synchronized (mPTokenLock) {
+                SpiderInfo.writePreviewRecord(baos, spiderInfo.previewPages, spiderInfo.previewPerPage);
+            }
+            for (int i = 0, n = pTokens.size(); i < n; i++) {
+                SpiderInfo.writePTokenRecord(baos, pTokens.keyAt(i), pTokens.valueAt(i));
+            }
+        } catch (IOException e) {
+            // Can't be here
+            return;
+        }
+        appendRecordsToLocal(spiderInfo, baos.toByteArray(), pTokens.size() + 1);
+    }
+
+    private void appendStartPageToLocal(@NonNull SpiderInfo spiderInfo, int startPage) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            SpiderInfo.writeStartPageRecord(baos, startPage);
+        } catch (IOException e) {
+            // Can't be here
+            return;
+        }
+        appendRecordsToLocal(spiderInfo, baos.toByteArray(), 1);
+    }
+
+    /**
+     * Set or clear the page in finished pages. Only download dir is recorded,
+     * the cache might be trimmed at any time.
+     */
+    private void updateFinishedPage(int index, boolean finished) {
+        SpiderInfo spiderInfo = mSpiderInfo.get();
+        if (spiderInfo == null) {
+            return;
+        }
+        // Lock order is this then mPTokenLock, records are in the order of the bits
+        synchronized (this) {
+            synchronized (mPTokenLock) {
+                BitSet finishedPages = spiderInfo.finishedPages;
+                if (finishedPages == null || finishedPages.get(index) == finished) {
+                    return;
+                }
+                finishedPages.set(index, finished);
+                try {
+                    SpiderInfo.writeFinishedRecord(mFinishedRecords, index, finished);
+                } catch (IOException e) {
+                    // Can't be here
+                    return;
+                }
+            }
+            // Written with snapshot if the queen stops before a batch
+            mSpiderInfoDirty = true;
+            if (++mFinishedRecordCount >= FINISHED_RECORD_BATCH) {
+                byte[] records = mFinishedRecords.toByteArray();
+                int count = mFinishedRecordCount;
+                mFinishedRecords.reset();
+                mFinishedRecordCount = 0;
+                appendRecordsToLocal(spiderInfo, records, count);
+            }
+        }
+    }
+
+    /**
+     * Mark finished pages in the table, their files are checked when they are read.
+     *
+     * @return the marked pages, they haven't been verified in this queen
+     */
+    private List<Integer> applyFinishedPages(@NonNull SpiderInfo spiderInfo, @NonNull SpiderPageTable table) {
+        List<Integer> restored = new ArrayList<>();
+        if (mSpiderDen.getDownloadDir() == null) {
+            return restored;
+        }
+        synchronized (mPTokenLock) {
+            BitSet finishedPages = spiderInfo.finishedPages;
+            if (finishedPages == null) {
+                return restored;
+            }
+            for (int i = finishedPages.nextSetBit(0); i >= 0 && i < table.size(); i = finishedPages.nextSetBit(i + 1)) {
+                if (table.getState(i) == STATE_NONE) {
+                    table.setState(i, STATE_FINISHED, null);
+                    restored.add(i);
+                }
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Verify pages marked from finished pages, after the table is set.
+     */
+    private void verifyRestoredPages(List<Integer> restored) {
+        for (int index : restored) {
+            verifyPage(index, null);
+        }
+    }
+
+    /**
+     * Append records to the spider info in download dir. The cache is
+     * only written when the journal is compacted or the queen stops.
+     */
+    private synchronized void appendRecordsToLocal(@NonNull SpiderInfo spiderInfo, byte[] records, int count) {
+        mSpiderInfoDirty = true;
+        mSpiderInfoJournalRecords += count;
+
+        int size;
+        synchronized (mPTokenLock) {
+            size = spiderInfo.pTokenMap.size();
+        }
+        UniFile downloadDir = mSpiderDen.getDownloadDir();
+        if (mSpiderInfoJournalRecords > Math.max(size, SPIDER_INFO_COMPACT_MIN_RECORDS) ||
+                (downloadDir != null && !mSpiderInfoWrittenToDir)) {
+            // The journal is too long, or the file in download dir
+            // is not written in this format
+            writeSpiderInfoToLocal(spiderInfo);
+            return;
+        }
+
+        if (downloadDir != null) {
+            UniFile file = downloadDir.subFile(SPIDER_INFO_FILENAME);
+            OutputStream os = null;
+            try {
+                os = file.openOutputStream(true);
+                os.write(records);
+                os.flush();
+            } catch (Exception e) {
+                // Rewrite it next time
+                mSpiderInfoWrittenToDir = false;
+            } finally {
+                IOUtils.closeQuietly(os);
+            }
+        }
+    }
+
     private void runInternal() {
         // Get EhConfig
         EhConfig config = Settings.getEhConfig().clone();
@@ -837,6 +1337,9 @@ public final class SpiderQueen implements Runnable {
         if (spiderInfo == null) {
             return;
         }
+        if (spiderInfo.finishedPages == null) {
+            spiderInfo.finishedPages = new BitSet(spiderInfo.pages);
+        }
         mSpiderInfo.lazySet(spiderInfo);
 
         // Check interrupted
@@ -853,9 +1356,18 @@ public final class SpiderQueen implements Runnable {
         }
 
         // Setup page state
-        synchronized (mPageStateLock) {
-            mPageStateArray = new int[spiderInfo.pages];
-        }
+        mProgressAggregator = new SpiderProgressAggregator(spiderInfo.pages, PROGRESS_INTERVAL,
+                new SpiderProgressAggregator.Callback() {
+                    @Override
+                    public void onProgress(SpiderProgress progress) {
+                        dispatchPageDownload(progress);
+                    }
+                });
+        SpiderPageTable table = new SpiderPageTable(spiderInfo.pages);
+        // Resume from finished pages, no file probe
+        List<Integer> restored = applyFinishedPages(spiderInfo, table);
+        mPageTable = table;
+        verifyRestoredPages(restored);
 
         // Notify get pages
         notifyGetPages(spiderInfo.pages);
@@ -864,59 +1376,129 @@ public final class SpiderQueen implements Runnable {
         tryToEnsureWorkers();
 
         // Start decoder
-        for (int i = 0; i < DECODE_THREAD_NUM; i++) {
+        for (int i = 0; i < mDecodeThreadNum; i++) {
             Thread decoderThread = new PriorityThread(new SpiderDecoder(i),
                     "SpiderDecoder-" + i, Process.THREAD_PRIORITY_DEFAULT);
             mDecodeThreadArray[i] = decoderThread;
             decoderThread.start();
         }
 
+        // Convert pages to or from the pack, downloaded pages can be read meanwhile
+        mSpiderDen.convert();
+
+        // Check interrupted
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+
         // handle pToken request
-        while (!Thread.currentThread().isInterrupted()) {
-            Integer index = mRequestPTokenQueue.poll();
+        resolvePTokens(spiderInfo, config);
+    }
 
-            if (index == null) {
-                // No request index, wait here
-                synchronized (mQueenLock) {
-                    try {
-                        mQueenLock.wait();
-                    } catch (InterruptedException e) {
-                        break;
+    /**
+     * Fetch preview pages for requested pTokens, at most {@link #PTOKEN_THREAD_NUM}
+     * at the same time. Requests for the same preview page share one fetch.
+     * When there is no request in download mode, preview pages are
+     * prefetched one by one to fill the pTokenMap.
+     */
+    private void resolvePTokens(SpiderInfo spiderInfo, EhConfig config) {
+        // Requested index -> preview index to fetch
+        SparseIntArray pendingMap = new SparseIntArray();
+        // Requested index -> fetched times
+        SparseIntArray tryMap = new SparseIntArray();
+        // Preview indexes in fetching
+        SparseBooleanArray fetchingMap = new SparseBooleanArray();
+        int fetchingCount = 0;
+        // Preview indexes prefetched, succeeded or not
+        SparseBooleanArray prefetchedMap = new SparseBooleanArray();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            // Collect requests
+            Integer index;
+            while ((index = mRequestPTokenQueue.poll()) != null) {
+                String pToken;
+                synchronized (mPTokenLock) {
+                    pToken = spiderInfo.pTokenMap.get(index);
+                    if (pToken != null) {
+                        // Get pToken from spider info
+                        completePTokenFutureLocked(index, pToken);
                     }
                 }
-                continue;
+                if (pToken == null && pendingMap.indexOfKey(index) < 0) {
+                    pendingMap.put(index, getPreviewIndex(spiderInfo, index));
+                }
             }
 
-            // Check it in spider info
-            String pToken;
-            synchronized (mPTokenLock) {
-                pToken = spiderInfo.pTokenMap.get(index);
-            }
-            if (pToken != null) {
-                // Get pToken from spider info, notify worker
-                synchronized (mWorkerLock) {
-                    mWorkerLock.notifyAll();
+            // Collect fetched preview pages
+            Integer previewIndex;
+            while ((previewIndex = mFetchedPreviewQueue.poll()) != null) {
+                fetchingMap.put(previewIndex, false);
+                fetchingCount--;
+                for (int i = pendingMap.size() - 1; i >= 0; i--) {
+                    if (pendingMap.valueAt(i) != previewIndex) {
+                        continue;
+                    }
+                    int key = pendingMap.keyAt(i);
+                    String pToken;
+                    synchronized (mPTokenLock) {
+                        pToken = spiderInfo.pTokenMap.get(key);
+                    }
+                    int tries = tryMap.get(key) + 1;
+                    if (pToken != null) {
+                        // The future is completed in readPreviews()
+                        pendingMap.removeAt(i);
+                        tryMap.delete(key);
+                    } else if (tries >= PTOKEN_MAX_TRY) {
+                        // If failed, set the pToken "failed"
+                        synchronized (mPTokenLock) {
+                            putPTokenLocked(spiderInfo, key, SpiderInfo.TOKEN_FAILED);
+                        }
+                        pendingMap.removeAt(i);
+                        tryMap.delete(key);
+                    } else {
+                        // Preview per page might be changed
+                        tryMap.put(key, tries);
+                        pendingMap.put(key, getPreviewIndex(spiderInfo, key));
+                    }
                 }
-                continue;
             }
 
-            // Get pToken from internet
-            pToken = getPTokenFromInternet(index, config);
-            if (null == pToken) {
-                // Preview size may changed, so try to get pToken twice
-                pToken = getPTokenFromInternet(index, config);
+            // Fetch preview pages for requests
+            for (int i = 0, n = pendingMap.size(); i < n && fetchingCount < PTOKEN_THREAD_NUM; i++) {
+                int p = pendingMap.valueAt(i);
+                if (!fetchingMap.get(p)) {
+                    fetchingMap.put(p, true);
+                    fetchingCount++;
+                    mPTokenPoolExecutor.execute(new PreviewFetcher(p, config));
+                }
             }
 
-            if (null == pToken) {
-                // If failed, set the pToken "failed"
+            // Prefetch the rest of pTokenMap
+            if (pendingMap.size() == 0 && fetchingCount == 0 && mDownloadPage >= 0) {
+                int previewPages;
                 synchronized (mPTokenLock) {
-                    spiderInfo.pTokenMap.put(index, SpiderInfo.TOKEN_FAILED);
+                    previewPages = spiderInfo.previewPages;
+                }
+                for (int p = 0; p < previewPages; p++) {
+                    if (!prefetchedMap.get(p) && !isPreviewPageResolved(spiderInfo, p)) {
+                        prefetchedMap.put(p, true);
+                        fetchingMap.put(p, true);
+                        fetchingCount++;
+                        mPTokenPoolExecutor.execute(new PreviewFetcher(p, config));
+                        break;
+                    }
                 }
             }
 
-            // Notify worker
-            synchronized (mWorkerLock) {
-                mWorkerLock.notifyAll();
+            synchronized (mQueenLock) {
+                if (mRequestPTokenQueue.isEmpty() && mFetchedPreviewQueue.isEmpty()) {
+                    // Nothing to do, wait here
+                    try {
+                        mQueenLock.wait();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
             }
         }
     }
@@ -940,12 +1522,31 @@ public final class SpiderQueen implements Runnable {
         }
 
         // Interrupt all workers
-        synchronized (mWorkerLock) {
-            mWorkerPoolExecutor.shutdownNow();
-            mWorkerPoolExecutor = null;
+        mWorkerStopped = true;
+        SpiderWorkerPool.getInstance().cancel(this);
+        mVerifier.stop();
+        mPTokenPoolExecutor.shutdownNow();
+        mPTokenPoolExecutor = null;
+
+        // Write the index of the pack
+        mSpiderDen.close();
+
+        // Write the journal to cache
+        SpiderInfo spiderInfo = mSpiderInfo.get();
+        if (spiderInfo != null) {
+            synchronized (this) {
+                if (mSpiderInfoDirty) {
+                    writeSpiderInfoToLocal(spiderInfo);
+                }
+            }
         }
         notifyFinish();
 
+        if (mDecodeTimeHistogram.getCount() > 0) {
+            Log.i(TAG, mDecodeWaitHistogram.toString());
+            Log.i(TAG, mDecodeTimeHistogram.toString());
+        }
+
         if (DEBUG_LOG) {
             Log.i(TAG, Thread.currentThread().getName() + ": end");
         }
@@ -955,41 +1556,21 @@ public final class SpiderQueen implements Runnable {
         updatePageState(index, state, null);
     }
 
-    private boolean isStateDone(int state) {
-        return state == STATE_FINISHED || state == STATE_FAILED;
-    }
-
     private void updatePageState(int index, @State int state, String error) {
-        int oldState;
-        synchronized (mPageStateLock) {
-            oldState = mPageStateArray[index];
-            mPageStateArray[index] = state;
-
-            if (!isStateDone(oldState) && isStateDone(state)) {
-                mDownloadedPages.incrementAndGet();
-            } else if (isStateDone(oldState) && !isStateDone(state)) {
-                mDownloadedPages.decrementAndGet();
-            }
-            if (oldState != STATE_FINISHED && state == STATE_FINISHED) {
-                mFinishedPages.incrementAndGet();
-            } else if (oldState == STATE_FINISHED && state != STATE_FINISHED) {
-                mFinishedPages.decrementAndGet();
-            }
+        // Get default error
+        if (state == STATE_FAILED && error == null) {
+            error = GetText.getString(R.string.error_unknown);
+        }
 
-            // Clear
-            if (state == STATE_DOWNLOADING) {
-                mPageErrorMap.remove(index);
-            } else if (state == STATE_FINISHED || state == STATE_FAILED) {
-                mPagePercentMap.remove(index);
-            }
+        mPageTable.setState(index, state, error);
 
-            // Get default error
-            if (state == STATE_FAILED) {
-                if (error == null) {
-                    error = GetText.getString(R.string.error_unknown);
-                }
-                mPageErrorMap.put(index, error);
+        // Keep finished pages of download dir
+        if (state == STATE_FINISHED) {
+            if (mDownloadPage >= 0) {
+                updateFinishedPage(index, true);
             }
+        } else if (state != STATE_DOWNLOADING) {
+            updateFinishedPage(index, false);
         }
 
         // Notify listeners
@@ -1000,7 +1581,32 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
-    private class SpiderWorker implements Runnable {
+    private class PreviewFetcher implements Runnable {
+
+        private final int mPreviewIndex;
+        private final EhConfig mConfig;
+
+        public PreviewFetcher(int previewIndex, EhConfig config) {
+            mPreviewIndex = previewIndex;
+            mConfig = config;
+        }
+
+        @Override
+        public void run() {
+            boolean succeed = getPreviewPageFromInternet(mPreviewIndex, mConfig);
+            if (DEBUG_PTOKEN) {
+                Log.d(TAG, "Fetch preview page " + mPreviewIndex + (succeed ? " succeed" : " failed"));
+            }
+
+            // Notify Queen
+            mFetchedPreviewQueue.add(mPreviewIndex);
+            synchronized (mQueenLock) {
+                mQueenLock.notify();
+            }
+        }
+    }
+
+    private class SpiderWorker {
 
         private final long mGid;
 
@@ -1040,17 +1646,22 @@ public final class SpiderQueen implements Runnable {
         }
 
         // false for stop
-        private boolean downloadImage(long gid, int index, String pToken, boolean force) {
-            List<String> skipHathKeys = new ArrayList<>(5);
+        /**
+         * @param priority true for pages requested by the reader or read ahead,
+         *                 false for pages of the download
+         */
+        private boolean downloadImage(long gid, int index, String pToken, boolean force, boolean priority) {
+            List<String> skipHathKeys = new ArrayList<>(IMAGE_MAX_TRY);
             String skipHathKey = null;
             String imageUrl;
             String error = null;
             String pageUrl = null;
             boolean interrupt = false;
             boolean leakSkipHathKey = false;
+            int hostSkips = 0;
 
             // Try twice
-            for (int i = 0; i < 5; i++) {
+            for (int i = 0; i < IMAGE_MAX_TRY; i++) {
                 if (leakSkipHathKey) {
                     break;
                 }
@@ -1103,20 +1714,77 @@ public final class SpiderQueen implements Runnable {
                     Log.d(TAG, imageUrl);
                 }
 
-                // Download image
-                OutputStreamPipe pipe = null;
-                InputStream is = null;
+                // Download image, resume from the partial data if possible
+                SpiderPartial partial = mSpiderDen.getPartial(index);
+                if (null == partial) {
+                    error = GetText.getString(R.string.error_write_failed);
+                    break;
+                }
+                String resumeKey = SpiderPartial.getResumeKey(imageUrl);
+                String host = SpiderPartial.getHost(imageUrl);
+                long offset = partial.getResumeOffset(resumeKey);
+
+                // Ask for another node at once if this one is known to be slow or busy,
+                // it isn't a failed try
+                ImageHostRegistry registry = ImageHostRegistry.getInstance();
+                if (!leakSkipHathKey && hostSkips < IMAGE_MAX_HOST_SKIP && registry.shouldAvoid(host)) {
+                    if (DEBUG_LOG) {
+                        Log.d(TAG, "Skip host " + host + " for image " + index);
+                    }
+                    error = GetText.getString(R.string.error_slow_host);
+                    hostSkips++;
+                    i--;
+                    continue;
+                }
+                boolean acquired;
+                try {
+                    acquired = registry.tryAcquire(host, HOST_WAIT_TIMEOUT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = "Interrupted";
+                    interrupt = true;
+                    break;
+                }
+                if (!acquired) {
+                    // Let the worker do other work, the page is downloaded later
+                    requeuePage(index, priority);
+                    return true;
+                }
+
+                BufferedSource source = null;
+                BufferedSink sink = null;
                 try {
                     if (DEBUG_LOG) {
-                        Log.d(TAG, "Start download image " + index);
+                        Log.d(TAG, "Start download image " + index + ", offset " + offset);
                     }
 
-                    Call call = mHttpClient.newCall(new EhRequestBuilder(imageUrl).build());
+                    EhRequestBuilder builder = new EhRequestBuilder(imageUrl);
+                    if (offset > 0) {
+                        builder.addHeader("Range", "bytes=" + offset + "-");
+                        // Without If-Range, the data is checked by Content-Range total length
+                        String validator = partial.getValidator(host);
+                        if (validator != null) {
+                            builder.addHeader("If-Range", validator);
+                        }
+                    }
+                    Call call = mHttpClient.newCall(builder.build());
+                    long requestTime = SystemClock.uptimeMillis();
                     Response response = call.execute();
-                    if (response.code() >= 400) {
+                    registry.onResponse(host, SystemClock.uptimeMillis() - requestTime);
+                    int code = response.code();
+                    if (code == 416 && offset > 0) {
+                        // The partial data is useless
+                        response.body().close();
+                        partial.delete();
+                        error = "Bad code: " + code;
+                        continue;
+                    }
+                    if (code >= 400) {
                         // Maybe 404
                         response.body().close();
-                        error = "Bad code: " + response.code();
+                        error = "Bad code: " + code;
+                        mConcurrency.onError(false);
+                        registry.onError(host);
                         continue;
                     }
                     ResponseBody responseBody = response.body();
@@ -1129,55 +1797,95 @@ public final class SpiderQueen implements Runnable {
                         extension = GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS[0];
                     }
 
-                    // Get out put pipe
-                    pipe = mSpiderDen.openOutputStreamPipe(index, extension);
-                    if (null == pipe) {
-                        // Can't get pipe
-                        error = GetText.getString(R.string.error_write_failed);
-                        response.body().close();
-                        break;
+                    long contentLength;
+                    long receivedSize;
+                    if (offset > 0 && code == 206) {
+                        long[] range = SpiderPartial.parseContentRange(response.header("Content-Range"));
+                        long totalLength = partial.getTotalLength();
+                        if (range == null || range[0] != offset ||
+                                (totalLength >= 0 && range[2] >= 0 && range[2] != totalLength)) {
+                            // Not the range or not the image we want
+                            Log.w(TAG, "Bad Content-Range for image " + index + ": " +
+                                    response.header("Content-Range"));
+                            responseBody.close();
+                            partial.delete();
+                            error = "Bad Content-Range";
+                            continue;
+                        }
+                        contentLength = range[2] >= 0 ? range[2] : totalLength;
+                        receivedSize = offset;
+                    } else {
+                        // Full content, the range is refused or there is no range
+                        contentLength = responseBody.contentLength();
+                        receivedSize = 0;
+                        if (!partial.begin(resumeKey, host, SpiderPartial.getValidator(response), contentLength)) {
+                            error = GetText.getString(R.string.error_write_failed);
+                            responseBody.close();
+                            break;
+                        }
                     }
 
-                    long contentLength = responseBody.contentLength();
-                    is = responseBody.byteStream();
-                    pipe.obtain();
-                    OutputStream os = pipe.open();
-
-                    final byte data[] = new byte[1024 * 4];
-                    long receivedSize = 0;
+                    // Move pooled segments from the response to the file, no byte array
+                    source = responseBody.source();
+                    sink = partial.openSink();
+                    Buffer buffer = sink.buffer();
+                    long bodyTime = SystemClock.uptimeMillis();
+                    long bodyOffset = receivedSize;
 
-                    while (!Thread.currentThread().isInterrupted()) {
-                        int bytesRead = is.read(data);
-                        if (bytesRead == -1) {
-                            response.body().close();
-                            break;
-                        }
-                        os.write(data, 0, bytesRead);
-                        receivedSize += bytesRead;
-                        // Update page percent
-                        if (contentLength > 0) {
-                            mPagePercentMap.put(index, (float) receivedSize / contentLength);
+                    mMeter.onPageStart(contentLength, receivedSize);
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            long bytesRead = source.read(buffer, READ_BUFFER_SIZE);
+                            if (bytesRead == -1) {
+                                response.body().close();
+                                break;
+                            }
+                            // Write in batches
+                            if (buffer.size() >= READ_BUFFER_SIZE) {
+                                sink.emitCompleteSegments();
+                            }
+                            receivedSize += bytesRead;
+                            // Update page percent
+                            if (contentLength > 0) {
+                                mPageTable.setProgress(index, (float) receivedSize / contentLength);
+                            }
+                            // Notify listener
+                            notifyPageDownload(index, contentLength, receivedSize, (int) bytesRead);
+                            // Wait for the speed limit, pages for the reader go first
+                            BandwidthLimiter.getInstance().consume(bytesRead, priority);
                         }
-                        // Notify listener
-                        notifyPageDownload(index, contentLength, receivedSize, bytesRead);
+                    } finally {
+                        mMeter.onPageEnd(contentLength, receivedSize);
+                    }
+                    sink.flush();
+                    IOUtils.closeQuietly(sink);
+                    sink = null;
+
+                    // Check interrupted, keep the partial data for next time
+                    if (Thread.currentThread().isInterrupted()) {
+                        interrupt = true;
+                        error = "Interrupted";
+                        break;
                     }
-                    os.flush();
 
                     // check download size
                     if (contentLength >= 0) {
                         if (receivedSize < contentLength) {
                             Log.e(TAG, "Can't download all of image data");
                             error = "Incomplete";
+                            registry.onError(host);
                             continue;
                         } else if (receivedSize > contentLength) {
                             Log.w(TAG, "Received data is more than contentLength");
                         }
                     }
 
-                    // Check interrupted
-                    if (Thread.currentThread().isInterrupted()) {
-                        interrupt = true;
-                        error = "Interrupted";
+                    registry.onSuccess(host, receivedSize - bodyOffset,
+                            SystemClock.uptimeMillis() - bodyTime);
+
+                    // Move the data to the den
+                    if (!mSpiderDen.commitPartial(index, partial, extension)) {
+                        error = GetText.getString(R.string.error_write_failed);
                         break;
                     }
 
@@ -1186,16 +1894,22 @@ public final class SpiderQueen implements Runnable {
                     }
 
                     // Download finished
+                    mMeter.onPageFinished(receivedSize);
                     updatePageState(index, STATE_FINISHED);
+                    verifyPage(index, SpiderVerifier.getSha1(response.request().url()));
                     return true;
+                } catch (SocketTimeoutException e) {
+                    error = GetText.getString(R.string.error_timeout);
+                    mConcurrency.onError(true);
+                    registry.onError(host);
                 } catch (IOException e) {
                     error = GetText.getString(R.string.error_socket);
+                    mConcurrency.onError(false);
+                    registry.onError(host);
                 } finally {
-                    IOUtils.closeQuietly(is);
-                    if (null != pipe) {
-                        pipe.close();
-                        pipe.release();
-                    }
+                    IOUtils.closeQuietly(source);
+                    IOUtils.closeQuietly(sink);
+                    registry.release(host);
 
                     if (DEBUG_LOG) {
                         Log.d(TAG, "End download image " + index);
@@ -1203,13 +1917,28 @@ public final class SpiderQueen implements Runnable {
                 }
             }
 
-            // Remove download failed image
+            // Remove download failed image, the partial data is kept for resuming
             mSpiderDen.remove(index);
 
             updatePageState(index, STATE_FAILED, error);
             return !interrupt;
         }
 
+        /**
+         * Put the page back to where it's from, it hasn't been tried.
+         */
+        private void requeuePage(int index, boolean priority) {
+            updatePageState(index, STATE_NONE);
+            synchronized (mRequestPageQueue) {
+                if (priority) {
+                    mRequestPageQueue.add(index);
+                } else if (mDownloadPage > index) {
+                    // Finished pages are skipped again
+                    mDownloadPage = index;
+                }
+            }
+        }
+
         // false for stop
         private boolean runInternal() {
             SpiderInfo spiderInfo = mSpiderInfo.get();
@@ -1217,12 +1946,14 @@ public final class SpiderQueen implements Runnable {
                 return false;
             }
 
-            int size = mPageStateArray.length;
+            int size = mPageTable.size();
 
             // Get request index
             int index;
             // From force request
             boolean force = false;
+            // Not from the download
+            boolean priority = true;
             synchronized (mRequestPageQueue) {
                 if (!mForceRequestPageQueue.isEmpty()) {
                     index = mForceRequestPageQueue.remove();
@@ -1232,8 +1963,18 @@ public final class SpiderQueen implements Runnable {
                 } else if (!mRequestPageQueue2.isEmpty()) {
                     index = mRequestPageQueue2.remove();
                 } else if (mDownloadPage >= 0 && mDownloadPage < size) {
-                    index = mDownloadPage;
-                    mDownloadPage++;
+                    // Skip finished pages
+                    int page = mDownloadPage;
+                    while (page < size && mPageTable.getState(page) == STATE_FINISHED) {
+                        page++;
+                    }
+                    if (page >= size) {
+                        mDownloadPage = size;
+                        return false;
+                    }
+                    index = page;
+                    mDownloadPage = page + 1;
+                    priority = false;
                 } else {
                     // No index any more, stop
                     return false;
@@ -1246,20 +1987,16 @@ public final class SpiderQueen implements Runnable {
                 }
             }
 
-            synchronized (mPageStateLock) {
-                // Check the page state
-                int state = mPageStateArray[index];
-                if (state == STATE_DOWNLOADING || (!force && (state == STATE_FINISHED || state == STATE_FAILED))) {
-                    return true;
-                }
-
-                // Set state downloading
-                updatePageState(index, STATE_DOWNLOADING);
+            // Check the page state and set state downloading
+            if (!mPageTable.startDownloading(index, force)) {
+                return true;
             }
 
             // Check exist for not force request
             if (!force && mSpiderDen.contain(index)) {
                 updatePageState(index , STATE_FINISHED);
+                // Copied from cache or left by old version, check it too
+                verifyPage(index, null);
                 return true;
             }
 
@@ -1270,38 +2007,39 @@ public final class SpiderQueen implements Runnable {
                     if (i >= 0) {
                         String pToken = spiderInfo.pTokenMap.valueAt(i);
                         if (SpiderInfo.TOKEN_FAILED.equals(pToken)) {
-                            spiderInfo.pTokenMap.remove(i);
+                            spiderInfo.pTokenMap.removeAt(i);
                         }
                     }
                 }
             }
 
-            String pToken = null;
+            String pToken;
+            PTokenFuture future = null;
             // Get token
-            while (!Thread.currentThread().isInterrupted()) {
-                synchronized (mPTokenLock) {
-                    pToken = spiderInfo.pTokenMap.get(index);
-                }
+            synchronized (mPTokenLock) {
+                pToken = spiderInfo.pTokenMap.get(index);
                 if (pToken == null) {
-                    mRequestPTokenQueue.add(index);
-                    // Notify Queen
-                    synchronized (mQueenLock) {
-                        mQueenLock.notify();
+                    future = mPTokenFutureMap.get(index);
+                    if (future == null) {
+                        future = new PTokenFuture();
+                        mPTokenFutureMap.put(index, future);
                     }
-                    // Wait
-                    synchronized (mWorkerLock) {
-                        try {
-                            mWorkerLock.wait();
-                        } catch (InterruptedException e) {
-                            // Interrupted
-                            if (DEBUG_LOG) {
-                                Log.d(TAG, Thread.currentThread().getName() + " Interrupted");
-                            }
-                            break;
-                        }
+                }
+            }
+            if (future != null) {
+                mRequestPTokenQueue.add(index);
+                // Notify Queen
+                synchronized (mQueenLock) {
+                    mQueenLock.notify();
+                }
+                // Wait, only this worker is woken up when the pToken is got
+                try {
+                    pToken = future.get();
+                } catch (InterruptedException e) {
+                    // Interrupted
+                    if (DEBUG_LOG) {
+                        Log.d(TAG, Thread.currentThread().getName() + " Interrupted");
                     }
-                } else {
-                    break;
                 }
             }
 
@@ -1319,36 +2057,12 @@ public final class SpiderQueen implements Runnable {
             }
 
             // Get image url
-            return downloadImage(mGid, index, pToken, force);
-        }
-
-        @Override
-        @SuppressWarnings("StatementWithEmptyBody")
-        public void run() {
-            if (DEBUG_LOG) {
-                Log.i(TAG, Thread.currentThread().getName() + ": start");
-            }
-
-            while (mSpiderDen.isReady() && !Thread.currentThread().isInterrupted() && runInternal());
-
-            boolean finish;
-            // Clear in spider worker array
-            synchronized (mWorkerLock) {
-                mWorkerCount--;
-                if (mWorkerCount < 0) {
-                    Log.e(TAG, "WTF, mWorkerCount < 0, not thread safe or something wrong");
-                    mWorkerCount = 0;
-                }
-                finish = mWorkerCount <= 0;
-            }
-
-            if (finish) {
-                notifyFinish();
-            }
-
-            if (DEBUG_LOG) {
-                Log.i(TAG, Thread.currentThread().getName() + ": end");
+            long startTime = SystemClock.uptimeMillis();
+            boolean result = downloadImage(mGid, index, pToken, force, priority);
+            if (getPageState(index) == STATE_FINISHED) {
+                mReadAhead.onPageFetched(SystemClock.uptimeMillis() - startTime);
             }
+            return result;
         }
     }
 
@@ -1374,8 +2088,10 @@ public final class SpiderQueen implements Runnable {
 
             while (!Thread.currentThread().isInterrupted()) {
                 int index;
+                long requestTime;
                 synchronized (mDecodeRequestQueue) {
-                    if (mDecodeRequestQueue.isEmpty()) {
+                    DecodeRequest request = pollDecodeRequest();
+                    if (request == null) {
                         try {
                             mDecodeRequestQueue.wait();
                         } catch (InterruptedException e) {
@@ -1384,12 +2100,15 @@ public final class SpiderQueen implements Runnable {
                         }
                         continue;
                     }
-                    index = mDecodeRequestQueue.remove();
+                    index = request.index;
+                    requestTime = request.time;
                     mDecodeIndexArray[mThreadIndex] = index;
                 }
+                long startTime = SystemClock.uptimeMillis();
+                mDecodeWaitHistogram.record(startTime - requestTime);
 
                 // Check index valid
-                if (index < 0 || index >= mPageStateArray.length) {
+                if (index < 0 || index >= mPageTable.size()) {
                     resetDecodeIndex();
                     notifyGetImageFailure(index, GetText.getString(R.string.error_out_of_range));
                     continue;
@@ -1405,12 +2124,16 @@ public final class SpiderQueen implements Runnable {
                     continue;
                 }
 
-                Image image = null;
+                ImageWrapper image = null;
                 String error = null;
                 InputStream is;
+                int sampleSize = 1;
 
                 pipe.obtain();
                 try {
+                    // Read bounds first
+                    sampleSize = PageDecoder.getSampleSize(pipe.open());
+                    pipe.close();
                     is = new AutoCloseInputStream(pipe, pipe.open());
                 } catch (IOException e) {
                     // Can't open pipe
@@ -1421,7 +2144,9 @@ public final class SpiderQueen implements Runnable {
                 }
 
                 if (is != null) {
-                    image = Image.decode(is, true);
+                    image = PageDecoder.decode(is, sampleSize,
+                            SharedImageCache.getGalleryKey(mGalleryInfo.gid), index);
+                    mDecodeTimeHistogram.record(SystemClock.uptimeMillis() - startTime);
                     if (image == null) {
                         error = GetText.getString(R.string.error_decoding_failed);
                     }
@@ -1443,6 +2168,37 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
+    /**
+     * A one-shot handle of the pToken of a page.
+     */
+    private static class PTokenFuture {
+
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private volatile String mPToken;
+
+        public void complete(String pToken) {
+            mPToken = pToken;
+            mLatch.countDown();
+        }
+
+        public String get() throws InterruptedException {
+            mLatch.await();
+            return mPToken;
+        }
+    }
+
+    private static class DecodeRequest {
+
+        public final int index;
+        // Enqueue time, uptime millis
+        public final long time;
+
+        public DecodeRequest(int index, long time) {
+            this.index = index;
+            this.time = time;
+        }
+    }
+
     private class AutoCloseInputStream extends InputStream {
 
         private final InputStreamPipe mPipe;
@@ -1476,11 +2232,6 @@ public final class SpiderQueen implements Runnable {
 
         void onGet509(int index);
 
-        /**
-         * @param contentLength -1 for unknown
-         */
-        void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead);
-
         void onPageSuccess(int index, int finished, int downloaded, int total);
 
         void onPageFailure(int index, String error, int finished, int downloaded, int total);
@@ -1490,8 +2241,22 @@ public final class SpiderQueen implements Runnable {
          */
         void onFinish(int finished, int downloaded, int total);
 
-        void onGetImageSuccess(int index, Image image);
+        void onGetImageSuccess(int index, ImageWrapper image);
 
         void onGetImageFailure(int index, String error);
     }
+
+    /**
+     * A listener which shows download progress of pages. Progress is only
+     * collected while there is one.
+     */
+    public interface OnPageDownloadListener extends OnSpiderListener {
+
+        /**
+         * Download progress of pages, coalesced in an interval. It is
+         * called before {@link #onPageSuccess} and {@link #onPageFailure}
+         * of the pages in it.
+         */
+        void onPageDownload(SpiderProgress progress);
+    }
 }
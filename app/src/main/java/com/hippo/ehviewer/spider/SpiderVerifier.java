@@ -0,0 +1,344 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Check downloaded pages on a low priority thread. The header of the
+ * image format and its end marker are checked, and the SHA-1 of the file
+ * is compared with the one in {@code /h/<sha1>-<size>-<width>-<height>-<type>}
+ * of the image url if there is one.
+ * <p>
+ * The finish of the queen is held until all pages are checked.
+ */
+final class SpiderVerifier {
+
+    private static final String TAG = SpiderVerifier.class.getSimpleName();
+    private static final boolean DEBUG_LOG = false;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int HEAD_SIZE = 8;
+
+    private static final byte[] JPEG_HEAD = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] JPEG_TAIL = {(byte) 0xFF, (byte) 0xD9};
+    private static final byte[] PNG_HEAD = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] PNG_TAIL = {'I', 'E', 'N', 'D'};
+    private static final byte[] GIF_HEAD = {'G', 'I', 'F', '8'};
+    private static final byte[] GIF_TAIL = {0x3B};
+
+    // One thread for all queens, it's disk work
+    private static final ThreadPoolExecutor sExecutor;
+
+    static {
+        sExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new PriorityThreadFactory(TAG, Process.THREAD_PRIORITY_LOWEST));
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    interface Callback {
+
+        /**
+         * @return the stored data of the page, null if it is gone
+         */
+        @Nullable
+        InputStreamPipe openPage(int index);
+
+        /**
+         * The page is bad.
+         *
+         * @return true if the page will be downloaded again
+         */
+        boolean onVerifyFailure(int index);
+
+        /**
+         * All pages are checked after {@link #deferFinish()} returned true.
+         */
+        void onDeferredFinish();
+    }
+
+    private final Callback mCallback;
+
+    // Guarded by this
+    private int mPending;
+    private boolean mFinishDeferred;
+    private volatile boolean mStopped;
+
+    SpiderVerifier(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Return the SHA-1 of the image in the url, null if there is no one.
+     */
+    @Nullable
+    static String getSha1(@Nullable HttpUrl url) {
+        if (url == null) {
+            return null;
+        }
+        List<String> segments = url.pathSegments();
+        int index = segments.indexOf("h");
+        if (index < 0 || index + 1 >= segments.size()) {
+            return null;
+        }
+        String segment = segments.get(index + 1);
+        int end = segment.indexOf('-');
+        String sha1 = end >= 0 ? segment.substring(0, end) : segment;
+        if (sha1.length() != 40) {
+            return null;
+        }
+        for (int i = 0; i < 40; i++) {
+            if (Character.digit(sha1.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return sha1.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Check the page later.
+     *
+     * @param sha1 the expected SHA-1 in lowercase hex, null if it is unknown
+     */
+    void verify(final int index, @Nullable final String sha1) {
+        synchronized (this) {
+            mPending++;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                verifyInternal(index, sha1);
+            }
+        });
+    }
+
+    private void verifyInternal(int index, @Nullable String sha1) {
+        boolean requeued = false;
+        if (!mStopped) {
+            Boolean result = null;
+            InputStreamPipe pipe = mCallback.openPage(index);
+            if (pipe != null) {
+                try {
+                    pipe.obtain();
+                    result = verify(pipe.open(), sha1);
+                } catch (IOException e) {
+                    // The page might be removed, let the reader tell
+                    Log.w(TAG, "Can't read page " + index, e);
+                } finally {
+                    pipe.close();
+                    pipe.release();
+                }
+            }
+
+            if (DEBUG_LOG) {
+                Log.d(TAG, "Verify page " + index + ": " + result);
+            }
+
+            if (result != null && !result && !mStopped) {
+                requeued = mCallback.onVerifyFailure(index);
+            }
+        }
+
+        boolean finish;
+        synchronized (this) {
+            if (requeued) {
+                // The queen will finish again after the page
+                mFinishDeferred = false;
+            }
+            finish = --mPending == 0 && mFinishDeferred;
+            if (finish) {
+                mFinishDeferred = false;
+            }
+        }
+        if (finish && !mStopped) {
+            mCallback.onDeferredFinish();
+        }
+    }
+
+    /**
+     * Hold the finish if there are pages to check.
+     *
+     * @return true if {@link Callback#onDeferredFinish()} will be called
+     */
+    synchronized boolean deferFinish() {
+        if (mPending > 0) {
+            mFinishDeferred = true;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Drop pending pages, no more callback.
+     */
+    void stop() {
+        mStopped = true;
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the pattern in data which comes in pieces.
+     * The patterns here have no repeated prefix, so a mismatch
+     * only needs to check the byte against the first one again.
+     */
+    private static final class Marker {
+
+        private final byte[] mPattern;
+        private int mMatched;
+        private boolean mFound;
+
+        Marker(byte[] pattern) {
+            mPattern = pattern;
+        }
+
+        void update(byte[] data, int length) {
+            for (int i = 0; i < length && !mFound; i++) {
+                byte b = data[i];
+                if (b == mPattern[mMatched]) {
+                    mMatched++;
+                } else {
+                    mMatched = b == mPattern[0] ? 1 : 0;
+                }
+                if (mMatched == mPattern.length) {
+                    mFound = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the end marker of the image format, null if it is not an image.
+     */
+    @Nullable
+    static byte[] getTail(byte[] head, int headLength) {
+        if (startsWith(head, headLength, JPEG_HEAD)) {
+            return JPEG_TAIL;
+        } else if (startsWith(head, headLength, PNG_HEAD)) {
+            return PNG_TAIL;
+        } else if (startsWith(head, headLength, GIF_HEAD)) {
+            return GIF_TAIL;
+        } else {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Marker findMarker(Marker[] markers, @Nullable byte[] tail) {
+        for (Marker marker : markers) {
+            if (marker.mPattern == tail) {
+                return marker;
+            }
+        }
+        return null;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read all data of the stream and check it. The stream is not closed.
+     *
+     * @param sha1 the expected SHA-1 in lowercase hex, null if it is unknown
+     */
+    static boolean verify(InputStream is, @Nullable String sha1) throws IOException {
+        MessageDigest digest = null;
+        if (sha1 != null) {
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                // Only check format
+            }
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] head = new byte[HEAD_SIZE];
+        int headLength = 0;
+        // Some encoders put data after the end marker, look for it everywhere.
+        // The markers can't be found in the heads, so the head is searched too
+        Marker[] markers = {new Marker(JPEG_TAIL), new Marker(PNG_TAIL), new Marker(GIF_TAIL)};
+        Marker marker = null;
+
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            if (digest != null) {
+                digest.update(buffer, 0, n);
+            }
+            if (headLength < HEAD_SIZE) {
+                int count = Math.min(HEAD_SIZE - headLength, n);
+                System.arraycopy(buffer, 0, head, headLength, count);
+                headLength += count;
+            }
+            if (marker != null) {
+                marker.update(buffer, n);
+            } else {
+                for (Marker m : markers) {
+                    m.update(buffer, n);
+                }
+                if (headLength == HEAD_SIZE) {
+                    marker = findMarker(markers, getTail(head, headLength));
+                    if (marker == null) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        if (marker == null) {
+            marker = findMarker(markers, getTail(head, headLength));
+        }
+        if (marker == null || !marker.mFound) {
+            return false;
+        }
+        return digest == null || sha1.equals(toHex(digest.digest()));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download workers shared by all queens. A worker downloads one page
+ * of a queen, then goes back to pick the next queen in turn, so a small
+ * gallery isn't held up by a large one. Queens in read mode are picked first.
+ * <p>
+ * Each queen has at most {@link SpiderQueen#getWorkerLimit()} workers,
+ * all queens have at most {@link #MAX_WORKER_COUNT} workers.
+ */
+final class SpiderWorkerPool {
+
+    private static final String TAG = SpiderWorkerPool.class.getSimpleName();
+    private static final boolean DEBUG_LOG = false;
+
+    // The global connection budget for images
+    static final int MAX_WORKER_COUNT = 10;
+
+    private static final SpiderWorkerPool sInstance = new SpiderWorkerPool();
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // Guarded by mEntries
+    private final List<Entry> mEntries = new ArrayList<>();
+    private int mNext;
+    private int mWorkerCount;
+
+    private static class Entry {
+        final SpiderQueen queen;
+        // Workers on the queen
+        int active;
+        // The queen has pages to download
+        boolean wanted;
+        // Increased for each request, to tell whether a request comes during working
+        int requestId;
+        final List<Thread> threads = new ArrayList<>();
+        boolean removed;
+
+        Entry(SpiderQueen queen) {
+            this.queen = queen;
+        }
+    }
+
+    static SpiderWorkerPool getInstance() {
+        return sInstance;
+    }
+
+    private SpiderWorkerPool() {
+        mExecutor = new ThreadPoolExecutor(MAX_WORKER_COUNT, MAX_WORKER_COUNT,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new PriorityThreadFactory("SpiderWorker", Process.THREAD_PRIORITY_BACKGROUND));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private Entry getEntryLocked(SpiderQueen queen) {
+        for (int i = 0, n = mEntries.size(); i < n; i++) {
+            Entry entry = mEntries.get(i);
+            if (entry.queen == queen) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAvailable(Entry entry) {
+        return entry.wanted && entry.active < entry.queen.getWorkerLimit();
+    }
+
+    /**
+     * Pick the next queen in turn, queens in read mode first.
+     */
+    private Entry pickLocked() {
+        int size = mEntries.size();
+        if (size == 0) {
+            return null;
+        }
+        int start = mNext % size;
+        Entry picked = null;
+        int pickedIndex = -1;
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % size;
+            Entry entry = mEntries.get(index);
+            if (isAvailable(entry) && (picked == null || (entry.queen.isReading() && !picked.queen.isReading()))) {
+                picked = entry;
+                pickedIndex = index;
+                if (entry.queen.isReading()) {
+                    break;
+                }
+            }
+        }
+        if (picked != null) {
+            mNext = pickedIndex + 1;
+        }
+        return picked;
+    }
+
+    private void startWorkersLocked() {
+        int active = 0;
+        int demand = 0;
+        for (int i = 0, n = mEntries.size(); i < n; i++) {
+            Entry entry = mEntries.get(i);
+            active += entry.active;
+            if (entry.wanted) {
+                demand += Math.max(0, entry.queen.getWorkerLimit() - entry.active);
+            }
+        }
+        // Workers not working on a page will pick a queen soon
+        while (mWorkerCount < MAX_WORKER_COUNT && mWorkerCount - active < demand) {
+            mWorkerCount++;
+            mExecutor.execute(new Worker());
+        }
+    }
+
+    /**
+     * The queen has pages to download.
+     */
+    void request(SpiderQueen queen) {
+        synchronized (mEntries) {
+            Entry entry = getEntryLocked(queen);
+            if (entry == null) {
+                entry = new Entry(queen);
+                mEntries.add(entry);
+            }
+            entry.wanted = true;
+            entry.requestId++;
+            startWorkersLocked();
+        }
+    }
+
+    /**
+     * The worker limit of a queen is raised.
+     */
+    void onLimitIncreased() {
+        synchronized (mEntries) {
+            startWorkersLocked();
+        }
+    }
+
+    /**
+     * Remove the queen and interrupt the workers on it.
+     */
+    void cancel(SpiderQueen queen) {
+        synchronized (mEntries) {
+            Entry entry = getEntryLocked(queen);
+            if (entry == null) {
+                return;
+            }
+            mEntries.remove(entry);
+            entry.removed = true;
+            entry.wanted = false;
+            for (Thread thread : entry.threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            Thread thread = Thread.currentThread();
+            for (;;) {
+                Entry entry;
+                int requestId;
+                synchronized (mEntries) {
+                    entry = pickLocked();
+                    if (entry == null) {
+                        mWorkerCount--;
+                        return;
+                    }
+                    entry.active++;
+                    entry.threads.add(thread);
+                    requestId = entry.requestId;
+                }
+
+                boolean more = false;
+                boolean returned = false;
+                try {
+                    more = entry.queen.work();
+                    returned = true;
+                } finally {
+                    boolean finish;
+                    synchronized (mEntries) {
+                        entry.active--;
+                        entry.threads.remove(thread);
+                        if (!returned) {
+                            // The thread is dead
+                            mWorkerCount--;
+                        }
+                        // No page now, unless a request comes during working
+                        if (!more && requestId == entry.requestId) {
+                            entry.wanted = false;
+                        }
+                        finish = !entry.removed && !entry.wanted && entry.active == 0;
+                    }
+                    // The interrupt is for the queen, not for next one
+                    Thread.interrupted();
+
+                    if (finish) {
+                        if (DEBUG_LOG) {
+                            Log.d(TAG, "Queen " + entry.queen + " has no page to download");
+                        }
+                        entry.queen.onWorkFinished();
+                    }
+                }
+            }
+        }
+    }
+}
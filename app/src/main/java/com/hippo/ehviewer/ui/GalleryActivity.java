@@ -57,7 +57,9 @@ import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.gallery.DirGalleryProvider;
 import com.hippo.ehviewer.gallery.EhGalleryProvider;
 import com.hippo.ehviewer.gallery.GalleryProvider2;
+import com.hippo.ehviewer.gallery.PackGalleryProvider;
 import com.hippo.ehviewer.gallery.ZipGalleryProvider;
+import com.hippo.ehviewer.spider.SpiderPack;
 import com.hippo.ehviewer.widget.GalleryGuideView;
 import com.hippo.ehviewer.widget.ReversibleSeekBar;
 import com.hippo.glgallery.GalleryPageView;
@@ -201,8 +203,12 @@ public class GalleryActivity extends EhActivity implements SeekBar.OnSeekBarChan
             }
         } else if (Intent.ACTION_VIEW.equals(mAction)) {
             if (mUri != null) {
-                // Only support zip now
-                mGalleryProvider = new ZipGalleryProvider(new File(mUri.getPath()));
+                String path = mUri.getPath();
+                if (path != null && path.endsWith(SpiderPack.EXTENSION)) {
+                    mGalleryProvider = new PackGalleryProvider(UniFile.fromFile(new File(path)));
+                } else {
+                    mGalleryProvider = new ZipGalleryProvider(new File(path));
+                }
             }
         }
     }
@@ -591,6 +597,7 @@ public class GalleryActivity extends EhActivity implements SeekBar.OnSeekBarChan
     @Override
     public void onUpdateCurrentIndex(int index) {
         if (null != mGalleryProvider) {
+            mGalleryProvider.setCurrentIndex(index);
             mGalleryProvider.putStartPage(index);
         }
 
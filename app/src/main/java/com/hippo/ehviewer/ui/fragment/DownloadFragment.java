@@ -29,11 +29,13 @@ import android.support.annotation.Nullable;
 import android.support.v7.app.AlertDialog;
 import android.widget.Toast;
 
+import com.hippo.ehviewer.EhApplication;
 import com.hippo.ehviewer.R;
 import com.hippo.ehviewer.Settings;
 import com.hippo.ehviewer.ui.CommonOperations;
 import com.hippo.ehviewer.ui.DirPickerActivity;
 import com.hippo.unifile.UniFile;
+import com.hippo.yorozuya.NumberUtils;
 
 public class DownloadFragment extends PreferenceFragment implements
         Preference.OnPreferenceChangeListener,
@@ -54,12 +56,18 @@ public class DownloadFragment extends PreferenceFragment implements
 
         Preference mediaScan = findPreference(Settings.KEY_MEDIA_SCAN);
         Preference imageResolution = findPreference(Settings.KEY_IMAGE_RESOLUTION);
+        Preference speedLimit = findPreference(Settings.KEY_SPEED_LIMIT);
+        Preference speedLimitFrom = findPreference(Settings.KEY_SPEED_LIMIT_FROM);
+        Preference speedLimitTo = findPreference(Settings.KEY_SPEED_LIMIT_TO);
         mDownloadLocation = findPreference(KEY_DOWNLOAD_LOCATION);
 
         onUpdateDownloadLocation();
 
         mediaScan.setOnPreferenceChangeListener(this);
         imageResolution.setOnPreferenceChangeListener(this);
+        speedLimit.setOnPreferenceChangeListener(this);
+        speedLimitFrom.setOnPreferenceChangeListener(this);
+        speedLimitTo.setOnPreferenceChangeListener(this);
 
         if (mDownloadLocation != null) {
             mDownloadLocation.setOnPreferenceClickListener(this);
@@ -207,6 +215,22 @@ public class DownloadFragment extends PreferenceFragment implements
                 Settings.putImageResolution((String) newValue);
             }
             return true;
+        } else if (Settings.KEY_SPEED_LIMIT.equals(key) ||
+                Settings.KEY_SPEED_LIMIT_FROM.equals(key) ||
+                Settings.KEY_SPEED_LIMIT_TO.equals(key)) {
+            if (newValue instanceof String) {
+                int value = NumberUtils.parseIntSafely((String) newValue, 0);
+                if (Settings.KEY_SPEED_LIMIT.equals(key)) {
+                    Settings.putSpeedLimit(value);
+                } else if (Settings.KEY_SPEED_LIMIT_FROM.equals(key)) {
+                    Settings.putSpeedLimitFrom(value);
+                } else {
+                    Settings.putSpeedLimitTo(value);
+                }
+                // Apply it now, not after the preference is saved
+                EhApplication.getDownloadManager(getActivity()).updateBandwidthLimit();
+            }
+            return true;
         }
         return false;
     }
@@ -71,6 +71,7 @@ import com.hippo.ehviewer.client.EhUtils;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.dao.DownloadInfo;
 import com.hippo.ehviewer.dao.DownloadLabel;
+import com.hippo.ehviewer.download.DownloadInfoList;
 import com.hippo.ehviewer.download.DownloadManager;
 import com.hippo.ehviewer.download.DownloadService;
 import com.hippo.ehviewer.spider.SpiderDen;
@@ -127,7 +128,7 @@ public class DownloadsScene extends ToolbarScene
     @Nullable
     private String mLabel;
     @Nullable
-    private List<DownloadInfo> mList;
+    private DownloadInfoList mList;
 
     /*---------------
      View life cycle
@@ -681,7 +682,7 @@ public class DownloadsScene extends ToolbarScene
         if (0 == position) {
             recyclerView.checkAll();
         } else {
-            List<DownloadInfo> list = mList;
+            DownloadInfoList list = mList;
             if (list == null) {
                 return;
             }
@@ -700,12 +701,13 @@ public class DownloadsScene extends ToolbarScene
             SparseBooleanArray stateArray = recyclerView.getCheckedItemPositions();
             for (int i = 0, n = stateArray.size(); i < n; i++) {
                 if (stateArray.valueAt(i)) {
-                    DownloadInfo info = list.get(stateArray.keyAt(i));
+                    int checkedPosition = stateArray.keyAt(i);
+                    // Only load download info if it is used
                     if (collectDownloadInfo) {
-                        downloadInfoList.add(info);
+                        downloadInfoList.add(list.get(checkedPosition));
                     }
                     if (collectGid) {
-                        gidList.add(info.gid);
+                        gidList.add(list.getGid(checkedPosition));
                     }
                 }
             }
@@ -833,6 +835,27 @@ public class DownloadsScene extends ToolbarScene
         // TODO
     }
 
+    /**
+     * Show an empty item until the download info is loaded.
+     */
+    private void bindPlaceholder(DownloadHolder holder) {
+        holder.thumb.unload();
+        holder.title.setText(null);
+        holder.uploader.setText(null);
+        holder.rating.setRating(0);
+        holder.category.setText(null);
+        holder.state.setText(null);
+        holder.uploader.setVisibility(View.VISIBLE);
+        holder.rating.setVisibility(View.VISIBLE);
+        holder.category.setVisibility(View.VISIBLE);
+        holder.state.setVisibility(View.VISIBLE);
+        holder.progressBar.setVisibility(View.GONE);
+        holder.percent.setVisibility(View.GONE);
+        holder.speed.setVisibility(View.GONE);
+        holder.start.setVisibility(View.GONE);
+        holder.stop.setVisibility(View.GONE);
+    }
+
     private void bindForState(DownloadHolder holder, DownloadInfo info) {
         Resources resources = getResources2();
         if (null == resources) {
@@ -909,7 +932,7 @@ public class DownloadsScene extends ToolbarScene
             holder.progressBar.setMax(info.total);
             holder.progressBar.setProgress(info.finished);
         }
-        long speed = info.speed;
+        long speed = null != mDownloadManager ? mDownloadManager.getSpeed(info.gid) : -1;
         if (speed < 0) {
             speed = 0;
         }
@@ -1132,7 +1155,7 @@ public class DownloadsScene extends ToolbarScene
             if (mList == null || position < 0 || position >= mList.size()) {
                 return 0;
             }
-            return mList.get(position).gid;
+            return mList.getGid(position);
         }
 
         @Override
@@ -1145,7 +1168,11 @@ public class DownloadsScene extends ToolbarScene
             if (mList == null) {
                 return;
             }
-            DownloadInfo info = mList.get(position);
+            DownloadInfo info = mList.peek(position);
+            if (info == null) {
+                bindPlaceholder(holder);
+                return;
+            }
             holder.thumb.load(EhCacheKeyFactory.getThumbKey(info.gid), info.thumb,
                     new ThumbDataContainer(info), true);
             holder.title.setText(EhUtils.getSuitableTitle(info));
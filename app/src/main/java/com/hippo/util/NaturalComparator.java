@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Compares strings like people do, digits are compared as numbers,
+ * {@code "2.jpg" < "10.jpg"}, letters are compared ignoring case.
+ */
+public class NaturalComparator implements Comparator<String> {
+
+  public static final NaturalComparator INSTANCE = new NaturalComparator();
+
+  /**
+   * A string split into text and number parts, build it once for sorting.
+   */
+  public static final class Key implements Comparable<Key> {
+
+    private final String string;
+    // Text in lower case, or digits without leading zeros
+    private final String[] parts;
+    private final boolean[] numbers;
+
+    private Key(String string) {
+      this.string = string;
+
+      int count = 0;
+      for (int i = 0, n = string.length(); i < n; count++) {
+        i = partEnd(string, i);
+      }
+      parts = new String[count];
+      numbers = new boolean[count];
+
+      for (int i = 0, j = 0, n = string.length(); i < n; j++) {
+        int end = partEnd(string, i);
+        if (isDigit(string.charAt(i))) {
+          int start = i;
+          while (start < end - 1 && string.charAt(start) == '0') {
+            start++;
+          }
+          parts[j] = string.substring(start, end);
+          numbers[j] = true;
+        } else {
+          parts[j] = string.substring(i, end).toLowerCase(Locale.US);
+        }
+        i = end;
+      }
+    }
+
+    public String getString() {
+      return string;
+    }
+
+    @Override
+    public int compareTo(Key o) {
+      for (int i = 0, n = Math.min(parts.length, o.parts.length); i < n; i++) {
+        int result;
+        if (numbers[i] && o.numbers[i]) {
+          // Same number of digits, then the digits
+          result = parts[i].length() - o.parts[i].length();
+          if (result == 0) {
+            result = parts[i].compareTo(o.parts[i]);
+          }
+        } else if (numbers[i] != o.numbers[i]) {
+          // Number first
+          result = numbers[i] ? -1 : 1;
+        } else {
+          result = parts[i].compareTo(o.parts[i]);
+        }
+        if (result != 0) {
+          return result;
+        }
+      }
+      int result = parts.length - o.parts.length;
+      // Keep the order stable for "01" and "1", "a" and "A"
+      return result != 0 ? result : string.compareTo(o.string);
+    }
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static int partEnd(String string, int start) {
+    boolean digit = isDigit(string.charAt(start));
+    int end = start + 1;
+    for (int n = string.length(); end < n && isDigit(string.charAt(end)) == digit; end++);
+    return end;
+  }
+
+  public static Key key(String string) {
+    return new Key(string);
+  }
+
+  /**
+   * Sort the strings, keys are only built once for each string.
+   */
+  public static void sort(String[] strings) {
+    Key[] keys = new Key[strings.length];
+    for (int i = 0; i < strings.length; i++) {
+      keys[i] = new Key(strings[i]);
+    }
+    Arrays.sort(keys);
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = keys[i].string;
+    }
+  }
+
+  @Override
+  public int compare(String lhs, String rhs) {
+    return new Key(lhs).compareTo(new Key(rhs));
+  }
+}
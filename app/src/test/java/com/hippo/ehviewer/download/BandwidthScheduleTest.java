@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.download;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BandwidthScheduleTest {
+
+  @Test
+  public void testWindow() {
+    BandwidthSchedule schedule = new BandwidthSchedule();
+    schedule.add(9 * 60, 18 * 60, 1000);
+    assertEquals(0, schedule.getRate(8 * 60 + 59));
+    assertEquals(1000, schedule.getRate(9 * 60));
+    assertEquals(1000, schedule.getRate(17 * 60 + 59));
+    assertEquals(0, schedule.getRate(18 * 60));
+    assertEquals(60, schedule.getNextChange(8 * 60));
+    assertEquals(9 * 60, schedule.getNextChange(9 * 60));
+    assertEquals(15 * 60, schedule.getNextChange(18 * 60));
+  }
+
+  @Test
+  public void testOverMidnight() {
+    BandwidthSchedule schedule = new BandwidthSchedule();
+    schedule.add(22 * 60, 2 * 60, 1000);
+    schedule.add(20 * 60, 23 * 60, 2000);
+    assertEquals(2000, schedule.getRate(21 * 60));
+    // The first one wins
+    assertEquals(1000, schedule.getRate(22 * 60));
+    assertEquals(1000, schedule.getRate(60));
+    assertEquals(0, schedule.getRate(2 * 60));
+    assertEquals(30, schedule.getNextChange(22 * 60 + 30));
+    assertEquals(3 * 60, schedule.getNextChange(23 * 60));
+  }
+
+  @Test
+  public void testAllDay() {
+    BandwidthSchedule schedule = new BandwidthSchedule();
+    assertEquals(0, schedule.getRate(0));
+    assertEquals(-1, schedule.getNextChange(0));
+    schedule.add(6 * 60, 6 * 60, 1000);
+    assertEquals(1000, schedule.getRate(0));
+    assertEquals(1000, schedule.getRate(6 * 60));
+    assertEquals(-1, schedule.getNextChange(0));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.download;
+
+import static org.junit.Assert.assertEquals;
+
+import com.hippo.ehviewer.dao.DownloadInfo;
+import org.junit.Test;
+
+public class DownloadInfoListTest {
+
+  private static final DownloadInfoList.Loader LOADER = new DownloadInfoList.Loader() {
+    @Override
+    public DownloadInfo load(DownloadInfoList list, int position) {
+      DownloadInfoList.Entry entry = list.getEntry(position);
+      DownloadInfo info = new DownloadInfo();
+      info.gid = entry.gid;
+      info.time = entry.time;
+      return info;
+    }
+
+    @Override
+    public DownloadInfo peek(DownloadInfoList list, int position) {
+      return load(list, position);
+    }
+  };
+
+  private static DownloadInfoList.Entry entry(long gid, long time) {
+    return new DownloadInfoList.Entry(gid, time, null, DownloadInfo.STATE_NONE);
+  }
+
+  private static void assertGids(DownloadInfoList list, long... gids) {
+    assertEquals(gids.length, list.size());
+    for (int i = 0; i < gids.length; i++) {
+      assertEquals(gids[i], list.getGid(i));
+    }
+  }
+
+  @Test
+  public void testOrder() {
+    DownloadInfoList list = new DownloadInfoList(LOADER);
+    assertEquals(0, list.addEntry(entry(1, 300)));
+    assertEquals(1, list.addEntry(entry(2, 100)));
+    assertEquals(1, list.addEntry(entry(3, 200)));
+    // The same time
+    assertEquals(1, list.addEntry(entry(4, 200)));
+    assertGids(list, 1, 4, 3, 2);
+
+    DownloadInfo info = list.get(2);
+    assertEquals(3, info.gid);
+    assertEquals(2, list.indexOf(info));
+
+    assertEquals(1, list.removeEntry(entry(4, 200)));
+    assertEquals(-1, list.removeEntry(entry(4, 200)));
+    assertGids(list, 1, 3, 2);
+  }
+
+  @Test
+  public void testMerge() {
+    DownloadInfoList a = new DownloadInfoList(LOADER);
+    a.addEntry(entry(1, 500));
+    a.addEntry(entry(2, 300));
+    DownloadInfoList b = new DownloadInfoList(LOADER);
+    b.addEntry(entry(3, 400));
+    b.addEntry(entry(4, 100));
+    a.merge(b);
+    assertGids(a, 1, 3, 2, 4);
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.gallery;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PageDecoderTest {
+
+  @Test
+  public void testGetSampleSize() {
+    // Fits the screen
+    assertEquals(1, PageDecoder.getSampleSize(1080, 1920, 1920));
+    assertEquals(1, PageDecoder.getSampleSize(1280, 1810, 1920));
+    // Original image
+    assertEquals(2, PageDecoder.getSampleSize(2400, 3400, 1920));
+    // Long strip
+    assertEquals(2, PageDecoder.getSampleSize(800, 20000, 1920));
+    assertEquals(4, PageDecoder.getSampleSize(800, 100000, 1920));
+    // Both sides are large
+    assertEquals(4, PageDecoder.getSampleSize(8000, 8000, 1920));
+    // Small screen still has the minimal budget
+    assertEquals(1, PageDecoder.getSampleSize(1280, 1810, 800));
+  }
+}
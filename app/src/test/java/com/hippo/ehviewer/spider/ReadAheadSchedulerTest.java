@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReadAheadSchedulerTest {
+
+  @Test
+  public void testDefault() {
+    ReadAheadScheduler scheduler = new ReadAheadScheduler(3);
+    assertTrue(scheduler.isForward());
+    assertEquals(3, scheduler.getWindow());
+    assertArrayEquals(new int[] {6, 4, 7, 8}, scheduler.plan(5, Integer.MAX_VALUE));
+    assertArrayEquals(new int[] {1, 2}, scheduler.plan(0, 3));
+    assertArrayEquals(new int[0], new ReadAheadScheduler(0).plan(5, 10));
+  }
+
+  @Test
+  public void testBackward() {
+    ReadAheadScheduler scheduler = new ReadAheadScheduler(2);
+    long time = 0;
+    for (int i = 20; i >= 15; i--) {
+      scheduler.onPageChanged(i, time);
+      time += 5000;
+    }
+    assertFalse(scheduler.isForward());
+    assertArrayEquals(new int[] {14, 16, 13}, scheduler.plan(15, 100));
+  }
+
+  @Test
+  public void testPace() {
+    ReadAheadScheduler scheduler = new ReadAheadScheduler(2);
+    // Slow reading keeps the min window
+    long time = 0;
+    for (int i = 0; i < 10; i++) {
+      scheduler.onPageChanged(i, time);
+      time += 20000;
+    }
+    assertEquals(2, scheduler.getWindow());
+
+    // Flipping through pages, 2 pages per second
+    for (int i = 10; i < 30; i++) {
+      scheduler.onPageChanged(i, time);
+      time += 500;
+    }
+    assertEquals(6, scheduler.getWindow());
+
+    // Jump with seek bar
+    scheduler.onPageChanged(100, time + 100);
+    assertEquals(6, scheduler.getWindow());
+    assertTrue(scheduler.isForward());
+
+    // Fast network
+    for (int i = 0; i < 20; i++) {
+      scheduler.onPageFetched(500);
+    }
+    assertEquals(3, scheduler.getWindow());
+  }
+}
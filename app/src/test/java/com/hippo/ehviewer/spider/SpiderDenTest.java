@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.unifile.UniFile;
+import com.hippo.yorozuya.IOUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import okio.BufferedSink;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SpiderDenTest {
+
+  private static final long GID = 1;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] page(int index, int size) {
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte) (index + 1));
+    return data;
+  }
+
+  private static void write(File file, byte[] data) throws IOException {
+    OutputStream os = new FileOutputStream(file);
+    try {
+      os.write(data);
+    } finally {
+      os.close();
+    }
+  }
+
+  private static byte[] read(SpiderDen den, int index) throws IOException {
+    InputStreamPipe pipe = den.openDownloadInputStreamPipe(index);
+    assertNotNull(pipe);
+    pipe.obtain();
+    try {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      IOUtils.copy(pipe.open(), os);
+      return os.toByteArray();
+    } finally {
+      pipe.close();
+      pipe.release();
+    }
+  }
+
+  private boolean commit(SpiderDen den, int index, byte[] data) throws IOException {
+    SpiderPartial partial = new SpiderPartial(folder.newFolder(), GID, index);
+    BufferedSink sink = partial.openSink();
+    try {
+      sink.write(data);
+    } finally {
+      sink.close();
+    }
+    return den.commitPartial(index, partial, "jpg");
+  }
+
+  private static SpiderDen newDen(File dir, boolean packWanted, int mode) {
+    SpiderDen den = new SpiderDen(GID, UniFile.fromFile(dir), packWanted);
+    den.setMode(mode);
+    return den;
+  }
+
+  private static File imageFile(File dir, int index) {
+    return new File(dir, SpiderDen.generateImageFilename(index, ".jpg"));
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        assertTrue(file.delete());
+      }
+    }
+    assertTrue(dir.delete());
+  }
+
+  @Test
+  public void testRestoredPack() throws IOException {
+    // A restored gallery only has its pack and the info file
+    File dir = folder.newFolder();
+    SpiderPack pack = SpiderPack.open(UniFile.fromFile(new File(dir, SpiderPack.FILENAME)));
+    assertNotNull(pack);
+    byte[] data = page(0, 100);
+    assertTrue(pack.append(0, ".jpg", new ByteArrayInputStream(data), data.length));
+    pack.flush();
+
+    SpiderDen den = newDen(dir, false, SpiderQueen.MODE_READ);
+    assertTrue(den.contain(0));
+    assertFalse(den.contain(1));
+    assertArrayEquals(data, read(den, 0));
+    den.close();
+  }
+
+  @Test
+  public void testReadModeCreatesNoPack() throws IOException {
+    File dir = folder.newFolder();
+    SpiderDen den = newDen(dir, true, SpiderQueen.MODE_READ);
+    assertTrue(commit(den, 0, page(0, 100)));
+    den.close();
+
+    assertFalse(new File(dir, SpiderPack.FILENAME).exists());
+    assertTrue(imageFile(dir, 0).exists());
+  }
+
+  @Test
+  public void testDownloadModeCreatesPack() throws IOException {
+    File dir = folder.newFolder();
+    SpiderDen den = newDen(dir, true, SpiderQueen.MODE_DOWNLOAD);
+    assertTrue(commit(den, 0, page(0, 100)));
+    den.close();
+
+    assertTrue(new File(dir, SpiderPack.FILENAME).exists());
+    assertFalse(imageFile(dir, 0).exists());
+    assertArrayEquals(page(0, 100), read(newDen(dir, false, SpiderQueen.MODE_READ), 0));
+  }
+
+  @Test
+  public void testConvert() throws IOException {
+    File dir = folder.newFolder();
+    write(imageFile(dir, 0), page(0, 100));
+    write(imageFile(dir, 1), page(1, 200));
+
+    // Image files to the pack
+    SpiderDen den = newDen(dir, true, SpiderQueen.MODE_DOWNLOAD);
+    den.convert();
+    assertTrue(new File(dir, SpiderPack.FILENAME).exists());
+    assertFalse(imageFile(dir, 0).exists());
+    assertFalse(imageFile(dir, 1).exists());
+    assertArrayEquals(page(0, 100), read(den, 0));
+    assertArrayEquals(page(1, 200), read(den, 1));
+    den.close();
+
+    // The pack to image files
+    den = newDen(dir, false, SpiderQueen.MODE_DOWNLOAD);
+    den.convert();
+    assertFalse(new File(dir, SpiderPack.FILENAME).exists());
+    assertTrue(imageFile(dir, 0).exists());
+    assertTrue(imageFile(dir, 1).exists());
+    assertArrayEquals(page(0, 100), read(den, 0));
+    assertArrayEquals(page(1, 200), read(den, 1));
+    den.close();
+  }
+
+  @Test
+  public void testDeleteDownloadWhileHeld() throws IOException {
+    File dir = folder.newFolder();
+    SpiderDen old = newDen(dir, true, SpiderQueen.MODE_DOWNLOAD);
+    assertTrue(commit(old, 0, page(0, 100)));
+
+    // Deleted and downloaded again while the old den still holds the pack
+    deleteDir(dir);
+    assertTrue(dir.mkdir());
+    SpiderDen den = newDen(dir, true, SpiderQueen.MODE_DOWNLOAD);
+    assertFalse(den.contain(0));
+    assertTrue(commit(den, 1, page(1, 200)));
+    old.close();
+    den.close();
+
+    SpiderPack pack = SpiderPack.open(UniFile.fromFile(new File(dir, SpiderPack.FILENAME)));
+    assertNotNull(pack);
+    assertArrayEquals(new int[] {1}, pack.getIndexes());
+    assertNull(pack.openInputStreamPipe(0));
+  }
+
+  @Test
+  public void testNoWriteAfterClose() throws IOException {
+    File dir = folder.newFolder();
+    SpiderDen den = newDen(dir, true, SpiderQueen.MODE_DOWNLOAD);
+    assertTrue(commit(den, 0, page(0, 100)));
+    den.close();
+
+    assertFalse(commit(den, 1, page(1, 100)));
+    assertFalse(den.remove(0));
+    assertArrayEquals(page(0, 100), read(den, 0));
+  }
+
+  @Test
+  public void testReplaceImageFile() throws IOException {
+    File dir = folder.newFolder();
+    File png = new File(dir, SpiderDen.generateImageFilename(0, ".png"));
+    write(png, page(0, 100));
+
+    SpiderDen den = newDen(dir, false, SpiderQueen.MODE_DOWNLOAD);
+    assertTrue(commit(den, 0, page(1, 200)));
+    assertFalse(png.exists());
+    assertTrue(imageFile(dir, 0).exists());
+    assertArrayEquals(page(1, 200), read(den, 0));
+  }
+
+  @Test
+  public void testSweepOldTempFiles() throws IOException {
+    File dir = folder.newFolder();
+    File fresh = new File(dir, SpiderDen.generateImageFilename(0, ".jpg") + ".tmp");
+    File old = new File(dir, SpiderDen.generateImageFilename(1, ".jpg") + ".tmp");
+    write(fresh, page(0, 100));
+    write(old, page(1, 100));
+    assertTrue(old.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+
+    SpiderDen den = newDen(dir, false, SpiderQueen.MODE_READ);
+    assertFalse(den.contain(0));
+    // Another den might be writing it
+    assertTrue(fresh.exists());
+    assertFalse(old.exists());
+  }
+}
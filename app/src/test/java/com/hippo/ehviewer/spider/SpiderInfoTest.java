@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.SparseArray;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SpiderInfoTest {
+
+  private static SpiderInfo newSpiderInfo() {
+    SpiderInfo spiderInfo = new SpiderInfo();
+    spiderInfo.startPage = 3;
+    spiderInfo.gid = 1234567L;
+    spiderInfo.token = "abcdef0123";
+    spiderInfo.pages = 300;
+    spiderInfo.previewPages = -1;
+    spiderInfo.previewPerPage = 40;
+    spiderInfo.pTokenMap = new SparseArray<>();
+    spiderInfo.pTokenMap.put(0, "0123456789");
+    spiderInfo.pTokenMap.put(299, "9876543210");
+    spiderInfo.pTokenMap.put(1, SpiderInfo.TOKEN_FAILED);
+    return spiderInfo;
+  }
+
+  private static SpiderInfo read(byte[] bytes) {
+    return SpiderInfo.read(new ByteArrayInputStream(bytes));
+  }
+
+  @Test
+  public void testWriteRead() {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    newSpiderInfo().write(baos);
+
+    SpiderInfo spiderInfo = read(baos.toByteArray());
+    assertNotNull(spiderInfo);
+    assertEquals(3, spiderInfo.startPage);
+    assertEquals(1234567L, spiderInfo.gid);
+    assertEquals("abcdef0123", spiderInfo.token);
+    assertEquals(300, spiderInfo.pages);
+    assertEquals(-1, spiderInfo.previewPages);
+    assertEquals(40, spiderInfo.previewPerPage);
+    assertEquals(2, spiderInfo.pTokenMap.size());
+    assertEquals("0123456789", spiderInfo.pTokenMap.get(0));
+    assertEquals("9876543210", spiderInfo.pTokenMap.get(299));
+    assertNull(spiderInfo.pTokenMap.get(1));
+  }
+
+  @Test
+  public void testJournal() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    newSpiderInfo().write(baos);
+    SpiderInfo.writePTokenRecord(baos, 150, "aaaaaaaaaa");
+    SpiderInfo.writePTokenRecord(baos, 0, "bbbbbbbbbb");
+    SpiderInfo.writeStartPageRecord(baos, 200);
+    SpiderInfo.writePreviewRecord(baos, 8, 20);
+
+    SpiderInfo spiderInfo = read(baos.toByteArray());
+    assertNotNull(spiderInfo);
+    assertEquals(200, spiderInfo.startPage);
+    assertEquals(8, spiderInfo.previewPages);
+    assertEquals(20, spiderInfo.previewPerPage);
+    assertEquals("aaaaaaaaaa", spiderInfo.pTokenMap.get(150));
+    assertEquals("bbbbbbbbbb", spiderInfo.pTokenMap.get(0));
+  }
+
+  @Test
+  public void testTruncatedJournal() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    newSpiderInfo().write(baos);
+    SpiderInfo.writePTokenRecord(baos, 150, "aaaaaaaaaa");
+    SpiderInfo.writePTokenRecord(baos, 151, "cccccccccc");
+    byte[] bytes = baos.toByteArray();
+
+    SpiderInfo spiderInfo = read(Arrays.copyOf(bytes, bytes.length - 3));
+    assertNotNull(spiderInfo);
+    assertEquals("aaaaaaaaaa", spiderInfo.pTokenMap.get(150));
+    assertNull(spiderInfo.pTokenMap.get(151));
+  }
+
+  @Test
+  public void testFinishedPages() throws IOException {
+    SpiderInfo info = newSpiderInfo();
+    info.finishedPages = new BitSet(info.pages);
+    info.finishedPages.set(0);
+    info.finishedPages.set(9);
+    info.finishedPages.set(299);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    info.write(baos);
+    SpiderInfo.writeFinishedRecord(baos, 10, true);
+    SpiderInfo.writeFinishedRecord(baos, 9, false);
+
+    SpiderInfo spiderInfo = read(baos.toByteArray());
+    assertNotNull(spiderInfo);
+    assertEquals(3, spiderInfo.finishedPages.cardinality());
+    assertTrue(spiderInfo.finishedPages.get(0));
+    assertFalse(spiderInfo.finishedPages.get(9));
+    assertTrue(spiderInfo.finishedPages.get(10));
+    assertTrue(spiderInfo.finishedPages.get(299));
+  }
+
+  @Test
+  public void testReadVersion2() {
+    String str = "VERSION2\n"
+        + "00000003\n"
+        + "1234567\n"
+        + "abcdef0123\n"
+        + "1\n"
+        + "8\n"
+        + "40\n"
+        + "300\n"
+        + "0 0123456789\n"
+        + "299 9876543210\n";
+
+    SpiderInfo spiderInfo = read(str.getBytes());
+    assertNotNull(spiderInfo);
+    assertEquals(3, spiderInfo.startPage);
+    assertEquals(1234567L, spiderInfo.gid);
+    assertEquals("abcdef0123", spiderInfo.token);
+    assertEquals(8, spiderInfo.previewPages);
+    assertEquals(40, spiderInfo.previewPerPage);
+    assertEquals(300, spiderInfo.pages);
+    assertEquals("0123456789", spiderInfo.pTokenMap.get(0));
+    assertEquals("9876543210", spiderInfo.pTokenMap.get(299));
+  }
+
+  @Test
+  public void testReadVersion1() {
+    String str = "00000003\n"
+        + "1234567\n"
+        + "abcdef0123\n"
+        + "1\n"
+        + "8\n"
+        + "0\n"
+        + "300\n"
+        + "0 0123456789\n";
+
+    SpiderInfo spiderInfo = read(str.getBytes());
+    assertNotNull(spiderInfo);
+    assertEquals(3, spiderInfo.startPage);
+    assertEquals(-1, spiderInfo.previewPerPage);
+    assertEquals("0123456789", spiderInfo.pTokenMap.get(0));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SpiderMeterTest {
+
+  @Test
+  public void testSpeed() {
+    SpiderMeter meter = new SpiderMeter();
+    assertEquals(-1, meter.getSpeed(SpiderMeter.HORIZON_SHORT, 0));
+    // Idle time before the first bytes doesn't count
+    assertEquals(-1, meter.getSpeed(SpiderMeter.HORIZON_SHORT, 10000));
+
+    // 100 KB/s
+    long time = 10000;
+    for (int i = 0; i < 10; i++) {
+      meter.onBytesRead(-1, 100 * 1024);
+      time += 1000;
+      long speed = meter.getSpeed(SpiderMeter.HORIZON_LONG, time);
+      assertTrue(Math.abs(speed - 100 * 1024) < 1024);
+    }
+
+    // Stall, the short horizon drops faster
+    time += 10000;
+    long shortSpeed = meter.getSpeed(SpiderMeter.HORIZON_SHORT, time);
+    long longSpeed = meter.getSpeed(SpiderMeter.HORIZON_LONG, time);
+    assertTrue(shortSpeed < 20 * 1024);
+    assertTrue(longSpeed > 40 * 1024);
+  }
+
+  @Test
+  public void testRemainingTime() {
+    SpiderMeter meter = new SpiderMeter();
+    meter.getSpeed(SpiderMeter.HORIZON_MEDIUM, 0);
+
+    // One page of 1000 bytes finished
+    meter.onPageStart(1000, 0);
+    meter.onBytesRead(1000, 1000);
+    meter.onPageEnd(1000, 1000);
+    meter.onPageFinished(1000);
+    assertEquals(1000, meter.getPageSize());
+
+    // One page in progress, half of 2000 bytes left
+    meter.onPageStart(2000, 0);
+    meter.onBytesRead(2000, 1000);
+
+    // 2000 bytes per second
+    assertEquals(1000 + 2 * 1000, meter.getRemainingTime(3, 1000) * 2000 / 1000);
+  }
+}
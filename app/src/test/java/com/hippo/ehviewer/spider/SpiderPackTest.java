@@ -0,0 +1,292 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.hippo.unifile.UniFile;
+import com.hippo.yorozuya.IOUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SpiderPackTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] page(int index, int size) {
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte) index);
+    return data;
+  }
+
+  private static boolean append(SpiderPack pack, int index, int size) {
+    byte[] data = page(index, size);
+    return pack.append(index, ".jpg", new ByteArrayInputStream(data), data.length);
+  }
+
+  private static byte[] read(SpiderPack pack, int index) throws IOException {
+    InputStream is = pack.openInputStream(index);
+    try {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      IOUtils.copy(is, os);
+      return os.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  private UniFile newPackFile() throws IOException {
+    return UniFile.fromFile(new File(folder.newFolder(), SpiderPack.FILENAME));
+  }
+
+  @Test
+  public void testAppendRead() throws IOException {
+    UniFile file = newPackFile();
+    SpiderPack pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    assertTrue(append(pack, 2, 100));
+    assertTrue(append(pack, 0, 5000));
+    assertTrue(append(pack, 1, 0));
+    assertTrue(pack.remove(0));
+    assertTrue(append(pack, 0, 10));
+
+    assertArrayEquals(new int[] {0, 1, 2}, pack.getIndexes());
+    assertEquals(".jpg", pack.getExtension(2));
+    assertArrayEquals(page(0, 10), read(pack, 0));
+    assertArrayEquals(page(1, 0), read(pack, 1));
+    assertArrayEquals(page(2, 100), read(pack, 2));
+
+    // With index block and without
+    for (int i = 0; i < 2; i++) {
+      if (i == 0) {
+        pack.flush();
+      } else {
+        assertTrue(append(pack, 3, 7));
+      }
+      SpiderPack reopened = SpiderPack.open(file);
+      assertNotNull(reopened);
+      assertArrayEquals(pack.getIndexes(), reopened.getIndexes());
+      assertArrayEquals(page(0, 10), read(reopened, 0));
+      assertArrayEquals(page(2, 100), read(reopened, 2));
+    }
+  }
+
+  @Test
+  public void testTornTail() throws IOException {
+    UniFile file = newPackFile();
+    SpiderPack pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    assertTrue(append(pack, 0, 100));
+    assertTrue(append(pack, 1, 100));
+
+    // Cut the last page in half
+    RandomAccessFile raf = new RandomAccessFile(new File(file.getUri().getPath()), "rw");
+    raf.setLength(raf.length() - 50);
+    raf.close();
+
+    pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    assertArrayEquals(new int[] {0}, pack.getIndexes());
+    assertTrue(append(pack, 1, 30));
+    assertArrayEquals(page(1, 30), read(pack, 1));
+
+    pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    assertArrayEquals(new int[] {0, 1}, pack.getIndexes());
+    assertArrayEquals(page(0, 100), read(pack, 0));
+    assertArrayEquals(page(1, 30), read(pack, 1));
+  }
+
+  @Test
+  public void testCompact() throws IOException {
+    UniFile file = newPackFile();
+    SpiderPack pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(append(pack, i, 100));
+    }
+    for (int i = 0; i < 10; i += 2) {
+      assertTrue(pack.remove(i));
+    }
+    long length = file.length();
+    assertTrue(pack.compact());
+    assertTrue(file.length() < length);
+    assertFalse(pack.contain(0));
+    assertArrayEquals(page(9, 100), read(pack, 9));
+
+    pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    assertArrayEquals(new int[] {1, 3, 5, 7, 9}, pack.getIndexes());
+  }
+
+  @Test
+  public void testCompactInFlush() throws IOException {
+    UniFile file = newPackFile();
+    SpiderPack pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(append(pack, i, 512 * 1024));
+    }
+    // Replace pages
+    for (int i = 0; i < 3; i++) {
+      assertTrue(append(pack, i, 100));
+    }
+    long length = file.length();
+    pack.flush();
+    assertTrue(file.length() < length / 2);
+    assertArrayEquals(page(1, 100), read(pack, 1));
+    assertArrayEquals(page(3, 512 * 1024), read(pack, 3));
+  }
+
+  @Test
+  public void testLongRemoveBlock() throws IOException {
+    UniFile file = newPackFile();
+    SpiderPack pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    assertTrue(append(pack, 0, 100));
+
+    // A remove block with a longer body, from a later version
+    RandomAccessFile raf = new RandomAccessFile(new File(file.getUri().getPath()), "rw");
+    raf.seek(raf.length());
+    raf.writeByte(2);
+    raf.writeInt(8);
+    raf.writeInt(0);
+    raf.writeInt(-1);
+    raf.close();
+    pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    assertTrue(append(pack, 1, 10));
+
+    pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    assertArrayEquals(new int[] {1}, pack.getIndexes());
+    assertArrayEquals(page(1, 10), read(pack, 1));
+  }
+
+  @Test
+  public void testAppendWhileCompacting() throws Exception {
+    UniFile file = newPackFile();
+    final SpiderPack pack = SpiderPack.open(file);
+    assertNotNull(pack);
+    for (int i = 0; i < 20; i++) {
+      assertTrue(append(pack, i, 64 * 1024));
+    }
+    for (int i = 0; i < 20; i += 2) {
+      assertTrue(pack.remove(i));
+    }
+
+    final boolean[] compacted = new boolean[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        compacted[0] = pack.compact();
+      }
+    };
+    thread.start();
+    // Pages changed before, while and after the copy
+    for (int i = 20; i < 30; i++) {
+      assertTrue(append(pack, i, 1000));
+    }
+    assertTrue(pack.remove(1));
+    assertTrue(append(pack, 3, 10));
+    thread.join();
+    assertTrue(compacted[0]);
+
+    int[] expected = {3, 5, 7, 9, 11, 13, 15, 17, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29};
+    assertArrayEquals(expected, pack.getIndexes());
+    assertArrayEquals(page(3, 10), read(pack, 3));
+    assertArrayEquals(page(5, 64 * 1024), read(pack, 5));
+    assertArrayEquals(page(29, 1000), read(pack, 29));
+
+    pack.flush();
+    SpiderPack reopened = SpiderPack.open(file);
+    assertNotNull(reopened);
+    assertArrayEquals(expected, reopened.getIndexes());
+    assertArrayEquals(page(3, 10), read(reopened, 3));
+    assertArrayEquals(page(25, 1000), read(reopened, 25));
+  }
+
+  @Test
+  public void testObtain() throws IOException {
+    UniFile file = newPackFile();
+    SpiderPack pack = SpiderPack.obtain(file);
+    assertNotNull(pack);
+    assertTrue(append(pack, 0, 100));
+
+    // The same file, the same pack
+    SpiderPack other = SpiderPack.obtain(UniFile.fromFile(new File(file.getUri().getPath())));
+    assertTrue(pack == other);
+    other.release();
+    assertTrue(pack == SpiderPack.obtain(file));
+    pack.release();
+    pack.release();
+
+    // Read from the file again after all released
+    pack.flush();
+    other = SpiderPack.obtain(file);
+    assertNotNull(other);
+    assertFalse(pack == other);
+    assertArrayEquals(page(0, 100), read(other, 0));
+    other.release();
+  }
+
+  @Test
+  public void testObtainDeleted() throws IOException {
+    UniFile file = newPackFile();
+    SpiderPack pack = SpiderPack.obtain(file);
+    assertNotNull(pack);
+    assertTrue(append(pack, 0, 100));
+
+    // The gallery dir is deleted while someone holds the pack
+    assertTrue(new File(file.getUri().getPath()).delete());
+    SpiderPack other = SpiderPack.obtain(file);
+    assertTrue(pack == other);
+    assertEquals(0, other.size());
+    assertTrue(append(other, 1, 10));
+    assertArrayEquals(page(1, 10), read(other, 1));
+    other.release();
+    pack.release();
+  }
+
+  @Test
+  public void testNotPack() throws IOException {
+    UniFile file = newPackFile();
+    RandomAccessFile raf = new RandomAccessFile(new File(file.getUri().getPath()), "rw");
+    raf.write("<html></html>".getBytes("UTF-8"));
+    raf.close();
+    assertNull(SpiderPack.open(file));
+  }
+}
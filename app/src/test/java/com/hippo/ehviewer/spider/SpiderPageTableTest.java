@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class SpiderPageTableTest {
+
+  @Test
+  public void testState() {
+    SpiderPageTable table = new SpiderPageTable(10);
+    assertEquals(10, table.size());
+    assertEquals(SpiderQueen.STATE_NONE, table.getState(3));
+    assertEquals(SpiderQueen.STATE_NONE, table.getState(-1));
+    assertEquals(SpiderQueen.STATE_NONE, table.getState(10));
+
+    assertTrue(table.startDownloading(3, false));
+    assertFalse(table.startDownloading(3, true));
+    assertEquals(SpiderQueen.STATE_DOWNLOADING, table.getState(3));
+
+    assertNull(table.getProgress(3));
+    table.setProgress(3, 0.5f);
+    assertEquals(0.5f, table.getProgress(3), 0.0f);
+
+    table.setState(3, SpiderQueen.STATE_FINISHED, null);
+    assertNull(table.getProgress(3));
+    assertEquals(1, table.getFinishedPages());
+    assertEquals(1, table.getDownloadedPages());
+    assertFalse(table.startDownloading(3, false));
+    // Progress is ignored if it is not downloading
+    table.setProgress(3, 0.5f);
+    assertNull(table.getProgress(3));
+
+    assertTrue(table.startDownloading(4, false));
+    table.setState(4, SpiderQueen.STATE_FAILED, "Bad code: 404");
+    assertEquals("Bad code: 404", table.getError(4));
+    assertEquals(1, table.getFinishedPages());
+    assertEquals(2, table.getDownloadedPages());
+
+    assertTrue(table.startDownloading(4, true));
+    assertNull(table.getError(4));
+    assertEquals(1, table.getDownloadedPages());
+
+    table.resetUnlessDownloading();
+    assertEquals(SpiderQueen.STATE_NONE, table.getState(3));
+    assertEquals(SpiderQueen.STATE_DOWNLOADING, table.getState(4));
+    assertEquals(0, table.getFinishedPages());
+    assertEquals(0, table.getDownloadedPages());
+  }
+
+  @Test
+  public void testConcurrentCounters() throws InterruptedException {
+    final int size = 1000;
+    final SpiderPageTable table = new SpiderPageTable(size);
+    final int threadCount = 4;
+    final CountDownLatch latch = new CountDownLatch(threadCount);
+    for (int t = 0; t < threadCount; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < size; i++) {
+            if (table.startDownloading(i, false)) {
+              table.setProgress(i, 0.3f);
+              table.setState(i, SpiderQueen.STATE_FINISHED, null);
+            }
+          }
+          latch.countDown();
+        }
+      }.start();
+    }
+    latch.await();
+    assertEquals(size, table.getFinishedPages());
+    assertEquals(size, table.getDownloadedPages());
+  }
+
+  /**
+   * The old way, int array in a lock, progress and error in maps.
+   */
+  private static class LockedPageTable {
+
+    private final Object lock = new Object();
+    private final int[] states;
+    private final ConcurrentHashMap<Integer, Float> percentMap = new ConcurrentHashMap<>();
+
+    LockedPageTable(int size) {
+      states = new int[size];
+    }
+
+    int getState(int index) {
+      synchronized (lock) {
+        return states[index];
+      }
+    }
+
+    void setState(int index, int state) {
+      synchronized (lock) {
+        states[index] = state;
+      }
+    }
+  }
+
+  private static long runThreads(int threadCount, final Runnable runnable)
+      throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(threadCount);
+    long start = System.nanoTime();
+    for (int t = 0; t < threadCount; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          runnable.run();
+          latch.countDown();
+        }
+      }.start();
+    }
+    latch.await();
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  /**
+   * 10 threads update progress like download workers, 1 thread reads
+   * states like GalleryView does. Run it by hand.
+   */
+  @Ignore
+  @Test
+  public void benchmark() throws InterruptedException {
+    final int size = 1000;
+    final int rounds = 2000;
+    final int threadCount = 11;
+
+    for (int warmUp = 0; warmUp < 3; warmUp++) {
+      final LockedPageTable locked = new LockedPageTable(size);
+      for (int i = 0; i < size; i++) {
+        locked.setState(i, SpiderQueen.STATE_DOWNLOADING);
+      }
+      long lockedTime = runThreads(threadCount, new Runnable() {
+        @Override
+        public void run() {
+          int sum = 0;
+          for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < size; i++) {
+              sum += locked.getState(i);
+              locked.percentMap.put(i, (float) r / rounds);
+            }
+          }
+          assertTrue(sum > 0);
+        }
+      });
+
+      final SpiderPageTable table = new SpiderPageTable(size);
+      for (int i = 0; i < size; i++) {
+        table.startDownloading(i, false);
+      }
+      long tableTime = runThreads(threadCount, new Runnable() {
+        @Override
+        public void run() {
+          int sum = 0;
+          for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < size; i++) {
+              sum += table.getState(i);
+              table.setProgress(i, (float) r / rounds);
+            }
+          }
+          assertTrue(sum > 0);
+        }
+      });
+
+      System.out.println("Locked: " + lockedTime + "ms, SpiderPageTable: " + tableTime + "ms");
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class SpiderVerifierTest {
+
+  private static byte[] jpeg(int size) {
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte) 0x42);
+    data[0] = (byte) 0xFF;
+    data[1] = (byte) 0xD8;
+    data[2] = (byte) 0xFF;
+    data[size - 2] = (byte) 0xFF;
+    data[size - 1] = (byte) 0xD9;
+    return data;
+  }
+
+  private static boolean verify(byte[] data, String sha1) throws IOException {
+    return SpiderVerifier.verify(new ByteArrayInputStream(data), sha1);
+  }
+
+  @Test
+  public void testFormat() throws IOException {
+    // Across buffers
+    byte[] data = jpeg(20000);
+    assertTrue(verify(data, null));
+    assertFalse(verify(Arrays.copyOf(data, 15000), null));
+    // Padding after end marker
+    assertTrue(verify(Arrays.copyOf(data, 20010), null));
+    // Data after end marker
+    byte[] trailing = Arrays.copyOf(data, 30000);
+    Arrays.fill(trailing, 20000, trailing.length, (byte) 0x42);
+    assertTrue(verify(trailing, null));
+    // End marker across buffers
+    assertTrue(verify(Arrays.copyOf(jpeg(8193), 9000), null));
+
+    byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n',
+        0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+    assertTrue(verify(png, null));
+    assertFalse(verify(Arrays.copyOf(png, 12), null));
+
+    assertFalse(verify(new byte[0], null));
+    assertFalse(verify("<html></html>".getBytes("UTF-8"), null));
+  }
+
+  @Test
+  public void testSha1() throws IOException {
+    byte[] data = jpeg(4);
+    assertTrue(verify(data, "d7c0d8f45ae77f941630f3e0db922800c1ce1bee"));
+    assertFalse(verify(data, "0000000000000000000000000000000000000000"));
+  }
+}
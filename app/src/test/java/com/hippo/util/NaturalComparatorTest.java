@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NaturalComparatorTest {
+
+  private static void assertSorted(String... expected) {
+    String[] strings = new String[expected.length];
+    for (int i = 0; i < expected.length; i++) {
+      strings[expected.length - 1 - i] = expected[i];
+    }
+    NaturalComparator.sort(strings);
+    assertArrayEquals(expected, strings);
+  }
+
+  @Test
+  public void testSort() {
+    assertSorted("1.jpg", "2.jpg", "10.jpg", "100.jpg");
+    assertSorted("001.jpg", "02.jpg", "2.jpg", "010.jpg");
+    assertSorted("a1", "A2", "a10", "b");
+    assertSorted("ch1/p2.png", "ch1/p10.png", "ch2/p1.png");
+    assertSorted("", "1", "1a", "a");
+    assertSorted("98765432109876543210", "987654321098765432100");
+  }
+
+  @Test
+  public void testCompare() {
+    assertTrue(NaturalComparator.INSTANCE.compare("page9", "page10") < 0);
+    assertTrue(NaturalComparator.INSTANCE.compare("Page10", "page9") > 0);
+    assertTrue(NaturalComparator.INSTANCE.compare("x", "x") == 0);
+  }
+}
@@ -32,7 +32,7 @@ public class EhDaoGenerator {
     private static final String OUT_DIR = "../app/src/main/java-gen";
     private static final String DELETE_DIR = "../app/src/main/java-gen/com/hippo/ehviewer/dao";
 
-    private static final int VERSION = 3;
+    private static final int VERSION = 4;
 
     private static final String DOWNLOAD_INFO_PATH = "../app/src/main/java-gen/com/hippo/ehviewer/dao/DownloadInfo.java";
     private static final String HISTORY_INFO_PATH = "../app/src/main/java-gen/com/hippo/ehviewer/dao/HistoryInfo.java";
@@ -87,6 +87,8 @@ public class EhDaoGenerator {
         entity.addIntProperty("legacy").notNull();
         entity.addLongProperty("time").notNull();
         entity.addStringProperty("label");
+        // Since 4
+        entity.addBooleanProperty("verified").notNull();
     }
 
     private static void addDownloadLabel(Schema schema) {
@@ -211,6 +213,7 @@ public class EhDaoGenerator {
         javaClass.getField("legacy").setPublic();
         javaClass.getField("time").setPublic();
         javaClass.getField("label").setPublic();
+        javaClass.getField("verified").setPublic();
         // Add Parcelable stuff
         javaClass.addMethod("\t@Override\n" +
                 "\tpublic int describeContents() {\n" +
@@ -223,6 +226,7 @@ public class EhDaoGenerator {
                 "\t\tdest.writeInt(this.legacy);\n" +
                 "\t\tdest.writeLong(this.time);\n" +
                 "\t\tdest.writeString(this.label);\n" +
+                "\t\tdest.writeByte(this.verified ? (byte) 1 : (byte) 0);\n" +
                 "\t}");
         javaClass.addMethod("\tprotected DownloadInfo(Parcel in) {\n" +
                 "\t\tsuper(in);\n" +
@@ -230,6 +234,7 @@ public class EhDaoGenerator {
                 "\t\tthis.legacy = in.readInt();\n" +
                 "\t\tthis.time = in.readLong();\n" +
                 "\t\tthis.label = in.readString();\n" +
+                "\t\tthis.verified = in.readByte() != 0;\n" +
                 "\t}").setConstructor(true);
         javaClass.addField("\tpublic static final Creator<DownloadInfo> CREATOR = new Creator<DownloadInfo>() {\n" +
                 "\t\t@Override\n" +
@@ -250,8 +255,6 @@ public class EhDaoGenerator {
         javaClass.addField("public static final int STATE_DOWNLOAD = 2");
         javaClass.addField("public static final int STATE_FINISH = 3");
         javaClass.addField("public static final int STATE_FAILED = 4");
-        javaClass.addField("public long speed");
-        javaClass.addField("public long remaining");
         javaClass.addField("public int finished");
         javaClass.addField("public int downloaded");
         javaClass.addField("public int total");